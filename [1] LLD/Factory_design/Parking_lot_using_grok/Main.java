@@ -57,6 +57,7 @@ abstract class ParkingSpot {
     private boolean isHandicap;
     private boolean isReserved;
     private int proximityIndex; // Lower values indicate closer to entrance
+    private ParkingFloor floor;
 
     public ParkingSpot(String id, boolean isHandicap, boolean isReserved, int proximityIndex) {
         this.id = id;
@@ -86,6 +87,14 @@ abstract class ParkingSpot {
         return proximityIndex;
     }
 
+    public ParkingFloor getFloor() {
+        return floor;
+    }
+
+    void setFloor(ParkingFloor floor) {
+        this.floor = floor;
+    }
+
     public void occupy() {
         if (occupied) {
             throw new IllegalStateException("Spot " + id + " is already occupied.");
@@ -230,6 +239,8 @@ class ParkingFloor {
     private List<ParkingSpot> spots;
     private int floorNumber;
     private int capacity;
+    private int occupiedCount;
+    private volatile boolean draining;
     private final ReentrantLock lock = new ReentrantLock();
     private static final Map<String, int[]> GATE_SPOT_RANGES = Map.of(
         "GATE-1", new int[]{1, 25},
@@ -247,7 +258,9 @@ class ParkingFloor {
         for (int i = 1; i <= capacity; i++) {
             boolean isHandicap = handicapCount < handicapSpots && i <= handicapSpots;
             boolean isReserved = !isHandicap && reservedCount < reservedSpots && i <= (handicapSpots + reservedSpots);
-            spots.add(factory.createSpot(type.name() + "-F" + floorNumber + "-" + i, isHandicap, isReserved, i));
+            ParkingSpot spot = factory.createSpot(type.name() + "-F" + floorNumber + "-" + i, isHandicap, isReserved, i);
+            spot.setFloor(this);
+            spots.add(spot);
             if (isHandicap) handicapCount++;
             if (isReserved) reservedCount++;
         }
@@ -261,6 +274,47 @@ class ParkingFloor {
         return floorNumber;
     }
 
+    public boolean isDraining() {
+        return draining;
+    }
+
+    public int getOccupiedSpots() {
+        lock.lock();
+        try {
+            return occupiedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stops new entries; cars already parked can still leave
+    public void drain() {
+        lock.lock();
+        try {
+            draining = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void reopen() {
+        lock.lock();
+        try {
+            draining = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isDrained() {
+        lock.lock();
+        try {
+            return draining && occupiedCount == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public ParkingSpot findAvailableSpot(boolean needsHandicap, boolean needsReserved, boolean hasHandicapPermit, boolean hasReservation, String gateId) {
         lock.lock();
         try {
@@ -304,6 +358,34 @@ class ParkingFloor {
         }
     }
 
+    // Finds and occupies a spot under one lock hold so two gates can't be handed the same spot
+    public ParkingSpot allocateSpot(boolean needsHandicap, boolean needsReserved, boolean hasHandicapPermit, boolean hasReservation, String gateId) {
+        lock.lock();
+        try {
+            if (draining) {
+                return null;
+            }
+            ParkingSpot spot = findAvailableSpot(needsHandicap, needsReserved, hasHandicapPermit, hasReservation, gateId);
+            if (spot != null) {
+                spot.occupy();
+                occupiedCount++;
+            }
+            return spot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void releaseSpot(ParkingSpot spot) {
+        lock.lock();
+        try {
+            spot.free();
+            occupiedCount--;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     public int getAvailableSpots(boolean needsHandicap, boolean needsReserved) {
         lock.lock();
         try {
@@ -337,7 +419,7 @@ class DisplayBoard {
             List<ParkingFloor> floors = entry.getValue();
             System.out.println("Vehicle Type: " + type);
             for (ParkingFloor floor : floors) {
-                System.out.println("  Floor " + floor.getFloorNumber() + ":");
+                System.out.println("  Floor " + floor.getFloorNumber() + (floor.isDraining() ? " (draining)" : "") + ":");
                 System.out.println("    Regular Spots: " + floor.getAvailableSpots(false, false));
                 System.out.println("    Handicap Spots: " + floor.getAvailableSpots(true, false));
                 System.out.println("    Reserved Spots: " + floor.getAvailableSpots(false, true));
@@ -350,18 +432,16 @@ class DisplayBoard {
 // ParkingLot Class (Singleton)
 class ParkingLot {
     private static ParkingLot instance;
-    private Map<VehicleType, List<ParkingFloor>> floors;
+    // Copy-on-write floor table: writers publish a new EnumMap, readers never lock
+    private volatile Map<VehicleType, List<ParkingFloor>> floors = Collections.unmodifiableMap(new EnumMap<>(VehicleType.class));
+    private final ReentrantLock floorTableLock = new ReentrantLock();
     private static final ReentrantLock lock = new ReentrantLock();
 
     private ParkingLot() {
-        floors = new HashMap<>();
-        floors.put(VehicleType.CAR, new ArrayList<>());
-        floors.get(VehicleType.CAR).add(new ParkingFloor(VehicleType.CAR, 1, 50, 5, 5));
-        floors.get(VehicleType.CAR).add(new ParkingFloor(VehicleType.CAR, 2, 50, 5, 5));
-        floors.put(VehicleType.BIKE, new ArrayList<>());
-        floors.get(VehicleType.BIKE).add(new ParkingFloor(VehicleType.BIKE, 1, 100, 10, 10));
-        floors.put(VehicleType.HEAVY, new ArrayList<>());
-        floors.get(VehicleType.HEAVY).add(new ParkingFloor(VehicleType.HEAVY, 1, 20, 2, 2));
+        addFloor(VehicleType.CAR, 1, 50, 5, 5);
+        addFloor(VehicleType.CAR, 2, 50, 5, 5);
+        addFloor(VehicleType.BIKE, 1, 100, 10, 10);
+        addFloor(VehicleType.HEAVY, 1, 20, 2, 2);
     }
 
     public static ParkingLot getInstance() {
@@ -380,9 +460,66 @@ class ParkingLot {
         return floors;
     }
 
+    public ParkingFloor getFloor(VehicleType type, int floorNumber) {
+        for (ParkingFloor floor : floors.getOrDefault(type, List.of())) {
+            if (floor.getFloorNumber() == floorNumber) {
+                return floor;
+            }
+        }
+        throw new IllegalArgumentException("No " + type + " floor " + floorNumber);
+    }
+
     public void addFloor(VehicleType type, int floorNumber, int capacity, int handicapSpots, int reservedSpots) {
-        floors.computeIfAbsent(type, k -> new ArrayList<>());
-        floors.get(type).add(new ParkingFloor(type, floorNumber, capacity, handicapSpots, reservedSpots));
+        ParkingFloor floor = new ParkingFloor(type, floorNumber, capacity, handicapSpots, reservedSpots);
+        floorTableLock.lock();
+        try {
+            List<ParkingFloor> current = floors.getOrDefault(type, List.of());
+            for (ParkingFloor existing : current) {
+                if (existing.getFloorNumber() == floorNumber) {
+                    throw new IllegalArgumentException(type + " floor " + floorNumber + " already exists.");
+                }
+            }
+            List<ParkingFloor> updated = new ArrayList<>(current);
+            updated.add(floor);
+            publish(type, updated);
+        } finally {
+            floorTableLock.unlock();
+        }
+    }
+
+    // A floor can only be removed once it is drained, so no gate can still be allocating on it
+    public void removeFloor(VehicleType type, int floorNumber) {
+        floorTableLock.lock();
+        try {
+            ParkingFloor floor = getFloor(type, floorNumber);
+            if (!floor.isDrained()) {
+                throw new IllegalStateException(type + " floor " + floorNumber + " must be drained and empty before removal (occupied: " + floor.getOccupiedSpots() + ").");
+            }
+            List<ParkingFloor> updated = new ArrayList<>(floors.get(type));
+            updated.remove(floor);
+            publish(type, updated);
+        } finally {
+            floorTableLock.unlock();
+        }
+    }
+
+    public void drainFloor(VehicleType type, int floorNumber) {
+        getFloor(type, floorNumber).drain();
+    }
+
+    public void reopenFloor(VehicleType type, int floorNumber) {
+        getFloor(type, floorNumber).reopen();
+    }
+
+    private void publish(VehicleType type, List<ParkingFloor> updated) {
+        Map<VehicleType, List<ParkingFloor>> next = new EnumMap<>(VehicleType.class);
+        next.putAll(floors);
+        if (updated.isEmpty()) {
+            next.remove(type);
+        } else {
+            next.put(type, List.copyOf(updated));
+        }
+        floors = Collections.unmodifiableMap(next);
     }
 }
 
@@ -482,24 +619,33 @@ class EntryGate extends Gate {
         if (floors == null || floors.isEmpty()) {
             throw new IllegalArgumentException("No parking floors for vehicle type: " + type);
         }
-        // Find floor with most available spots
-        ParkingFloor bestFloor = null;
-        int maxAvailable = -1;
+        // Rank open floors by available spots, most first
+        List<ParkingFloor> candidates = new ArrayList<>();
+        Map<ParkingFloor, Integer> available = new HashMap<>();
         for (ParkingFloor floor : floors) {
-            int available = floor.getAvailableSpots(needsHandicap, needsReserved);
-            if (available > maxAvailable) {
-                maxAvailable = available;
-                bestFloor = floor;
+            int count = floor.isDraining() ? 0 : floor.getAvailableSpots(needsHandicap, needsReserved);
+            if (count > 0) {
+                candidates.add(floor);
+                available.put(floor, count);
             }
         }
-        if (bestFloor == null || maxAvailable == 0) {
+        if (candidates.isEmpty()) {
             throw new IllegalStateException("No available spots for " + type + (needsHandicap ? " (handicap)" : "") + (needsReserved ? " (reserved)" : ""));
         }
-        ParkingSpot spot = bestFloor.findAvailableSpot(needsHandicap, needsReserved, hasHandicapPermit, hasReservation, gateId);
+        candidates.sort((a, b) -> Integer.compare(available.get(b), available.get(a)));
+        // A floor can be drained or filled by another gate after counting, so fall through to the next one
+        ParkingFloor bestFloor = null;
+        ParkingSpot spot = null;
+        for (ParkingFloor floor : candidates) {
+            spot = floor.allocateSpot(needsHandicap, needsReserved, hasHandicapPermit, hasReservation, gateId);
+            if (spot != null) {
+                bestFloor = floor;
+                break;
+            }
+        }
         if (spot == null) {
             throw new IllegalStateException("No suitable spot found for " + type);
         }
-        spot.occupy();
         ParkingFactory factory = ParkingFactoryProvider.getFactory(type);
         Ticket ticket = factory.createTicket(vehicle, spot, bestFloor.getFloorNumber(), gateId);
         System.out.println("Vehicle " + vehicle.getLicensePlate() + " entered via Gate " + gateId + ". Spot: " + spot.getId() + ", Floor: " + bestFloor.getFloorNumber() + ", Ticket: " + ticket.getTicketId());
@@ -523,7 +669,7 @@ class ExitGate extends Gate {
         if (!paymentSuccess) {
             throw new IllegalStateException("Payment failed for ticket: " + ticket.getTicketId());
         }
-        ticket.getSpot().free();
+        ticket.getSpot().getFloor().releaseSpot(ticket.getSpot());
         System.out.println("Vehicle " + ticket.getVehicle().getLicensePlate() + " exited via Gate " + gateId + " from spot " + ticket.getSpot().getId() + ", Floor: " + ticket.getFloorNumber() + ". Fee: $" + String.format("%.2f", fee) + " (" + mode + ")");
         return fee;
     }
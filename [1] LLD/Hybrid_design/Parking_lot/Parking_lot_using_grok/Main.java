@@ -2,15 +2,202 @@ package Hybrid_design.Parking_lot.Parking_lot_using_grok;
 
 // package Factory_design.ParkingLot;
 
+import com.sun.management.ThreadMXBean;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
 
 // Observer Interface for real-time updates (e.g., display board)
 interface ParkingObserver {
     void updateAvailability(VehicleType type, int floorNumber, String spotType, int count);
+
+    // A floor started draining, emptied while draining, or reopened; `occupied` is what is still parked
+    default void floorStatusChanged(VehicleType type, int floorNumber, String status, int occupied) {
+    }
+}
+
+// Observer Interface for ticket lifecycle (e.g., overstay monitor, archive)
+interface TicketObserver {
+    void ticketIssued(Ticket ticket);
+    void ticketClosed(Ticket ticket, String exitGateId, LocalDateTime exitTime, double fee, BillingMode mode);
+}
+
+// Observer Interface for tickets open past their type's limits
+interface OverstayObserver {
+    void overstay(Ticket ticket, OverstayLevel level);
+}
+
+// Enum for Overstay Levels
+enum OverstayLevel {
+    OVERSTAY, ABANDONED
+}
+
+// ParkingClock: the time source for tickets, billing, reservations and replay checks. Wall time is
+// in the system default zone, as everywhere else in the lot.
+interface ParkingClock {
+    long millis();
+
+    default LocalDateTime now() {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis()), ZoneId.systemDefault());
+    }
+
+    static ParkingClock system() {
+        return SystemParkingClock.INSTANCE;
+    }
+
+    // Shared coarse clock with 1 ms resolution, started on first use
+    static ParkingClock coarse() {
+        return CoarseParkingClock.SHARED;
+    }
+}
+
+// SystemParkingClock: reads the system clock on every call
+class SystemParkingClock implements ParkingClock {
+    static final SystemParkingClock INSTANCE = new SystemParkingClock();
+
+    @Override
+    public long millis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public LocalDateTime now() {
+        return LocalDateTime.now();
+    }
+}
+
+// CoarseParkingClock: a daemon thread samples the system clock once per `resolution` and publishes
+// the time (and its LocalDateTime) in one volatile field, so hot paths read the time for the cost of
+// a field load and allocate nothing
+class CoarseParkingClock implements ParkingClock, AutoCloseable {
+    static final CoarseParkingClock SHARED = new CoarseParkingClock(Duration.ofMillis(1));
+    private final long resolutionNanos;
+    private final Thread ticker;
+    private volatile Sample sample;
+    private volatile boolean running = true;
+
+    private static class Sample {
+        final long millis;
+        final LocalDateTime time;
+
+        Sample(long millis) {
+            this.millis = millis;
+            this.time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        }
+    }
+
+    public CoarseParkingClock(Duration resolution) {
+        this.resolutionNanos = resolution.toNanos();
+        this.sample = new Sample(System.currentTimeMillis());
+        this.ticker = new Thread(this::tick, "coarse-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private void tick() {
+        while (running) {
+            LockSupport.parkNanos(resolutionNanos);
+            long millis = System.currentTimeMillis();
+            if (millis != sample.millis) {
+                sample = new Sample(millis);
+            }
+        }
+    }
+
+    @Override
+    public long millis() {
+        return sample.millis;
+    }
+
+    @Override
+    public LocalDateTime now() {
+        return sample.time;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+    }
+}
+
+// VirtualParkingClock: time that only moves when told to, for tests and simulations
+class VirtualParkingClock implements ParkingClock {
+    private final AtomicLong millis;
+
+    public VirtualParkingClock(LocalDateTime start) {
+        this.millis = new AtomicLong(start.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli());
+    }
+
+    @Override
+    public long millis() {
+        return millis.get();
+    }
+
+    public void advance(Duration duration) {
+        if (duration.isNegative()) {
+            throw new IllegalArgumentException("A clock cannot move backwards.");
+        }
+        millis.addAndGet(duration.toMillis());
+    }
+
+    // Moves forward to `epochMillis`; earlier times are ignored
+    public void advanceTo(long epochMillis) {
+        millis.accumulateAndGet(epochMillis, Math::max);
+    }
 }
 
 // Abstract Product: Vehicle
@@ -53,7 +240,17 @@ class HeavyVehicle extends Vehicle {
 
 // Enum for Vehicle Types
 enum VehicleType {
-    CAR, BIKE, HEAVY
+    CAR, BIKE, HEAVY;
+
+    private static final VehicleType[] VALUES = values();
+
+    // By ordinal, the way signed tickets and gate frames carry it
+    static VehicleType ofOrdinal(int ordinal) {
+        if (ordinal < 0 || ordinal >= VALUES.length) {
+            throw new IllegalArgumentException("Unknown vehicle type " + ordinal);
+        }
+        return VALUES[ordinal];
+    }
 }
 
 // Builder for ParkingSpot
@@ -95,6 +292,8 @@ abstract class ParkingSpot {
     private boolean isHandicap;
     private boolean isReserved;
     private int proximityIndex; // Lower values indicate closer to entrance
+    private ParkingFloor floor;
+    private volatile Ticket holder; // the open ticket issued on this spot (its first spot), if any
 
     public ParkingSpot(String id, boolean isHandicap, boolean isReserved, int proximityIndex) {
         this.id = id;
@@ -124,6 +323,22 @@ abstract class ParkingSpot {
         return proximityIndex;
     }
 
+    public ParkingFloor getFloor() {
+        return floor;
+    }
+
+    void setFloor(ParkingFloor floor) {
+        this.floor = floor;
+    }
+
+    Ticket getHolder() {
+        return holder;
+    }
+
+    void setHolder(Ticket holder) {
+        this.holder = holder;
+    }
+
     public void occupy() {
         if (occupied) {
             throw new IllegalStateException("Spot " + id + " is already occupied.");
@@ -136,6 +351,7 @@ abstract class ParkingSpot {
             throw new IllegalStateException("Spot " + id + " is already free.");
         }
         occupied = false;
+        holder = null;
     }
 }
 
@@ -164,6 +380,7 @@ class TicketBuilder {
     private ParkingSpot spot;
     private int floorNumber;
     private String gateId;
+    private LocalDateTime entryTime;
 
     public TicketBuilder vehicle(Vehicle vehicle) {
         this.vehicle = vehicle;
@@ -185,15 +402,21 @@ class TicketBuilder {
         return this;
     }
 
+    public TicketBuilder entryTime(LocalDateTime entryTime) {
+        this.entryTime = entryTime;
+        return this;
+    }
+
     public Ticket build(ParkingFactory factory) {
-        return factory.createTicket(vehicle, spot, floorNumber, gateId);
+        return factory.createTicket(vehicle, spot, floorNumber, gateId, entryTime != null ? entryTime : Ticket.clockOf(spot).now());
     }
 }
 
 // Abstract Factory: ParkingFactory
 interface ParkingFactory {
     ParkingSpot createSpot(String id, boolean isHandicap, boolean isReserved, int proximityIndex);
-    Ticket createTicket(Vehicle vehicle, ParkingSpot spot, int floorNumber, String gateId);
+    Ticket createTicket(Vehicle vehicle, ParkingSpot spot, int floorNumber, String gateId, LocalDateTime entryTime);
+    Ticket createTicket(Vehicle vehicle, List<ParkingSpot> spots, int floorNumber, String gateId, LocalDateTime entryTime);
 }
 
 // Concrete Factory: CarParkingFactory
@@ -204,8 +427,13 @@ class CarParkingFactory implements ParkingFactory {
     }
 
     @Override
-    public Ticket createTicket(Vehicle vehicle, ParkingSpot spot, int floorNumber, String gateId) {
-        return new Ticket(vehicle, spot, floorNumber, gateId);
+    public Ticket createTicket(Vehicle vehicle, ParkingSpot spot, int floorNumber, String gateId, LocalDateTime entryTime) {
+        return new Ticket(vehicle, spot, floorNumber, gateId, entryTime);
+    }
+
+    @Override
+    public Ticket createTicket(Vehicle vehicle, List<ParkingSpot> spots, int floorNumber, String gateId, LocalDateTime entryTime) {
+        return new Ticket(vehicle, spots, floorNumber, gateId, entryTime);
     }
 }
 
@@ -217,8 +445,13 @@ class BikeParkingFactory implements ParkingFactory {
     }
 
     @Override
-    public Ticket createTicket(Vehicle vehicle, ParkingSpot spot, int floorNumber, String gateId) {
-        return new Ticket(vehicle, spot, floorNumber, gateId);
+    public Ticket createTicket(Vehicle vehicle, ParkingSpot spot, int floorNumber, String gateId, LocalDateTime entryTime) {
+        return new Ticket(vehicle, spot, floorNumber, gateId, entryTime);
+    }
+
+    @Override
+    public Ticket createTicket(Vehicle vehicle, List<ParkingSpot> spots, int floorNumber, String gateId, LocalDateTime entryTime) {
+        return new Ticket(vehicle, spots, floorNumber, gateId, entryTime);
     }
 }
 
@@ -230,49 +463,95 @@ class HeavyParkingFactory implements ParkingFactory {
     }
 
     @Override
-    public Ticket createTicket(Vehicle vehicle, ParkingSpot spot, int floorNumber, String gateId) {
-        return new Ticket(vehicle, spot, floorNumber, gateId);
+    public Ticket createTicket(Vehicle vehicle, ParkingSpot spot, int floorNumber, String gateId, LocalDateTime entryTime) {
+        return new Ticket(vehicle, spot, floorNumber, gateId, entryTime);
+    }
+
+    @Override
+    public Ticket createTicket(Vehicle vehicle, List<ParkingSpot> spots, int floorNumber, String gateId, LocalDateTime entryTime) {
+        return new Ticket(vehicle, spots, floorNumber, gateId, entryTime);
     }
 }
 
 // Factory Provider
 class ParkingFactoryProvider {
+    // Factories are stateless, so every caller shares one instance per type
+    private static final Map<VehicleType, ParkingFactory> FACTORIES = new EnumMap<>(VehicleType.class);
+
+    static {
+        FACTORIES.put(VehicleType.CAR, new CarParkingFactory());
+        FACTORIES.put(VehicleType.BIKE, new BikeParkingFactory());
+        FACTORIES.put(VehicleType.HEAVY, new HeavyParkingFactory());
+    }
+
     public static ParkingFactory getFactory(VehicleType type) {
-        switch (type) {
-            case CAR:
-                return new CarParkingFactory();
-            case BIKE:
-                return new BikeParkingFactory();
-            case HEAVY:
-                return new HeavyParkingFactory();
-            default:
-                throw new IllegalArgumentException("Invalid vehicle type: " + type);
+        ParkingFactory factory = FACTORIES.get(type);
+        if (factory == null) {
+            throw new IllegalArgumentException("Invalid vehicle type: " + type);
         }
+        return factory;
     }
 }
 
 // Ticket Class
 class Ticket {
+    private static final AtomicLong NEXT_SERIAL = new AtomicLong(new Random().nextInt() & 0xFFFFFFFFL);
     private Vehicle vehicle;
     private ParkingSpot spot;
+    private List<ParkingSpot> spots; // only set when a vehicle spans adjacent smaller spots
     private int floorNumber;
     private LocalDateTime entryTime;
-    private String ticketId;
+    private long serial;
+    private String ticketId; // formatted from serial on first use
     private String entryGateId;
+    private TimingWheel.Timer overstayTimer; // guarded by the owning TimingWheel's lock
+    private volatile boolean closed; // set before ticket observers hear of the exit
 
+    // Entered now by the clock of the spot's lot
     public Ticket(Vehicle vehicle, ParkingSpot spot, int floorNumber, String entryGateId) {
+        this(vehicle, spot, floorNumber, entryGateId, clockOf(spot).now());
+    }
+
+    public Ticket(Vehicle vehicle, ParkingSpot spot, int floorNumber, String entryGateId, LocalDateTime entryTime) {
         this.vehicle = vehicle;
         this.spot = spot;
         this.floorNumber = floorNumber;
-        this.entryTime = LocalDateTime.now();
-        this.ticketId = "TICKET-" + UUID.randomUUID().toString().substring(0, 8);
+        this.entryTime = entryTime;
+        this.serial = NEXT_SERIAL.getAndIncrement() & 0xFFFFFFFFL;
         this.entryGateId = entryGateId;
     }
 
+    public Ticket(Vehicle vehicle, List<ParkingSpot> spots, int floorNumber, String entryGateId) {
+        this(vehicle, spots, floorNumber, entryGateId, clockOf(spots.get(0)).now());
+    }
+
+    public Ticket(Vehicle vehicle, List<ParkingSpot> spots, int floorNumber, String entryGateId, LocalDateTime entryTime) {
+        this(vehicle, spots.get(0), floorNumber, entryGateId, entryTime);
+        this.spots = List.copyOf(spots);
+    }
+
     public String getTicketId() {
+        if (ticketId == null) {
+            ticketId = formatId(serial);
+        }
         return ticketId;
     }
 
+    // The lot's clock, through the spot's floor; the system clock for a spot on no floor
+    static ParkingClock clockOf(ParkingSpot spot) {
+        ParkingFloor floor = spot.getFloor();
+        return floor == null ? ParkingClock.system() : floor.getClock();
+    }
+
+    static String formatId(long serial) {
+        String hex = Long.toHexString(serial);
+        return "TICKET-" + "00000000".substring(hex.length()) + hex;
+    }
+
+    public long getSerial() {
+        return serial;
+    }
+
     public Vehicle getVehicle() {
         return vehicle;
     }
@@ -281,6 +560,14 @@ class Ticket {
         return spot;
     }
 
+    public List<ParkingSpot> getSpots() {
+        return spots == null ? List.of(spot) : spots;
+    }
+
+    public int getSpotCount() {
+        return spots == null ? 1 : spots.size();
+    }
+
     public int getFloorNumber() {
         return floorNumber;
     }
@@ -289,328 +576,9148 @@ class Ticket {
         return entryTime;
     }
 
+    public long getEntryEpochMillis() {
+        return entryTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
     public String getEntryGateId() {
         return entryGateId;
     }
+
+    TimingWheel.Timer getOverstayTimer() {
+        return overstayTimer;
+    }
+
+    void setOverstayTimer(TimingWheel.Timer overstayTimer) {
+        this.overstayTimer = overstayTimer;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    void markClosed() {
+        closed = true;
+    }
 }
 
-// ParkingFloor Class
-class ParkingFloor {
-    private VehicleType type;
-    private List<ParkingSpot> spots;
-    private int floorNumber;
-    private int capacity;
-    private final ReentrantLock lock = new ReentrantLock();
-    private List<ParkingObserver> observers = new ArrayList<>();
+// Reservation: an advance booking of one reserved spot for [start, end), epoch millis
+class Reservation {
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);
+    private final String reservationId;
+    private final String licensePlate;
+    private final ParkingSpot spot;
+    private final long start;
+    private final long end;
 
-    public ParkingFloor(VehicleType type, int floorNumber, int capacity, int handicapSpots, int reservedSpots) {
-        this.type = type;
-        this.floorNumber = floorNumber;
-        this.capacity = capacity;
-        this.spots = new ArrayList<>();
-        ParkingFactory factory = ParkingFactoryProvider.getFactory(type);
-        int handicapCount = 0;
-        int reservedCount = 0;
-        for (int i = 1; i <= capacity; i++) {
-            boolean isHandicap = handicapCount < handicapSpots && i <= handicapSpots;
-            boolean isReserved = !isHandicap && reservedCount < reservedSpots && i <= (handicapSpots + reservedSpots);
-            spots.add(factory.createSpot(type.name() + "-F" + floorNumber + "-" + i, isHandicap, isReserved, i));
-            if (isHandicap) handicapCount++;
-            if (isReserved) reservedCount++;
+    public Reservation(String licensePlate, ParkingSpot spot, long start, long end) {
+        if (end <= start) {
+            throw new IllegalArgumentException("Reservation must end after it starts.");
         }
+        this.reservationId = "RES-" + NEXT_ID.getAndIncrement();
+        this.licensePlate = licensePlate;
+        this.spot = spot;
+        this.start = start;
+        this.end = end;
     }
 
-    public VehicleType getType() {
-        return type;
+    public String getReservationId() {
+        return reservationId;
     }
 
-    public int getFloorNumber() {
-        return floorNumber;
+    public String getLicensePlate() {
+        return licensePlate;
     }
 
-    public void addObserver(ParkingObserver observer) {
-        observers.add(observer);
+    public ParkingSpot getSpot() {
+        return spot;
     }
 
-    public void notifyObservers(String spotType, int count) {
-        for (ParkingObserver observer : observers) {
-            observer.updateAvailability(type, floorNumber, spotType, count);
-        }
+    public long getStart() {
+        return start;
     }
 
-    public ParkingSpot findAvailableSpot(boolean needsHandicap, boolean needsReserved, boolean hasHandicapPermit, boolean hasReservation, String gateId) {
-        lock.lock();
-        try {
-            if (needsHandicap && !hasHandicapPermit) {
-                throw new IllegalArgumentException("Handicap permit required for handicap spot.");
-            }
-            if (needsReserved && !hasReservation) {
-                throw new IllegalArgumentException("Reservation required for reserved spot.");
-            }
-            int[] range = getGateSpotRange(gateId);
-            ParkingSpot closestSpot = null;
-            int minProximity = Integer.MAX_VALUE;
-            for (ParkingSpot spot : spots) {
-                if (!spot.isOccupied() &&
-                    (!needsHandicap || spot.isHandicap()) &&
-                    (!needsReserved || spot.isReserved()) &&
-                    spot.getProximityIndex() >= range[0] && spot.getProximityIndex() <= range[1] &&
-                    spot.getProximityIndex() < minProximity) {
-                    closestSpot = spot;
-                    minProximity = spot.getProximityIndex();
-                }
-            }
-            if (closestSpot == null) {
-                for (ParkingSpot spot : spots) {
-                    if (!spot.isOccupied() &&
-                        (!needsHandicap || spot.isHandicap()) &&
-                        (!needsReserved || spot.isReserved()) &&
-                        spot.getProximityIndex() < minProximity) {
-                        closestSpot = spot;
-                        minProximity = spot.getProximityIndex();
-                    }
-                }
-            }
-            return closestSpot;
-        } finally {
-            lock.unlock();
-        }
+    public long getEnd() {
+        return end;
     }
 
-    public int getAvailableSpots(boolean needsHandicap, boolean needsReserved) {
-        lock.lock();
-        try {
-            int count = 0;
-            for (ParkingSpot spot : spots) {
-                if (!spot.isOccupied() &&
-                    (!needsHandicap || spot.isHandicap()) &&
-                    (!needsReserved || spot.isReserved())) {
-                    count++;
-                }
-            }
-            return count;
-        } finally {
-            lock.unlock();
-        }
+    public boolean overlaps(long from, long to) {
+        return start < to && from < end;
     }
+}
 
-    private int[] getGateSpotRange(String gateId) {
-        Map<String, int[]> GATE_SPOT_RANGES = Map.of(
-            "GATE-1", new int[]{1, 25},
-            "GATE-2", new int[]{26, 50}
-        );
-        return GATE_SPOT_RANGES.getOrDefault(gateId, new int[]{1, capacity});
+// ReservationCalendar: bookings of one reserved spot. Bookings on a spot never overlap, so a tree
+// ordered by start is an interval tree for them: the only candidate overlapping [from, to) is the
+// last booking starting before `to`, which keeps every query O(log n).
+class ReservationCalendar {
+    private final TreeMap<Long, Reservation> byStart = new TreeMap<>();
+    private final TreeMap<Long, Integer> gaps = new TreeMap<>(); // free time between consecutive bookings, with counts
+
+    public boolean isFree(long from, long to) {
+        Map.Entry<Long, Reservation> candidate = byStart.lowerEntry(to);
+        return candidate == null || candidate.getValue().getEnd() <= from;
     }
-}
 
-// DisplayBoard Class (Observer)
-class DisplayBoard implements ParkingObserver {
-    private ParkingLot parkingLot;
+    public void add(Reservation reservation) {
+        if (!isFree(reservation.getStart(), reservation.getEnd())) {
+            throw new IllegalStateException("Spot " + reservation.getSpot().getId() + " is already booked in that window.");
+        }
+        Map.Entry<Long, Reservation> previous = byStart.lowerEntry(reservation.getStart());
+        Map.Entry<Long, Reservation> next = byStart.higherEntry(reservation.getStart());
+        if (previous != null && next != null) {
+            removeGap(next.getKey() - previous.getValue().getEnd());
+        }
+        if (previous != null) {
+            addGap(reservation.getStart() - previous.getValue().getEnd());
+        }
+        if (next != null) {
+            addGap(next.getKey() - reservation.getEnd());
+        }
+        byStart.put(reservation.getStart(), reservation);
+    }
 
-    public DisplayBoard(ParkingLot parkingLot) {
-        this.parkingLot = parkingLot;
-        // Register as observer to all floors
-        for (List<ParkingFloor> floorList : parkingLot.getFloors().values()) {
-            for (ParkingFloor floor : floorList) {
-                floor.addObserver(this);
-            }
+    public boolean remove(Reservation reservation) {
+        if (!byStart.remove(reservation.getStart(), reservation)) {
+            return false;
+        }
+        Map.Entry<Long, Reservation> previous = byStart.lowerEntry(reservation.getStart());
+        Map.Entry<Long, Reservation> next = byStart.higherEntry(reservation.getStart());
+        if (previous != null) {
+            removeGap(reservation.getStart() - previous.getValue().getEnd());
+        }
+        if (next != null) {
+            removeGap(next.getKey() - reservation.getEnd());
+        }
+        if (previous != null && next != null) {
+            addGap(next.getKey() - previous.getValue().getEnd());
         }
+        return true;
     }
 
-    @Override
-    public void updateAvailability(VehicleType type, int floorNumber, String spotType, int count) {
-        System.out.println("Availability update: " + type + " on Floor " + floorNumber + " - " + spotType + ": " + count);
-        showAvailability();
+    public boolean contains(Reservation reservation) {
+        return byStart.get(reservation.getStart()) == reservation;
     }
 
-    public void showAvailability() {
-        System.out.println("----- Parking Availability -----");
-        for (Map.Entry<VehicleType, List<ParkingFloor>> entry : parkingLot.getFloors().entrySet()) {
-            VehicleType type = entry.getKey();
-            List<ParkingFloor> floors = entry.getValue();
-            System.out.println("Vehicle Type: " + type);
-            for (ParkingFloor floor : floors) {
-                System.out.println("  Floor " + floor.getFloorNumber() + ":");
-                System.out.println("    Regular Spots: " + floor.getAvailableSpots(false, false));
-                System.out.println("    Handicap Spots: " + floor.getAvailableSpots(true, false));
-                System.out.println("    Reserved Spots: " + floor.getAvailableSpots(false, true));
+    // Drops bookings that ended before `now`; returns how many were removed
+    public int expire(long now) {
+        int removed = 0;
+        Map.Entry<Long, Reservation> first = byStart.firstEntry();
+        while (first != null && first.getValue().getEnd() <= now) {
+            byStart.pollFirstEntry();
+            removed++;
+            Map.Entry<Long, Reservation> next = byStart.firstEntry();
+            if (next != null) {
+                removeGap(next.getKey() - first.getValue().getEnd());
             }
+            first = next;
         }
-        System.out.println("-------------------------------");
+        return removed;
     }
-}
 
-// ParkingLot Class (Singleton)
-class ParkingLot {
-    private static ParkingLot instance;
-    private Map<VehicleType, List<ParkingFloor>> floors = new ConcurrentHashMap<>();
-    private static final ReentrantLock lock = new ReentrantLock();
+    public int size() {
+        return byStart.size();
+    }
 
-    private ParkingLot() {
-        floors.put(VehicleType.CAR, new ArrayList<>());
-        floors.get(VehicleType.CAR).add(new ParkingFloor(VehicleType.CAR, 1, 50, 5, 5));
-        floors.get(VehicleType.CAR).add(new ParkingFloor(VehicleType.CAR, 2, 50, 5, 5));
-        floors.put(VehicleType.BIKE, new ArrayList<>());
-        floors.get(VehicleType.BIKE).add(new ParkingFloor(VehicleType.BIKE, 1, 100, 10, 10));
-        floors.put(VehicleType.HEAVY, new ArrayList<>());
-        floors.get(VehicleType.HEAVY).add(new ParkingFloor(VehicleType.HEAVY, 1, 20, 2, 2));
+    // Start of the first booking; Long.MAX_VALUE with none
+    public long getFirstStart() {
+        return byStart.isEmpty() ? Long.MAX_VALUE : byStart.firstKey();
     }
 
-    public static ParkingLot getInstance() {
-        lock.lock();
-        try {
-            if (instance == null) {
-                instance = new ParkingLot();
-            }
-            return instance;
-        } finally {
-            lock.unlock();
-        }
+    // End of the last booking, after which the spot stays free; Long.MIN_VALUE with none
+    public long getFreeFrom() {
+        return byStart.isEmpty() ? Long.MIN_VALUE : byStart.lastEntry().getValue().getEnd();
     }
 
-    public Map<VehicleType, List<ParkingFloor>> getFloors() {
-        return floors;
+    // Longest free time between two consecutive bookings; 0 with fewer than two
+    public long getLongestGap() {
+        return gaps.isEmpty() ? 0 : gaps.lastKey();
     }
 
-    public void addFloor(VehicleType type, int floorNumber, int capacity, int handicapSpots, int reservedSpots) {
-        floors.computeIfAbsent(type, k -> new ArrayList<>());
-        floors.get(type).add(new ParkingFloor(type, floorNumber, capacity, handicapSpots, reservedSpots));
+    private void addGap(long length) {
+        gaps.merge(length, 1, Integer::sum);
     }
-}
 
-// Enum for Billing Mode
-enum BillingMode {
-    HOURLY, MINUTE
+    private void removeGap(long length) {
+        gaps.computeIfPresent(length, (key, count) -> count == 1 ? null : count - 1);
+    }
 }
 
-// Strategy for Payment Processing
-interface PaymentProcessor {
-    boolean processPayment(double amount);
-}
+// ReservedSpotIndex: segment tree over a floor's reserved spots in proximity order, so finding the
+// closest one free for [from, to) doesn't consult every calendar. Each node keeps, over the
+// calendars below it, the earliest end of a last booking, the latest start of a first booking and
+// the longest gap between two bookings. A subtree where none of the three leaves room for the
+// window is skipped; the calendars that are left are checked exactly, closest first.
+// Guarded by the floor's lock.
+class ReservedSpotIndex {
+    private final int[] slots; // by position
+    private final int leaves;  // a power of two; node i has children 2i and 2i + 1, leaves start here
+    private final long[] freeFrom;
+    private final long[] firstStart;
+    private final long[] gap;
 
-// Concrete Strategies
-class CashPayment implements PaymentProcessor {
-    @Override
-    public boolean processPayment(double amount) {
-        System.out.println("Processing cash payment of $" + String.format("%.2f", amount));
-        return true;
+    ReservedSpotIndex(BitSet reservedSlots) {
+        this.slots = reservedSlots.stream().toArray();
+        int leaves = 1;
+        while (leaves < slots.length) {
+            leaves <<= 1;
+        }
+        this.leaves = leaves;
+        this.freeFrom = new long[2 * leaves];
+        this.firstStart = new long[2 * leaves];
+        this.gap = new long[2 * leaves];
+        // Padding leaves are never free; real ones start with empty calendars
+        Arrays.fill(freeFrom, Long.MAX_VALUE);
+        Arrays.fill(firstStart, Long.MIN_VALUE);
+        Arrays.fill(gap, -1);
+        for (int i = 0; i < slots.length; i++) {
+            freeFrom[leaves + i] = Long.MIN_VALUE;
+            firstStart[leaves + i] = Long.MAX_VALUE;
+            gap[leaves + i] = 0;
+        }
+        for (int node = leaves - 1; node >= 1; node--) {
+            pull(node);
+        }
     }
-}
 
-class CreditCardPayment implements PaymentProcessor {
-    @Override
-    public boolean processPayment(double amount) {
-        System.out.println("Processing credit card payment of $" + String.format("%.2f", amount));
-        return true;
+    // After the calendar of reserved `slot` changed
+    void update(int slot, ReservationCalendar calendar) {
+        int node = leaves + Arrays.binarySearch(slots, slot);
+        freeFrom[node] = calendar.getFreeFrom();
+        firstStart[node] = calendar.getFirstStart();
+        gap[node] = calendar.getLongestGap();
+        for (node >>= 1; node >= 1; node >>= 1) {
+            pull(node);
+        }
     }
-}
 
-class UPIPayment implements PaymentProcessor {
-    @Override
-    public boolean processPayment(double amount) {
-        System.out.println("Processing UPI payment of $" + String.format("%.2f", amount));
-        return true;
+    // Closest slot that may be free for [from, to) and that `isFree` confirms; -1 for none
+    int first(long from, long to, IntPredicate isFree) {
+        return first(1, from, to, isFree);
+    }
+
+    private int first(int node, long from, long to, IntPredicate isFree) {
+        if (freeFrom[node] > from && firstStart[node] < to && gap[node] < to - from) {
+            return -1;
+        }
+        if (node >= leaves) {
+            int slot = slots[node - leaves];
+            return isFree.test(slot) ? slot : -1;
+        }
+        int slot = first(2 * node, from, to, isFree);
+        return slot >= 0 ? slot : first(2 * node + 1, from, to, isFree);
+    }
+
+    private void pull(int node) {
+        freeFrom[node] = Math.min(freeFrom[2 * node], freeFrom[2 * node + 1]);
+        firstStart[node] = Math.max(firstStart[2 * node], firstStart[2 * node + 1]);
+        gap[node] = Math.max(gap[2 * node], gap[2 * node + 1]);
     }
 }
 
-// Payment Class with Billing Strategies
-class Payment {
-    private static final Map<VehicleType, Double> HOURLY_RATES = Map.of(
-        VehicleType.CAR, 10.0,
-        VehicleType.BIKE, 5.0,
-        VehicleType.HEAVY, 20.0
-    );
-    private static final Map<VehicleType, Double> MINUTE_RATES = Map.of(
-        VehicleType.CAR, 0.20,
-        VehicleType.BIKE, 0.10,
-        VehicleType.HEAVY, 0.40
+// SpotLayout: immutable spot metadata (handicap/reserved assignment) shared by every floor with
+// the same shape. Slot i is the spot with proximityIndex i + 1.
+class SpotLayout {
+    private static final Map<List<Integer>, SpotLayout> SHARED = new ConcurrentHashMap<>();
+    // Spot ranges each gate fills first, closest first; other gates and null use the whole floor
+    static final Map<String, int[]> DEFAULT_GATE_RANGES = Map.of(
+        "GATE-1", new int[]{1, 25},
+        "GATE-2", new int[]{26, 50}
     );
+    private final int capacity;
+    private final BitSet handicap;
+    private final BitSet reserved;
+    private final BitSet regular;
+    private final int handicapCount;
+    private final int reservedCount;
+    private final Map<String, int[]> gateRanges;
+
+    SpotLayout(int capacity, BitSet handicap, BitSet reserved) {
+        this(capacity, handicap, reserved, DEFAULT_GATE_RANGES);
+    }
+
+    SpotLayout(int capacity, BitSet handicap, BitSet reserved, Map<String, int[]> gateRanges) {
+        if (handicap.intersects(reserved)) {
+            throw new IllegalArgumentException("A spot cannot be both handicap and reserved.");
+        }
+        this.capacity = capacity;
+        this.handicap = (BitSet) handicap.clone();
+        this.reserved = (BitSet) reserved.clone();
+        this.regular = new BitSet(capacity);
+        regular.set(0, capacity);
+        regular.andNot(handicap);
+        regular.andNot(reserved);
+        this.handicapCount = handicap.cardinality();
+        this.reservedCount = reserved.cardinality();
+        this.gateRanges = gateRanges == DEFAULT_GATE_RANGES ? gateRanges : Map.copyOf(gateRanges);
+    }
+
+    // Closest spots are handicap, then reserved, then regular, as ParkingFloor has always laid them out
+    public static SpotLayout of(int capacity, int handicapSpots, int reservedSpots) {
+        return SHARED.computeIfAbsent(List.of(capacity, handicapSpots, reservedSpots), key -> {
+            int handicapEnd = Math.min(handicapSpots, capacity);
+            int reservedEnd = Math.min(handicapSpots + reservedSpots, capacity);
+            BitSet handicap = new BitSet(capacity);
+            handicap.set(0, handicapEnd);
+            BitSet reserved = new BitSet(capacity);
+            reserved.set(handicapEnd, reservedEnd);
+            return new SpotLayout(capacity, handicap, reserved);
+        });
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getHandicapCount() {
+        return handicapCount;
+    }
+
+    public int getReservedCount() {
+        return reservedCount;
+    }
+
+    public boolean isHandicap(int slot) {
+        return handicap.get(slot);
+    }
+
+    public boolean isReserved(int slot) {
+        return reserved.get(slot);
+    }
+
+    // {first, last} proximity indexes the gate prefers, or null if it has no preference here
+    public int[] gateRange(String gateId) {
+        return gateId == null ? null : gateRanges.get(gateId);
+    }
+
+    BitSet copyHandicapMask() {
+        return (BitSet) handicap.clone();
+    }
+
+    BitSet copyReservedMask() {
+        return (BitSet) reserved.clone();
+    }
+
+    BitSet copyRegularMask() {
+        return (BitSet) regular.clone();
+    }
+}
+
+// LayoutCompiler: turns a site's layout file into the binary image LotImage maps. The file lists
+// floors, each followed by its handicap and reserved spots and its gates' preferred spot ranges:
+//
+//   # comment
+//   floor CAR 1 500
+//     handicap 1-10
+//     reserved 11-30, 45
+//     gate GATE-1 1-250
+//
+// Spot numbers are proximity indexes: spot 1 is the closest to the floor's entrance. Floors without
+// gate lines get the default gate ranges.
+class LayoutCompiler {
+    static final int MAGIC = 0x504C4F54; // "PLOT"
+    static final short VERSION = 1;
+
+    public static void compile(Path source, Path image) throws IOException {
+        Files.write(image, compile(Files.readAllLines(source, StandardCharsets.UTF_8)));
+    }
+
+    public static byte[] compile(List<String> lines) {
+        List<FloorSpec> floors = new ArrayList<>();
+        Set<String> floorKeys = new HashSet<>();
+        FloorSpec current = null;
+        for (int n = 0; n < lines.size(); n++) {
+            String line = lines.get(n);
+            int comment = line.indexOf('#');
+            String[] words = (comment >= 0 ? line.substring(0, comment) : line).trim().split("\\s+", 3);
+            if (words[0].isEmpty()) {
+                continue;
+            }
+            try {
+                switch (words[0]) {
+                    case "floor":
+                        String[] args = words.length == 3 ? words[2].split("\\s+") : new String[0];
+                        if (args.length != 2) {
+                            throw new IllegalArgumentException("expected: floor <type> <number> <capacity>");
+                        }
+                        current = new FloorSpec(VehicleType.valueOf(words[1]), Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+                        if (current.capacity <= 0) {
+                            throw new IllegalArgumentException("capacity must be positive");
+                        }
+                        if (!floorKeys.add(current.type + "/" + current.floorNumber)) {
+                            throw new IllegalArgumentException(current.type + " floor " + current.floorNumber + " is listed twice");
+                        }
+                        floors.add(current);
+                        break;
+                    case "handicap":
+                    case "reserved":
+                        if (current == null) {
+                            throw new IllegalArgumentException(words[0] + " before any floor");
+                        }
+                        BitSet mask = words[0].equals("handicap") ? current.handicap : current.reserved;
+                        for (String range : String.join(" ", Arrays.copyOfRange(words, 1, words.length)).split("[,\\s]+")) {
+                            int[] bounds = parseRange(range, current.capacity);
+                            mask.set(bounds[0] - 1, bounds[1]);
+                        }
+                        if (current.handicap.intersects(current.reserved)) {
+                            throw new IllegalArgumentException("a spot cannot be both handicap and reserved");
+                        }
+                        break;
+                    case "gate":
+                        if (current == null) {
+                            throw new IllegalArgumentException("gate before any floor");
+                        }
+                        if (words.length != 3) {
+                            throw new IllegalArgumentException("expected: gate <gate id> <first>-<last>");
+                        }
+                        if (current.gates.put(words[1], parseRange(words[2], current.capacity)) != null) {
+                            throw new IllegalArgumentException("gate " + words[1] + " is listed twice");
+                        }
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown directive '" + words[0] + "'");
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Layout line " + (n + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        if (floors.isEmpty()) {
+            throw new IllegalArgumentException("Layout has no floors.");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(10).putInt(MAGIC).putShort(VERSION).putInt(floors.size());
+        bytes.write(header.array(), 0, header.position());
+        for (FloorSpec floor : floors) {
+            byte[] encoded = floor.encode();
+            bytes.write(encoded, 0, encoded.length);
+        }
+        return bytes.toByteArray();
+    }
+
+    // "7" or "7-12", within 1..capacity
+    private static int[] parseRange(String range, int capacity) {
+        int dash = range.indexOf('-');
+        int first = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+        int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1));
+        if (first < 1 || last < first || last > capacity) {
+            throw new IllegalArgumentException("spot range " + range + " is outside 1-" + capacity);
+        }
+        return new int[]{first, last};
+    }
+
+    private static class FloorSpec {
+        final VehicleType type;
+        final int floorNumber;
+        final int capacity;
+        final BitSet handicap = new BitSet();
+        final BitSet reserved = new BitSet();
+        final Map<String, int[]> gates = new LinkedHashMap<>();
+
+        FloorSpec(VehicleType type, int floorNumber, int capacity) {
+            this.type = type;
+            this.floorNumber = floorNumber;
+            this.capacity = capacity;
+        }
+
+        // [type][int floorNumber][int capacity][short gates]{[gate id][int first][int last]}
+        // [int words][long[words] handicap][long[words] reserved]; strings are a short length + UTF-8
+        byte[] encode() {
+            int words = (capacity + 63) / 64;
+            ByteBuffer out = ByteBuffer.allocate(64 + gates.size() * 64 + words * 16);
+            putName(out, type.name());
+            out.putInt(floorNumber).putInt(capacity).putShort((short) gates.size());
+            for (Map.Entry<String, int[]> gate : gates.entrySet()) {
+                putName(out, gate.getKey());
+                out.putInt(gate.getValue()[0]).putInt(gate.getValue()[1]);
+            }
+            out.putInt(words);
+            long[] handicapWords = Arrays.copyOf(handicap.toLongArray(), words);
+            long[] reservedWords = Arrays.copyOf(reserved.toLongArray(), words);
+            out.asLongBuffer().put(handicapWords).put(reservedWords);
+            out.position(out.position() + words * 16);
+            return Arrays.copyOf(out.array(), out.position());
+        }
+
+        private static void putName(ByteBuffer out, String name) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            if (bytes.length > 40) {
+                throw new IllegalArgumentException("name too long: " + name);
+            }
+            out.putShort((short) bytes.length).put(bytes);
+        }
+    }
+}
+
+// LotImage: a compiled layout, memory-mapped. Opening only walks the floor headers; a floor's spot
+// masks are read when it is loaded into a lot, straight into the SpotLayout, and its spots are
+// created only as they are handed out.
+class LotImage {
+    private final MappedByteBuffer image;
+    private final int[] floorOffsets;
+
+    private LotImage(MappedByteBuffer image) {
+        this.image = image;
+        try {
+            if (image.getInt(0) != LayoutCompiler.MAGIC) {
+                throw new IllegalArgumentException("Not a lot layout image.");
+            }
+            if (image.getShort(4) != LayoutCompiler.VERSION) {
+                throw new IllegalArgumentException("Unsupported layout image version " + image.getShort(4) + ".");
+            }
+            this.floorOffsets = new int[image.getInt(6)];
+            ByteBuffer cursor = image.duplicate().position(10);
+            for (int i = 0; i < floorOffsets.length; i++) {
+                floorOffsets[i] = cursor.position();
+                skipName(cursor);
+                cursor.position(cursor.position() + 8);
+                int gates = cursor.getShort();
+                for (int g = 0; g < gates; g++) {
+                    skipName(cursor);
+                    cursor.position(cursor.position() + 8);
+                }
+                int words = cursor.getInt();
+                cursor.position(cursor.position() + words * 16);
+            }
+        } catch (IndexOutOfBoundsException | BufferUnderflowException truncated) {
+            throw new IllegalArgumentException("Layout image is truncated.", truncated);
+        }
+    }
+
+    public static LotImage map(Path image) throws IOException {
+        try (FileChannel channel = FileChannel.open(image, StandardOpenOption.READ)) {
+            return new LotImage(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    public int getFloorCount() {
+        return floorOffsets.length;
+    }
+
+    // Adds every floor of the image to `lot`
+    public void loadInto(ParkingLot lot) {
+        for (int i = 0; i < floorOffsets.length; i++) {
+            ByteBuffer floor = image.duplicate().position(floorOffsets[i]);
+            VehicleType type = VehicleType.valueOf(getName(floor));
+            int floorNumber = floor.getInt();
+            int capacity = floor.getInt();
+            int gates = floor.getShort();
+            Map<String, int[]> gateRanges = gates == 0 ? SpotLayout.DEFAULT_GATE_RANGES : new HashMap<>();
+            for (int g = 0; g < gates; g++) {
+                String gateId = getName(floor);
+                gateRanges.put(gateId, new int[]{floor.getInt(), floor.getInt()});
+            }
+            int words = floor.getInt();
+            LongBuffer masks = floor.asLongBuffer();
+            BitSet handicap = BitSet.valueOf(masks.slice(0, words));
+            BitSet reserved = BitSet.valueOf(masks.slice(words, words));
+            lot.addFloor(type, floorNumber, new SpotLayout(capacity, handicap, reserved, gateRanges));
+        }
+    }
+
+    private static String getName(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort()];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skipName(ByteBuffer in) {
+        int length = in.getShort();
+        in.position(in.position() + length);
+    }
+}
+
+// SpotLease: a batch of free spots a floor has set aside for one entry gate, which hands them out
+// without touching the floor's lock. The floor can take back whatever is left at any time; the
+// shared cursor decides, spot by spot, whether the gate or the floor got there first.
+class SpotLease {
+    private final ParkingFloor floor;
+    private final ParkingSpot[] spots;
+    private final AtomicInteger next = new AtomicInteger();
+    private final long expiresAt;
+    private int synced; // spots before this one are out of the floor's leasedSpots; guarded by the floor's lock
+
+    SpotLease(ParkingFloor floor, ParkingSpot[] spots, long expiresAt) {
+        this.floor = floor;
+        this.spots = spots;
+        this.expiresAt = expiresAt;
+    }
+
+    public ParkingFloor getFloor() {
+        return floor;
+    }
+
+    // Next leased spot, or null once the lease is used up or taken back
+    public ParkingSpot take() {
+        int i = next.getAndIncrement();
+        if (i >= spots.length) {
+            return null;
+        }
+        floor.leasedSpotTaken();
+        return spots[i];
+    }
+
+    public boolean isExpired(long nowMillis) {
+        return nowMillis >= expiresAt;
+    }
+
+    boolean isUsedUp() {
+        return next.get() >= spots.length;
+    }
+
+    // Ends the lease for the gate; returns the index of the first spot it never handed out
+    int revoke() {
+        return Math.min(next.getAndSet(spots.length), spots.length);
+    }
+
+    ParkingSpot[] getSpots() {
+        return spots;
+    }
+
+    // How many spots the gate has handed out so far
+    int handedOut() {
+        return Math.min(next.get(), spots.length);
+    }
+
+    int getSynced() {
+        return synced;
+    }
+
+    void setSynced(int synced) {
+        this.synced = synced;
+    }
+}
+
+// FloorSpatialIndex: where a floor's spots are (metres, on the floor plan) and which of them are
+// free, on a uniform grid of square cells. The floor keeps the free bits and per-cell and per-aisle
+// free counts current from occupy/free while it holds its lock; queries read them without any lock,
+// so navigation apps and guidance signs never hold up a gate (and may see a change a moment late).
+// Spots don't move, so a grid sized to a few spots per cell suits them better than a tree: a query
+// only visits the cells around the point.
+class FloorSpatialIndex {
+    private final int capacity;
+    private final float[] x;
+    private final float[] y;
+    private final int[] aisles; // by slot, -1 for none
+    private final double cellMeters;
+    private final double minX;
+    private final double minY;
+    private final int columns;
+    private final int rows;
+    private final int[] cellStart; // slots of cell c are cellSlots[cellStart[c], cellStart[c + 1])
+    private final int[] cellSlots;
+    private final int[] cellOf;
+    // Written only by the owning floor under its lock, with release stores; read with acquire loads
+    private final AtomicLongArray free;
+    private final AtomicIntegerArray cellFree; // [category + 1][cell], [0][cell] for any category
+    private final AtomicIntegerArray aisleFree;
+    private byte[] categories; // SpotCategory ordinal by slot, from the floor's layout
+    private boolean attached;
+
+    private FloorSpatialIndex(int capacity, float[] x, float[] y, int[] aisles, double cellMeters) {
+        this.capacity = capacity;
+        this.x = x;
+        this.y = y;
+        this.aisles = aisles;
+        this.cellMeters = cellMeters;
+        double minX = Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        int maxAisle = -1;
+        for (int slot = 0; slot < capacity; slot++) {
+            minX = Math.min(minX, x[slot]);
+            minY = Math.min(minY, y[slot]);
+            maxX = Math.max(maxX, x[slot]);
+            maxY = Math.max(maxY, y[slot]);
+            maxAisle = Math.max(maxAisle, aisles[slot]);
+        }
+        this.minX = minX;
+        this.minY = minY;
+        this.columns = (int) ((maxX - minX) / cellMeters) + 1;
+        this.rows = (int) ((maxY - minY) / cellMeters) + 1;
+        this.cellOf = new int[capacity];
+        this.cellStart = new int[columns * rows + 1];
+        for (int slot = 0; slot < capacity; slot++) {
+            cellOf[slot] = cell(column(x[slot]), row(y[slot]));
+            cellStart[cellOf[slot] + 1]++;
+        }
+        for (int c = 0; c < columns * rows; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        this.cellSlots = new int[capacity];
+        int[] next = Arrays.copyOf(cellStart, columns * rows);
+        for (int slot = 0; slot < capacity; slot++) {
+            cellSlots[next[cellOf[slot]]++] = slot;
+        }
+        this.free = new AtomicLongArray((capacity + 63) >>> 6);
+        this.cellFree = new AtomicIntegerArray((SpotCategory.values().length + 1) * columns * rows);
+        this.aisleFree = new AtomicIntegerArray(maxAisle + 1);
+    }
+
+    // Positions of every spot of a floor, spot by spot or a row at a time
+    static class Builder {
+        private final int capacity;
+        private final double cellMeters;
+        private final float[] x;
+        private final float[] y;
+        private final int[] aisles;
+        private final BitSet placed;
+
+        public Builder(int capacity, double cellMeters) {
+            if (capacity <= 0 || cellMeters <= 0) {
+                throw new IllegalArgumentException("Capacity and cell size must be positive.");
+            }
+            this.capacity = capacity;
+            this.cellMeters = cellMeters;
+            this.x = new float[capacity];
+            this.y = new float[capacity];
+            this.aisles = new int[capacity];
+            this.placed = new BitSet(capacity);
+        }
+
+        public Builder place(int proximityIndex, double x, double y, int aisle) {
+            if (proximityIndex < 1 || proximityIndex > capacity) {
+                throw new IllegalArgumentException("Spot " + proximityIndex + " is not on a floor of " + capacity + " spots.");
+            }
+            if (aisle < -1) {
+                throw new IllegalArgumentException("Aisle must be -1 (none) or a number from 0.");
+            }
+            int slot = proximityIndex - 1;
+            this.x[slot] = (float) x;
+            this.y[slot] = (float) y;
+            this.aisles[slot] = aisle;
+            placed.set(slot);
+            return this;
+        }
+
+        // Spots first..last of `aisle` in a line from (x, y), `dx`/`dy` metres apart
+        public Builder row(int aisle, int first, int last, double x, double y, double dx, double dy) {
+            for (int i = first; i <= last; i++) {
+                place(i, x + (i - first) * dx, y + (i - first) * dy, aisle);
+            }
+            return this;
+        }
+
+        public FloorSpatialIndex build() {
+            if (placed.cardinality() != capacity) {
+                throw new IllegalArgumentException("Spot " + (placed.nextClearBit(0) + 1) + " has no position.");
+            }
+            return new FloorSpatialIndex(capacity, x.clone(), y.clone(), aisles.clone(), cellMeters);
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getAisleCount() {
+        return aisleFree.length();
+    }
+
+    public int getFreeInAisle(int aisle) {
+        return aisleFree.getAcquire(aisle);
+    }
+
+    // Up to k free spots nearest to (x, y), nearest first, as proximity indexes; `category` null for any
+    public int[] nearestFree(double px, double py, int k, SpotCategory category) {
+        if (k <= 0) {
+            return new int[0];
+        }
+        // Best k so far, kept sorted by distance
+        double[] bestDistance = new double[k];
+        int[] bestSlot = new int[k];
+        int found = 0;
+        int column = clamp(column(px), columns);
+        int row = clamp(row(py), rows);
+        int rings = Math.max(Math.max(column, columns - 1 - column), Math.max(row, rows - 1 - row));
+        for (int ring = 0; ring <= rings; ring++) {
+            // A cell `ring` cells away is at least ring - 1 cells' width from the point (or its
+            // projection onto the grid, which is no farther from any spot)
+            double bound = Math.max(0, ring - 1) * cellMeters;
+            if (found == k && bound * bound > bestDistance[k - 1]) {
+                break;
+            }
+            for (int r = row - ring; r <= row + ring; r++) {
+                if (r < 0 || r >= rows) {
+                    continue;
+                }
+                boolean edgeRow = r == row - ring || r == row + ring;
+                for (int c = column - ring; c <= column + ring; c += edgeRow ? 1 : 2 * ring) {
+                    if (c >= 0 && c < columns) {
+                        found = scanCell(cell(c, r), px, py, category, bestDistance, bestSlot, found, k);
+                    }
+                    if (ring == 0) {
+                        break;
+                    }
+                }
+            }
+        }
+        int[] nearest = new int[found];
+        for (int i = 0; i < found; i++) {
+            nearest[i] = bestSlot[i] + 1;
+        }
+        return nearest;
+    }
+
+    // Every free spot within `radius` metres of (x, y), nearest first, as proximity indexes
+    public int[] freeWithin(double px, double py, double radius, SpotCategory category) {
+        int fromColumn = clamp(column(px - radius), columns);
+        int toColumn = clamp(column(px + radius), columns);
+        int fromRow = clamp(row(py - radius), rows);
+        int toRow = clamp(row(py + radius), rows);
+        double limit = radius * radius;
+        long[] hits = new long[16]; // {distance bits, slot} pairs, sortable as longs
+        int found = 0;
+        for (int r = fromRow; r <= toRow; r++) {
+            for (int c = fromColumn; c <= toColumn; c++) {
+                int cell = cell(c, r);
+                if (freeInCell(cell, category) == 0) {
+                    continue;
+                }
+                for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+                    int slot = cellSlots[i];
+                    if (!isFree(slot, category)) {
+                        continue;
+                    }
+                    double distance = distanceSquared(slot, px, py);
+                    if (distance <= limit) {
+                        if (found == hits.length) {
+                            hits = Arrays.copyOf(hits, found * 2);
+                        }
+                        // Non-negative doubles order the same as their bits; a float's worth of
+                        // distance in the high half leaves the low half for the slot
+                        hits[found++] = ((long) Float.floatToIntBits((float) distance) << 32) | slot;
+                    }
+                }
+            }
+        }
+        Arrays.sort(hits, 0, found);
+        int[] within = new int[found];
+        for (int i = 0; i < found; i++) {
+            within[i] = (int) hits[i] + 1;
+        }
+        return within;
+    }
+
+    // Called by the floor, under its lock, when the index is attached
+    void attach(SpotLayout layout, BitSet freeSlots) {
+        if (attached) {
+            throw new IllegalStateException("Spatial index is already attached to a floor.");
+        }
+        if (layout.getCapacity() != capacity) {
+            throw new IllegalArgumentException("Spatial index is for " + capacity + " spots, the floor has " + layout.getCapacity() + ".");
+        }
+        attached = true;
+        categories = new byte[capacity];
+        for (int slot = 0; slot < capacity; slot++) {
+            SpotCategory category = layout.isHandicap(slot) ? SpotCategory.HANDICAP : layout.isReserved(slot) ? SpotCategory.RESERVED : SpotCategory.REGULAR;
+            categories[slot] = (byte) category.ordinal();
+        }
+        for (int slot = freeSlots.nextSetBit(0); slot >= 0; slot = freeSlots.nextSetBit(slot + 1)) {
+            freed(slot);
+        }
+    }
+
+    // Floor lock held: the floor is the only writer, so plain read-then-release-store suffices
+    void taken(int slot) {
+        int word = slot >>> 6;
+        free.setRelease(word, free.get(word) & ~(1L << slot));
+        adjust(slot, -1);
+    }
+
+    void freed(int slot) {
+        int word = slot >>> 6;
+        free.setRelease(word, free.get(word) | (1L << slot));
+        adjust(slot, 1);
+    }
+
+    private void adjust(int slot, int delta) {
+        int any = cellOf[slot];
+        int byCategory = (categories[slot] + 1) * columns * rows + cellOf[slot];
+        cellFree.setRelease(any, cellFree.get(any) + delta);
+        cellFree.setRelease(byCategory, cellFree.get(byCategory) + delta);
+        if (aisles[slot] >= 0) {
+            aisleFree.setRelease(aisles[slot], aisleFree.get(aisles[slot]) + delta);
+        }
+    }
+
+    private int scanCell(int cell, double px, double py, SpotCategory category, double[] bestDistance, int[] bestSlot, int found, int k) {
+        if (freeInCell(cell, category) == 0 || (found == k && cellDistanceSquared(cell, px, py) > bestDistance[k - 1])) {
+            return found;
+        }
+        for (int i = cellStart[cell]; i < cellStart[cell + 1]; i++) {
+            int slot = cellSlots[i];
+            if (!isFree(slot, category)) {
+                continue;
+            }
+            double distance = distanceSquared(slot, px, py);
+            if (found == k && distance >= bestDistance[k - 1]) {
+                continue;
+            }
+            int at = found == k ? k - 1 : found++;
+            while (at > 0 && bestDistance[at - 1] > distance) {
+                bestDistance[at] = bestDistance[at - 1];
+                bestSlot[at] = bestSlot[at - 1];
+                at--;
+            }
+            bestDistance[at] = distance;
+            bestSlot[at] = slot;
+        }
+        return found;
+    }
+
+    private int freeInCell(int cell, SpotCategory category) {
+        return cellFree.getAcquire(category == null ? cell : (category.ordinal() + 1) * columns * rows + cell);
+    }
+
+    private boolean isFree(int slot, SpotCategory category) {
+        return (free.getAcquire(slot >>> 6) & (1L << slot)) != 0 && (category == null || categories[slot] == category.ordinal());
+    }
+
+    private double distanceSquared(int slot, double px, double py) {
+        double dx = x[slot] - px;
+        double dy = y[slot] - py;
+        return dx * dx + dy * dy;
+    }
+
+    // From the point to the nearest edge of the cell, 0 if inside
+    private double cellDistanceSquared(int cell, double px, double py) {
+        double left = minX + (cell % columns) * cellMeters;
+        double bottom = minY + (cell / columns) * cellMeters;
+        double dx = Math.max(0, Math.max(left - px, px - (left + cellMeters)));
+        double dy = Math.max(0, Math.max(bottom - py, py - (bottom + cellMeters)));
+        return dx * dx + dy * dy;
+    }
+
+    private int column(double px) {
+        return (int) Math.floor((px - minX) / cellMeters);
+    }
+
+    private int row(double py) {
+        return (int) Math.floor((py - minY) / cellMeters);
+    }
+
+    private int cell(int column, int row) {
+        return row * columns + column;
+    }
+
+    private static int clamp(int value, int size) {
+        return Math.max(0, Math.min(size - 1, value));
+    }
+}
+
+// ParkingFloor Class
+class ParkingFloor {
+    private VehicleType type;
+    private final ParkingSpot[] spots; // created on first use, see spotAt
+    private final SpotLayout layout;
+    private final ParkingFactory factory;
+    private int floorNumber;
+    private int capacity;
+    private int occupiedCount;
+    private volatile boolean draining;
+    private final ReentrantLock lock = new ReentrantLock();
+    private List<ParkingObserver> observers = new CopyOnWriteArrayList<>();
+    // Free-spot index: bit (proximityIndex - 1) is set while that spot is free
+    private final BitSet freeSpots;
+    private final BitSet freeHandicapSpots;
+    private final BitSet freeReservedSpots;
+    private final BitSet freeRegularSpots; // neither handicap nor reserved; the only spots lent to other vehicle types
+    private int freeHandicapCount;
+    private int freeReservedCount;
+    private int freeRegularCount;
+    // Booking calendars for reserved spots, by proximityIndex - 1; null for other spots
+    private final ReservationCalendar[] calendars;
+    private final BitSet reservedSlots;
+    private final ReservedSpotIndex reservedIndex;
+    private int bookingCount; // bookings on the calendars, including ended ones not yet expired
+    // Spots a sensor reports occupied although no ticket holds them; kept out of the free index
+    private final BitSet sensorHeldSpots;
+    private int sensorHeldCount;
+    private volatile long reservationLeadMillis = Duration.ofHours(2).toMillis();
+    private volatile ParkingWaitlist waitlist; // set by the lot; freed spots go to its waiters first
+    private volatile ParkingClock clock = ParkingClock.system(); // set by the lot
+    // Flat combining: allocations are published here and served in batches by whichever gate gets the lock
+    private volatile boolean flatCombining;
+    private AtomicReferenceArray<CombinedRequest> combining; // created under the lock when first enabled, never replaced
+    private final AtomicInteger combiningPending = new AtomicInteger(); // lets an idle array go unscanned
+    // Spots ranked by distance from each gate of the lot's GarageGraph, by gate index; null for gates
+    // with no ranking here. Their free bits are kept in step with freeSpots.
+    private GateRanking[] gateRankings = new GateRanking[0];
+    private FloorSpatialIndex spatialIndex; // set under the lock; kept current by markTaken/markFree
+    // Spot leases held by entry gates. Leased spots are occupied in the floor's own books but count
+    // as available everywhere counts are reported, until a gate hands them out (SpotLease.take).
+    private final List<SpotLease> leases = new ArrayList<>();
+    private final AtomicInteger leasedUnused = new AtomicInteger();
+    // Leased spots no gate has handed out yet. SpotLease.take doesn't take the lock, so spots handed
+    // out are cleared lazily (syncLeases) before anything reads or re-leases them.
+    private final BitSet leasedSpots;
+    // Counts republished after every change for lock-free readers. availabilityVersion is a seqlock:
+    // odd while the published copies are being rewritten, bumped twice per publish. Leases granted or
+    // returned change leasedUnused inside that window; a gate handing out a leased spot only
+    // decrements it, so readers also compare leasedUnused (see ParkingLot.getAvailability).
+    private volatile long availabilityVersion;
+    private int publishedAvailable;
+    private int publishedHandicap;
+    private int publishedReserved;
+    private int publishedRegular;
+    private int publishedOccupied;
+
+    public ParkingFloor(VehicleType type, int floorNumber, int capacity, int handicapSpots, int reservedSpots) {
+        this(type, floorNumber, SpotLayout.of(capacity, handicapSpots, reservedSpots));
+    }
+
+    public ParkingFloor(VehicleType type, int floorNumber, SpotLayout layout) {
+        this.type = type;
+        this.floorNumber = floorNumber;
+        this.layout = layout;
+        this.capacity = layout.getCapacity();
+        this.factory = ParkingFactoryProvider.getFactory(type);
+        this.spots = new ParkingSpot[capacity];
+        // The free index starts as copies of the shared layout masks instead of being built spot by spot
+        this.freeSpots = new BitSet(capacity);
+        freeSpots.set(0, capacity);
+        this.freeHandicapSpots = layout.copyHandicapMask();
+        this.freeReservedSpots = layout.copyReservedMask();
+        this.freeRegularSpots = layout.copyRegularMask();
+        this.freeHandicapCount = layout.getHandicapCount();
+        this.freeReservedCount = layout.getReservedCount();
+        this.freeRegularCount = capacity - freeHandicapCount - freeReservedCount;
+        this.calendars = new ReservationCalendar[capacity];
+        this.reservedSlots = layout.copyReservedMask();
+        this.reservedIndex = new ReservedSpotIndex(reservedSlots);
+        this.sensorHeldSpots = new BitSet(capacity);
+        this.leasedSpots = new BitSet(capacity);
+        for (int slot = reservedSlots.nextSetBit(0); slot >= 0; slot = reservedSlots.nextSetBit(slot + 1)) {
+            calendars[slot] = new ReservationCalendar();
+        }
+        publishAvailability();
+    }
+
+    public VehicleType getType() {
+        return type;
+    }
+
+    public int getFloorNumber() {
+        return floorNumber;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public ParkingSpot getSpot(int proximityIndex) {
+        lock.lock();
+        try {
+            return spotAt(proximityIndex - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public SpotLayout getLayout() {
+        return layout;
+    }
+
+    // Reserved spots booked to start within this lead time are held back from walk-in traffic
+    public void setReservationLeadTime(Duration lead) {
+        this.reservationLeadMillis = lead.toMillis();
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    void setWaitlist(ParkingWaitlist waitlist) {
+        this.waitlist = waitlist;
+    }
+
+    // Called by GarageGraph with this floor's distance (or UNREACHABLE) from gate `gate`, by slot
+    void setGateRanking(int gate, int[] distances) {
+        long[] keys = new long[distances.length];
+        int reachable = 0;
+        for (int slot = 0; slot < distances.length; slot++) {
+            if (distances[slot] != GarageGraph.UNREACHABLE) {
+                keys[reachable++] = ((long) distances[slot] << 32) | slot;
+            }
+        }
+        Arrays.sort(keys, 0, reachable);
+        GateRanking ranking = new GateRanking(distances, reachable);
+        for (int rank = 0; rank < reachable; rank++) {
+            int slot = (int) keys[rank];
+            ranking.rankToSlot[rank] = slot;
+            ranking.slotToRank[slot] = rank;
+        }
+        lock.lock();
+        try {
+            for (int rank = 0; rank < reachable; rank++) {
+                if (freeSpots.get(ranking.rankToSlot[rank])) {
+                    ranking.free.set(rank);
+                }
+            }
+            if (gate >= gateRankings.length) {
+                gateRankings = Arrays.copyOf(gateRankings, gate + 1);
+            }
+            gateRankings[gate] = ranking;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Distance from the gate to its nearest free, unbooked spot here, or UNREACHABLE
+    public int nearestFreeDistance(int gate) {
+        lock.lock();
+        try {
+            if (draining || gate >= gateRankings.length || gateRankings[gate] == null) {
+                return GarageGraph.UNREACHABLE;
+            }
+            int slot = nearestFreeSlot(gateRankings[gate]);
+            return slot < 0 ? GarageGraph.UNREACHABLE : gateRankings[gate].distances[slot];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ParkingSpot allocateNearest(int gate) {
+        lock.lock();
+        try {
+            if (draining || gate >= gateRankings.length || gateRankings[gate] == null) {
+                return null;
+            }
+            int slot = nearestFreeSlot(gateRankings[gate]);
+            if (slot < 0) {
+                return null;
+            }
+            ParkingSpot spot = spotAt(slot);
+            occupy(spot);
+            publishAvailability();
+            return spot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int nearestFreeSlot(GateRanking ranking) {
+        long now = clock.millis();
+        long heldUntil = now + reservationLeadMillis;
+        for (int rank = ranking.free.nextSetBit(0); rank >= 0; rank = ranking.free.nextSetBit(rank + 1)) {
+            int slot = ranking.rankToSlot[rank];
+            if (calendars[slot] == null || calendars[slot].isFree(now, heldUntil)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private static class GateRanking {
+        final int[] distances;
+        final int[] rankToSlot;
+        final int[] slotToRank; // -1 for spots the gate can't reach
+        final BitSet free;      // by rank
+
+        GateRanking(int[] distances, int reachable) {
+            this.distances = distances;
+            this.rankToSlot = new int[reachable];
+            this.slotToRank = new int[distances.length];
+            Arrays.fill(slotToRank, -1);
+            this.free = new BitSet(reachable);
+        }
+    }
+
+    void setClock(ParkingClock clock) {
+        this.clock = clock;
+    }
+
+    ParkingClock getClock() {
+        return clock;
+    }
+
+    // Spot positions for nearest-free and per-aisle queries; the index takes the current free spots
+    // now and follows every occupy and free from then on. Leased and sensor-held spots count as taken.
+    public void setSpatialIndex(FloorSpatialIndex index) {
+        lock.lock();
+        try {
+            index.attach(layout, freeSpots);
+            this.spatialIndex = index;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public FloorSpatialIndex getSpatialIndex() {
+        lock.lock();
+        try {
+            return spatialIndex;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // With flat combining on, allocateSpot publishes each request to the combining array instead of
+    // queueing on the lock; the gate that gets the lock serves every published request in one hold
+    public void setFlatCombining(boolean enabled) {
+        if (enabled && combining == null) {
+            lock.lock();
+            try {
+                if (combining == null) {
+                    combining = new AtomicReferenceArray<>(64);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        this.flatCombining = enabled;
+    }
+
+    public boolean isFlatCombining() {
+        return flatCombining;
+    }
+
+    public int getOccupiedSpots() {
+        lock.lock();
+        try {
+            return occupiedCount - leasedUnused.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Bookings still on this floor's calendars, including ended ones not yet expired
+    public int getBookingCount() {
+        lock.lock();
+        try {
+            return bookingCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stops new entries; cars already parked can still leave. Taking the lock means no
+    // allocation that started before the drain can complete after it.
+    public void drain() {
+        lock.lock();
+        try {
+            draining = true;
+            publishAvailability(-reclaimLeases(false, new ArrayList<>())); // no hand-offs while draining
+        } finally {
+            lock.unlock();
+        }
+        notifyStatus("Draining");
+    }
+
+    public void reopen() {
+        lock.lock();
+        try {
+            draining = false;
+            publishAvailability();
+        } finally {
+            lock.unlock();
+        }
+        notifyStatus("Reopened");
+    }
+
+    public boolean isDrained() {
+        lock.lock();
+        try {
+            return draining && occupiedCount == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void addObserver(ParkingObserver observer) {
+        observers.add(observer);
+    }
+
+    public void notifyObservers(String spotType, int count) {
+        for (ParkingObserver observer : observers) {
+            observer.updateAvailability(type, floorNumber, spotType, count);
+        }
+    }
+
+    private void notifyStatus(String status) {
+        int occupied = getOccupiedSpots();
+        for (ParkingObserver observer : observers) {
+            observer.floorStatusChanged(type, floorNumber, status, occupied);
+        }
+    }
+
+    public ParkingSpot findAvailableSpot(boolean needsHandicap, boolean needsReserved, boolean hasHandicapPermit, boolean hasReservation, String gateId) {
+        lock.lock();
+        try {
+            checkEntitlement(needsHandicap, needsReserved, hasHandicapPermit, hasReservation);
+            if (needsHandicap && needsReserved) {
+                return null; // no spot is both handicap and reserved
+            }
+            BitSet index = indexFor(needsHandicap, needsReserved);
+            int[] range = layout.gateRange(gateId);
+            long now = clock.millis();
+            long heldUntil = now + reservationLeadMillis;
+            // Bits are in proximity order, so the first usable free bit in range is the closest spot
+            int slot = nextUnbooked(index, range == null ? 0 : range[0] - 1, now, heldUntil);
+            if (slot < 0 || (range != null && slot >= range[1])) {
+                slot = nextUnbooked(index, 0, now, heldUntil);
+            }
+            return slot < 0 ? null : spotAt(slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void checkEntitlement(boolean needsHandicap, boolean needsReserved, boolean hasHandicapPermit, boolean hasReservation) {
+        if (needsHandicap && !hasHandicapPermit) {
+            throw new IllegalArgumentException("Handicap permit required for handicap spot.");
+        }
+        if (needsReserved && !hasReservation) {
+            throw new IllegalArgumentException("Reservation required for reserved spot.");
+        }
+    }
+
+    private int nextUnbooked(BitSet index, int from, long now, long heldUntil) {
+        int slot = index.nextSetBit(from);
+        while (slot >= 0 && calendars[slot] != null && !calendars[slot].isFree(now, heldUntil)) {
+            slot = index.nextSetBit(slot + 1);
+        }
+        return slot;
+    }
+
+    // Closest reserved spot on this floor with no booking overlapping [from, to)
+    public ParkingSpot findReservableSpot(long from, long to) {
+        lock.lock();
+        try {
+            long now = clock.millis();
+            int slot = reservedIndex.first(from, to, candidate -> {
+                expire(candidate, now);
+                return calendars[candidate].isFree(from, to);
+            });
+            return slot < 0 ? null : spotAt(slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Reservation book(String licensePlate, long from, long to) {
+        lock.lock();
+        try {
+            ParkingSpot spot = findReservableSpot(from, to);
+            if (spot == null) {
+                return null;
+            }
+            int slot = spot.getProximityIndex() - 1;
+            Reservation reservation = new Reservation(licensePlate, spot, from, to);
+            calendars[slot].add(reservation);
+            bookingCount++;
+            reservedIndex.update(slot, calendars[slot]);
+            return reservation;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean cancel(Reservation reservation) {
+        lock.lock();
+        try {
+            int slot = reservation.getSpot().getProximityIndex() - 1;
+            ReservationCalendar calendar = calendars[slot];
+            if (calendar == null || !calendar.remove(reservation)) {
+                return false;
+            }
+            bookingCount--;
+            expire(slot, clock.millis());
+            reservedIndex.update(slot, calendar);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Under the lock. Bookings are consumed on entry or cancelled; the rest are no-shows, dropped
+    // from a calendar once over, whenever the calendar is next used.
+    private void expire(int slot, long now) {
+        int removed = calendars[slot].expire(now);
+        if (removed > 0) {
+            bookingCount -= removed;
+            reservedIndex.update(slot, calendars[slot]);
+        }
+    }
+
+    // Occupies the booked spot for its holder and uses up the booking; null if the spot is still
+    // taken (e.g. by an overstay). A cancelled or already used booking is rejected.
+    public ParkingSpot allocateBookedSpot(Reservation reservation) {
+        lock.lock();
+        try {
+            ParkingSpot spot = reservation.getSpot();
+            ReservationCalendar calendar = calendars[spot.getProximityIndex() - 1];
+            if (spot.getFloor() != this || calendar == null || !calendar.contains(reservation)) {
+                throw new IllegalStateException("Reservation " + reservation.getReservationId() + " is cancelled or already used.");
+            }
+            if (draining || !freeSpots.get(spot.getProximityIndex() - 1)) {
+                return null;
+            }
+            calendar.remove(reservation);
+            bookingCount--;
+            expire(spot.getProximityIndex() - 1, clock.millis());
+            reservedIndex.update(spot.getProximityIndex() - 1, calendar);
+            occupy(spot);
+            publishAvailability();
+            return spot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Finds and occupies a spot under one lock hold so two gates can't be handed the same spot
+    public ParkingSpot allocateSpot(boolean needsHandicap, boolean needsReserved, boolean hasHandicapPermit, boolean hasReservation, String gateId) {
+        // Before publishing, so a request that can only fail never reaches another gate's combiner
+        checkEntitlement(needsHandicap, needsReserved, hasHandicapPermit, hasReservation);
+        boolean combining = flatCombining;
+        if (combining && !lock.tryLock()) {
+            CombinedRequest request = new CombinedRequest(needsHandicap, needsReserved, hasHandicapPermit, hasReservation, gateId);
+            if (publish(request)) {
+                return awaitCombined(request);
+            }
+            // Every combining slot is in use; queue on the lock like any other gate
+            lock.lock();
+        } else if (!combining) {
+            lock.lock();
+        }
+        List<ParkingWaitlist.Waiter> admitted = null;
+        ParkingSpot spot;
+        try {
+            if (draining) {
+                return null;
+            }
+            admitted = leases.isEmpty() ? null : new ArrayList<>();
+            spot = takeSpot(needsHandicap, needsReserved, hasHandicapPermit, hasReservation, gateId, admitted);
+            if (combining) {
+                // Serve whatever other gates published while this one held the lock
+                admitted = combine(admitted, spot != null);
+            } else if (spot != null) {
+                publishAvailability();
+            }
+        } finally {
+            lock.unlock();
+        }
+        admitAll(admitted);
+        return spot;
+    }
+
+    // Under the lock: finds and occupies a spot, taking back gates' leases if only those are left.
+    // `admitted` collects waiters given spots by the reclaim; it must be non-null while leases exist.
+    private ParkingSpot takeSpot(boolean needsHandicap, boolean needsReserved, boolean hasHandicapPermit, boolean hasReservation, String gateId, List<ParkingWaitlist.Waiter> admitted) {
+        ParkingSpot spot = findAvailableSpot(needsHandicap, needsReserved, hasHandicapPermit, hasReservation, gateId);
+        if (spot == null && !needsHandicap && !needsReserved && !leases.isEmpty()) {
+            // Full apart from gates' leases: take those back rather than turn the car away
+            int returned = reclaimLeases(false, admitted);
+            if (returned > 0) {
+                publishAvailability(-returned);
+            }
+            spot = findAvailableSpot(false, false, hasHandicapPermit, hasReservation, gateId);
+        }
+        if (spot != null) {
+            occupy(spot);
+        }
+        return spot;
+    }
+
+    // An allocation waiting in the combining array; `done` is written last by the combiner
+    private static class CombinedRequest {
+        final boolean needsHandicap;
+        final boolean needsReserved;
+        final boolean hasHandicapPermit;
+        final boolean hasReservation;
+        final String gateId;
+        ParkingSpot spot;
+        RuntimeException error; // thrown to the requesting gate instead of a spot
+        volatile boolean done;
+
+        CombinedRequest(boolean needsHandicap, boolean needsReserved, boolean hasHandicapPermit, boolean hasReservation, String gateId) {
+            this.needsHandicap = needsHandicap;
+            this.needsReserved = needsReserved;
+            this.hasHandicapPermit = hasHandicapPermit;
+            this.hasReservation = hasReservation;
+            this.gateId = gateId;
+        }
+    }
+
+    // Claims a free combining slot, starting from one picked by the thread so gates rarely collide
+    private boolean publish(CombinedRequest request) {
+        int slots = combining.length();
+        int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i < slots; i++) {
+            int slot = (start + i) & (slots - 1);
+            if (combining.get(slot) == null && combining.compareAndSet(slot, null, request)) {
+                combiningPending.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Waits for a combiner to serve the request, becoming the combiner whenever the lock is free
+    private ParkingSpot awaitCombined(CombinedRequest request) {
+        int spins = 0;
+        while (!request.done) {
+            if (lock.tryLock()) {
+                List<ParkingWaitlist.Waiter> admitted;
+                try {
+                    admitted = combine(null, false);
+                } finally {
+                    lock.unlock();
+                }
+                admitAll(admitted);
+            } else if (++spins < 64) {
+                Thread.onSpinWait();
+            } else {
+                // The combiner may need this core to finish its pass
+                Thread.yield();
+            }
+        }
+        if (request.error != null) {
+            throw request.error;
+        }
+        return request.spot;
+    }
+
+    // Under the lock: serves every published request in one pass over the combining array, with a
+    // single availability publish for the batch (`taken` if the caller occupied a spot of its own).
+    // Returns `admitted` plus waiters admitted by lease reclaims; null if there were none.
+    private List<ParkingWaitlist.Waiter> combine(List<ParkingWaitlist.Waiter> admitted, boolean taken) {
+        // A request counted after this read is served by its own gate once it gets the lock
+        int pending = combiningPending.get();
+        for (int slot = 0; pending > 0 && slot < combining.length(); slot++) {
+            CombinedRequest request = combining.get(slot);
+            if (request == null) {
+                continue;
+            }
+            ParkingSpot spot = null;
+            if (!draining) {
+                if (admitted == null && !leases.isEmpty()) {
+                    admitted = new ArrayList<>();
+                }
+                // One request's failure is that gate's alone; the rest of the batch is still served
+                try {
+                    spot = takeSpot(request.needsHandicap, request.needsReserved, request.hasHandicapPermit, request.hasReservation, request.gateId, admitted);
+                    taken |= spot != null;
+                } catch (RuntimeException e) {
+                    request.error = e;
+                }
+            }
+            request.spot = spot;
+            // Free the slot before completing, so the gate can publish its next request right away
+            combining.set(slot, null);
+            combiningPending.decrementAndGet();
+            pending--;
+            request.done = true;
+        }
+        if (taken) {
+            publishAvailability();
+        }
+        return admitted;
+    }
+
+    // Whether allocateSpot would currently succeed for this kind of request (from any gate)
+    public boolean canAllocate(boolean needsHandicap, boolean needsReserved) {
+        lock.lock();
+        try {
+            if (draining || (needsHandicap && needsReserved)) {
+                return false;
+            }
+            long now = clock.millis();
+            return nextUnbooked(indexFor(needsHandicap, needsReserved), 0, now, now + reservationLeadMillis) >= 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Overflow allocation for another vehicle type: a run of `length` adjacent regular spots,
+    // found by jumping between free runs in the index rather than visiting every spot
+    public List<ParkingSpot> allocateRegularRun(int length) {
+        lock.lock();
+        try {
+            if (draining || freeRegularCount < length) {
+                return null;
+            }
+            int start = findRegularRun(length);
+            if (start < 0) {
+                return null;
+            }
+            List<ParkingSpot> run = new ArrayList<>(length);
+            for (int slot = start; slot < start + length; slot++) {
+                ParkingSpot spot = spotAt(slot);
+                occupy(spot);
+                run.add(spot);
+            }
+            publishAvailability();
+            return run;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int findRegularRun(int length) {
+        lock.lock();
+        try {
+            int from = freeRegularSpots.nextSetBit(0);
+            while (from >= 0) {
+                int end = freeRegularSpots.nextClearBit(from);
+                if (end - from >= length) {
+                    return from;
+                }
+                from = freeRegularSpots.nextSetBit(end);
+            }
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void releaseSpot(ParkingSpot spot) {
+        boolean drained;
+        ParkingWaitlist.Waiter admitted;
+        lock.lock();
+        try {
+            release(spot);
+            admitted = handOff(spot.getProximityIndex() - 1);
+            publishAvailability();
+            drained = draining && occupiedCount == 0;
+        } finally {
+            lock.unlock();
+        }
+        if (admitted != null) {
+            admitted.admit();
+        }
+        if (drained) {
+            notifyStatus("Drained");
+        }
+    }
+
+    public void releaseSpots(List<ParkingSpot> released) {
+        boolean drained;
+        List<ParkingWaitlist.Waiter> admitted = null;
+        lock.lock();
+        try {
+            for (ParkingSpot spot : released) {
+                release(spot);
+                ParkingWaitlist.Waiter waiter = handOff(spot.getProximityIndex() - 1);
+                if (waiter != null) {
+                    if (admitted == null) {
+                        admitted = new ArrayList<>();
+                    }
+                    admitted.add(waiter);
+                }
+            }
+            publishAvailability();
+            drained = draining && occupiedCount == 0;
+        } finally {
+            lock.unlock();
+        }
+        if (admitted != null) {
+            for (ParkingWaitlist.Waiter waiter : admitted) {
+                waiter.admit();
+            }
+        }
+        if (drained) {
+            notifyStatus("Drained");
+        }
+    }
+
+    public int getAvailableSpots(boolean needsHandicap, boolean needsReserved) {
+        lock.lock();
+        try {
+            if (needsHandicap && needsReserved) {
+                return 0;
+            }
+            if (needsHandicap) {
+                return freeHandicapCount;
+            }
+            if (needsReserved) {
+                return freeReservedCount;
+            }
+            return capacity - occupiedCount - sensorHeldCount + leasedUnused.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getAvailableRegularSpots() {
+        lock.lock();
+        try {
+            return freeRegularCount + leasedUnused.get();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Lock-free, possibly momentarily stale count for ranking floors; allocation re-checks under the lock
+    public int peekAvailableSpots(boolean needsHandicap, boolean needsReserved) {
+        if (needsHandicap && needsReserved) {
+            return 0;
+        }
+        if (needsHandicap) {
+            return publishedHandicap;
+        }
+        return needsReserved ? publishedReserved : publishedAvailable + leasedUnused.get();
+    }
+
+    public int peekAvailableRegularSpots() {
+        return publishedRegular + leasedUnused.get();
+    }
+
+    // Estimate of the gates held up on this floor right now: queued on its lock or waiting in its
+    // combining array
+    public int getWaitingGates() {
+        return lock.getQueueLength() + Math.max(0, combiningPending.get());
+    }
+
+    long getAvailabilityVersion() {
+        return availabilityVersion;
+    }
+
+    // Plain reads of the published counts; only consistent if getAvailabilityVersion() returned the
+    // same even value before and after (see ParkingLot.getAvailability)
+    FloorAvailability readAvailability() {
+        int leased = leasedUnused.get();
+        return new FloorAvailability(type, floorNumber, capacity, publishedAvailable + leased, publishedHandicap,
+            publishedReserved, publishedRegular + leased, publishedOccupied - leased, draining);
+    }
+
+    // Called under the lock at the end of every change (a batch of changes publishes once)
+    private void publishAvailability() {
+        publishAvailability(0);
+    }
+
+    // Leases taken out (positive) or returned (negative) change leasedUnused inside the odd window
+    private void publishAvailability(int leasedDelta) {
+        long version = availabilityVersion;
+        availabilityVersion = version + 1;
+        VarHandle.storeStoreFence();
+        publishedAvailable = capacity - occupiedCount - sensorHeldCount;
+        publishedHandicap = freeHandicapCount;
+        publishedReserved = freeReservedCount;
+        publishedRegular = freeRegularCount;
+        publishedOccupied = occupiedCount;
+        if (leasedDelta != 0) {
+            leasedUnused.addAndGet(leasedDelta);
+        }
+        availabilityVersion = version + 2;
+    }
+
+    // Leases up to `count` free regular spots to a gate, from its preferred range first. Expired
+    // leases are taken back first. Returns null while draining, or when granting the lease would
+    // leave fewer than `count` free regular spots for everyone else (the floor is nearly full).
+    public SpotLease leaseSpots(int count, String gateId, long expiresAt) {
+        List<ParkingWaitlist.Waiter> admitted = null;
+        SpotLease lease = null;
+        lock.lock();
+        try {
+            if (!draining) {
+                admitted = new ArrayList<>();
+                syncLeases();
+                int returned = reclaimLeases(true, admitted);
+                if (freeRegularCount >= 2 * count) {
+                    int[] range = layout.gateRange(gateId);
+                    ParkingSpot[] leased = new ParkingSpot[count];
+                    int slot = freeRegularSpots.nextSetBit(range == null ? 0 : range[0] - 1);
+                    for (int i = 0; i < count; i++) {
+                        if (slot < 0) {
+                            slot = freeRegularSpots.nextSetBit(0); // wrap around to the closest spots
+                        }
+                        leased[i] = spotAt(slot);
+                        occupy(leased[i]);
+                        leasedSpots.set(slot);
+                        slot = freeRegularSpots.nextSetBit(slot + 1);
+                    }
+                    lease = new SpotLease(this, leased, expiresAt);
+                    leases.add(lease);
+                    publishAvailability(count - returned);
+                } else if (returned > 0) {
+                    publishAvailability(-returned);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        admitAll(admitted);
+        return lease;
+    }
+
+    // A gate gives back what is left of its lease
+    public void returnLease(SpotLease lease) {
+        List<ParkingWaitlist.Waiter> admitted = new ArrayList<>();
+        lock.lock();
+        try {
+            if (leases.remove(lease)) {
+                publishAvailability(-returnUnused(lease, admitted));
+            }
+        } finally {
+            lock.unlock();
+        }
+        admitAll(admitted);
+    }
+
+    // Called by SpotLease.take for each leased spot a gate hands out
+    void leasedSpotTaken() {
+        leasedUnused.decrementAndGet();
+    }
+
+    int getLeasedUnused() {
+        return leasedUnused.get();
+    }
+
+    // Under the lock: takes back the unused part of every lease (only expired ones if `expiredOnly`);
+    // returns how many spots came back. The caller publishes with the negated count.
+    private int reclaimLeases(boolean expiredOnly, List<ParkingWaitlist.Waiter> admitted) {
+        if (leases.isEmpty()) {
+            return 0;
+        }
+        long now = clock.millis();
+        int returned = 0;
+        for (Iterator<SpotLease> it = leases.iterator(); it.hasNext(); ) {
+            SpotLease lease = it.next();
+            if (!expiredOnly || lease.isExpired(now) || lease.isUsedUp()) {
+                returned += returnUnused(lease, admitted);
+                it.remove();
+            }
+        }
+        return returned;
+    }
+
+    private int returnUnused(SpotLease lease, List<ParkingWaitlist.Waiter> admitted) {
+        int returned = 0;
+        ParkingSpot[] leased = lease.getSpots();
+        int first = lease.revoke();
+        syncLease(lease, leased.length);
+        for (int i = first; i < leased.length; i++) {
+            release(leased[i]);
+            ParkingWaitlist.Waiter waiter = handOff(leased[i].getProximityIndex() - 1);
+            if (waiter != null) {
+                admitted.add(waiter);
+            }
+            returned++;
+        }
+        return returned;
+    }
+
+    // Under the lock: clears the spots gates have handed out since the last call from leasedSpots
+    private void syncLeases() {
+        for (SpotLease lease : leases) {
+            syncLease(lease, lease.handedOut());
+        }
+    }
+
+    private void syncLease(SpotLease lease, int upTo) {
+        ParkingSpot[] leased = lease.getSpots();
+        for (int i = lease.getSynced(); i < upTo; i++) {
+            leasedSpots.clear(leased[i].getProximityIndex() - 1);
+        }
+        lease.setSynced(upTo);
+    }
+
+    private static void admitAll(List<ParkingWaitlist.Waiter> admitted) {
+        if (admitted != null) {
+            for (ParkingWaitlist.Waiter waiter : admitted) {
+                waiter.admit();
+            }
+        }
+    }
+
+    private BitSet indexFor(boolean needsHandicap, boolean needsReserved) {
+        if (needsHandicap) {
+            return freeHandicapSpots;
+        }
+        return needsReserved ? freeReservedSpots : freeSpots;
+    }
+
+    // Applies debounced sensor readings (slot = proximityIndex - 1) in one lock hold and reconciles
+    // them with ticket state. Mismatching slots are written to mismatchSlots/mismatchKinds; returns
+    // how many there were.
+    public int applySensorReadings(int[] slots, boolean[] occupied, int count, int[] mismatchSlots, SensorMismatch[] mismatchKinds) {
+        int mismatches = 0;
+        List<ParkingWaitlist.Waiter> admitted = null;
+        lock.lock();
+        try {
+            syncLeases();
+            for (int i = 0; i < count; i++) {
+                int slot = slots[i];
+                boolean ticketed = !freeSpots.get(slot) && !sensorHeldSpots.get(slot) && !leasedSpots.get(slot);
+                if (occupied[i]) {
+                    if (freeSpots.get(slot)) {
+                        sensorHeldSpots.set(slot);
+                        sensorHeldCount++;
+                        markTaken(slot);
+                        mismatchSlots[mismatches] = slot;
+                        mismatchKinds[mismatches++] = SensorMismatch.VEHICLE_WITHOUT_TICKET;
+                    }
+                } else if (sensorHeldSpots.get(slot)) {
+                    sensorHeldSpots.clear(slot);
+                    sensorHeldCount--;
+                    markFree(slot);
+                    ParkingWaitlist.Waiter waiter = handOff(slot);
+                    if (waiter != null) {
+                        if (admitted == null) {
+                            admitted = new ArrayList<>();
+                        }
+                        admitted.add(waiter);
+                    }
+                } else if (ticketed) {
+                    mismatchSlots[mismatches] = slot;
+                    mismatchKinds[mismatches++] = SensorMismatch.TICKET_WITHOUT_VEHICLE;
+                }
+            }
+            publishAvailability();
+        } finally {
+            lock.unlock();
+        }
+        if (admitted != null) {
+            for (ParkingWaitlist.Waiter waiter : admitted) {
+                waiter.admit();
+            }
+        }
+        return mismatches;
+    }
+
+    public int getSensorHeldSpots() {
+        lock.lock();
+        try {
+            return sensorHeldCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void occupy(ParkingSpot spot) {
+        spot.occupy();
+        occupiedCount++;
+        markTaken(spot.getProximityIndex() - 1);
+    }
+
+    private void release(ParkingSpot spot) {
+        spot.free();
+        occupiedCount--;
+        markFree(spot.getProximityIndex() - 1);
+    }
+
+    // Called under the lock right after `slot` is freed: if a matching request is waiting, the
+    // spot is occupied again on its behalf and the waiter is returned, to be admitted after unlock
+    private ParkingWaitlist.Waiter handOff(int slot) {
+        ParkingWaitlist waitlist = this.waitlist;
+        if (waitlist == null || draining || !waitlist.hasWaiters()) {
+            return null;
+        }
+        if (calendars[slot] != null) {
+            long now = clock.millis();
+            if (!calendars[slot].isFree(now, now + reservationLeadMillis)) {
+                return null; // held for an upcoming booking
+            }
+        }
+        SpotCategory category = layout.isHandicap(slot) ? SpotCategory.HANDICAP
+            : layout.isReserved(slot) ? SpotCategory.RESERVED : SpotCategory.REGULAR;
+        ParkingWaitlist.Waiter waiter = waitlist.claim(type, category);
+        if (waiter != null) {
+            ParkingSpot spot = spotAt(slot);
+            occupy(spot);
+            waiter.assign(this, spot);
+        }
+        return waiter;
+    }
+
+    // Spot objects and their id strings are only built when a spot is first handed out or asked for
+    private ParkingSpot spotAt(int slot) {
+        ParkingSpot spot = spots[slot];
+        if (spot == null) {
+            spot = factory.createSpot(type.name() + "-F" + floorNumber + "-" + (slot + 1), layout.isHandicap(slot), layout.isReserved(slot), slot + 1);
+            spot.setFloor(this);
+            spots[slot] = spot;
+        }
+        return spot;
+    }
+
+    private void markTaken(int slot) {
+        freeSpots.clear(slot);
+        for (GateRanking ranking : gateRankings) {
+            if (ranking != null && ranking.slotToRank[slot] >= 0) {
+                ranking.free.clear(ranking.slotToRank[slot]);
+            }
+        }
+        if (spatialIndex != null) {
+            spatialIndex.taken(slot);
+        }
+        if (layout.isHandicap(slot)) {
+            freeHandicapSpots.clear(slot);
+            freeHandicapCount--;
+        } else if (layout.isReserved(slot)) {
+            freeReservedSpots.clear(slot);
+            freeReservedCount--;
+        } else {
+            freeRegularSpots.clear(slot);
+            freeRegularCount--;
+        }
+    }
+
+    private void markFree(int slot) {
+        freeSpots.set(slot);
+        for (GateRanking ranking : gateRankings) {
+            if (ranking != null && ranking.slotToRank[slot] >= 0) {
+                ranking.free.set(ranking.slotToRank[slot]);
+            }
+        }
+        if (spatialIndex != null) {
+            spatialIndex.freed(slot);
+        }
+        if (layout.isHandicap(slot)) {
+            freeHandicapSpots.set(slot);
+            freeHandicapCount++;
+        } else if (layout.isReserved(slot)) {
+            freeReservedSpots.set(slot);
+            freeReservedCount++;
+        } else {
+            freeRegularSpots.set(slot);
+            freeRegularCount++;
+        }
+    }
+}
+
+// Sensor/ticket disagreement kinds
+enum SensorMismatch {
+    VEHICLE_WITHOUT_TICKET, TICKET_WITHOUT_VEHICLE
+}
+
+// Observer for sensor/ticket disagreements (e.g., patrol dispatch)
+interface SensorMismatchObserver {
+    void sensorMismatch(VehicleType type, int floorNumber, int proximityIndex, SensorMismatch kind);
+}
+
+// SensorEventBatch: reusable buffer of raw sensor readings, filled by the sensor gateway and
+// handed to SpotSensorIngestor; parallel primitive arrays so no object exists per event
+class SensorEventBatch {
+    private final int[] sensorIds;
+    private final boolean[] occupied;
+    private final long[] timestamps;
+    private int size;
+
+    public SensorEventBatch(int capacity) {
+        this.sensorIds = new int[capacity];
+        this.occupied = new boolean[capacity];
+        this.timestamps = new long[capacity];
+    }
+
+    public boolean add(int sensorId, boolean isOccupied, long timestamp) {
+        if (size == sensorIds.length) {
+            return false;
+        }
+        sensorIds[size] = sensorId;
+        occupied[size] = isOccupied;
+        timestamps[size] = timestamp;
+        size++;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    int sensorId(int i) {
+        return sensorIds[i];
+    }
+
+    boolean occupied(int i) {
+        return occupied[i];
+    }
+
+    long timestamp(int i) {
+        return timestamps[i];
+    }
+}
+
+// SpotSensorIngestor: deduplicates and debounces per-spot sensor events, then applies settled
+// readings to each floor in bulk. Sensor ids are dense: each floor owns a contiguous block in
+// floor-table order, indexed by proximityIndex - 1. Built over the floor table at construction;
+// create a new ingestor after adding or removing floors. All state lives in preallocated arrays,
+// so steady-state ingestion allocates nothing.
+class SpotSensorIngestor {
+    private static final byte UNKNOWN = 0;
+    private static final byte FREE = 1;
+    private static final byte OCCUPIED = 2;
+
+    private final ParkingFloor[] floors;
+    private final int[] sensorBase; // first sensor id of each floor, ascending
+    private final long debounceMillis;
+    private final byte[] rawState;
+    private final long[] rawSince;
+    private final byte[] settledState;
+    private final int[] pending;
+    private final boolean[] isPending;
+    private int pendingCount;
+    private final int[][] floorSlots;
+    private final boolean[][] floorStates;
+    private final int[] floorCounts;
+    private final int[] mismatchSlots;
+    private final SensorMismatch[] mismatchKinds;
+    private final List<SensorMismatchObserver> observers = new CopyOnWriteArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private long eventsReceived;
+    private long unknownSensors;
+    private long duplicatesDropped;
+    private long flapsSuppressed;
+    private long readingsApplied;
+    private long mismatchesRaised;
+
+    public SpotSensorIngestor(ParkingLot parkingLot, Duration debounce) {
+        List<ParkingFloor> all = new ArrayList<>();
+        for (List<ParkingFloor> floorList : parkingLot.getFloors().values()) {
+            all.addAll(floorList);
+        }
+        this.floors = all.toArray(new ParkingFloor[0]);
+        this.sensorBase = new int[floors.length];
+        this.floorSlots = new int[floors.length][];
+        this.floorStates = new boolean[floors.length][];
+        this.floorCounts = new int[floors.length];
+        int total = 0;
+        int largest = 0;
+        for (int f = 0; f < floors.length; f++) {
+            sensorBase[f] = total;
+            total += floors[f].getCapacity();
+            largest = Math.max(largest, floors[f].getCapacity());
+            floorSlots[f] = new int[floors[f].getCapacity()];
+            floorStates[f] = new boolean[floors[f].getCapacity()];
+        }
+        this.debounceMillis = debounce.toMillis();
+        this.rawState = new byte[total];
+        this.rawSince = new long[total];
+        this.settledState = new byte[total];
+        this.pending = new int[total];
+        this.isPending = new boolean[total];
+        this.mismatchSlots = new int[largest];
+        this.mismatchKinds = new SensorMismatch[largest];
+    }
+
+    public void addObserver(SensorMismatchObserver observer) {
+        observers.add(observer);
+    }
+
+    public int sensorCount() {
+        return rawState.length;
+    }
+
+    public int sensorId(VehicleType type, int floorNumber, int proximityIndex) {
+        for (int f = 0; f < floors.length; f++) {
+            if (floors[f].getType() == type && floors[f].getFloorNumber() == floorNumber) {
+                return sensorBase[f] + proximityIndex - 1;
+            }
+        }
+        throw new IllegalArgumentException("No sensors registered for " + type + " floor " + floorNumber);
+    }
+
+    // Takes one batch; readings that have held steady for the debounce window by `now` are applied.
+    // Call with an empty batch periodically so quiet sensors still settle.
+    public void ingest(SensorEventBatch batch, long now) {
+        lock.lock();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                record(batch.sensorId(i), batch.occupied(i) ? OCCUPIED : FREE, batch.timestamp(i));
+            }
+            eventsReceived += batch.size();
+            settle(now);
+            applyToFloors();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void record(int sensorId, byte state, long timestamp) {
+        if (sensorId < 0 || sensorId >= rawState.length) {
+            unknownSensors++;
+            return;
+        }
+        if (state == rawState[sensorId]) {
+            duplicatesDropped++;
+            return;
+        }
+        if (isPending[sensorId] && state == settledState[sensorId]) {
+            flapsSuppressed++; // flipped back before settling; the pending entry will be dropped
+        }
+        rawState[sensorId] = state;
+        rawSince[sensorId] = timestamp;
+        if (state != settledState[sensorId] && !isPending[sensorId]) {
+            isPending[sensorId] = true;
+            pending[pendingCount++] = sensorId;
+        }
+    }
+
+    private void settle(long now) {
+        int kept = 0;
+        for (int i = 0; i < pendingCount; i++) {
+            int sensorId = pending[i];
+            if (rawState[sensorId] == settledState[sensorId]) {
+                isPending[sensorId] = false;
+            } else if (now - rawSince[sensorId] >= debounceMillis) {
+                settledState[sensorId] = rawState[sensorId];
+                isPending[sensorId] = false;
+                int f = floorOf(sensorId);
+                int n = floorCounts[f]++;
+                floorSlots[f][n] = sensorId - sensorBase[f];
+                floorStates[f][n] = settledState[sensorId] == OCCUPIED;
+            } else {
+                pending[kept++] = sensorId;
+            }
+        }
+        pendingCount = kept;
+    }
+
+    private void applyToFloors() {
+        for (int f = 0; f < floors.length; f++) {
+            if (floorCounts[f] == 0) {
+                continue;
+            }
+            int mismatches = floors[f].applySensorReadings(floorSlots[f], floorStates[f], floorCounts[f], mismatchSlots, mismatchKinds);
+            readingsApplied += floorCounts[f];
+            floorCounts[f] = 0;
+            mismatchesRaised += mismatches;
+            for (int m = 0; m < mismatches; m++) {
+                for (SensorMismatchObserver observer : observers) {
+                    observer.sensorMismatch(floors[f].getType(), floors[f].getFloorNumber(), mismatchSlots[m] + 1, mismatchKinds[m]);
+                }
+            }
+        }
+    }
+
+    private int floorOf(int sensorId) {
+        int lo = 0;
+        int hi = sensorBase.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (sensorBase[mid] <= sensorId) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return lo;
+    }
+
+    public String stats() {
+        lock.lock();
+        try {
+            return "events=" + eventsReceived + " unknown=" + unknownSensors + " duplicates=" + duplicatesDropped + " flaps=" + flapsSuppressed
+                + " applied=" + readingsApplied + " mismatches=" + mismatchesRaised;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
+
+// TimingWheel: hierarchical timing wheel (4 levels of 64 slots) holding one timer per open ticket.
+// Schedule and cancel are O(1) list splices; advancing a tick touches one level-0 slot plus, every
+// 64^n ticks, one cascading slot of level n. With 1-minute ticks the wheel spans ~32 years.
+// A ticket's pending timer (Ticket.overstayTimer) is only read or written under the wheel's lock.
+class TimingWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    static final class Timer {
+        private final Ticket ticket;
+        private final OverstayLevel level;
+        private final long deadlineTick;
+        private Timer prev;
+        private Timer next;
+
+        private Timer(Ticket ticket, OverstayLevel level, long deadlineTick) {
+            this.ticket = ticket;
+            this.level = level;
+            this.deadlineTick = deadlineTick;
+        }
+
+        Ticket getTicket() {
+            return ticket;
+        }
+
+        OverstayLevel getLevel() {
+            return level;
+        }
+    }
+
+    private final long tickMillis;
+    private final Timer[][] buckets = new Timer[LEVELS][SLOTS]; // sentinel heads of circular lists
+    private final ReentrantLock lock = new ReentrantLock();
+    private long currentTick;
+    private int size;
+
+    public TimingWheel(Duration tick, long startMillis) {
+        this.tickMillis = tick.toMillis();
+        this.currentTick = startMillis / tickMillis;
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Timer head = new Timer(null, null, 0);
+                head.prev = head;
+                head.next = head;
+                buckets[level][slot] = head;
+            }
+        }
+    }
+
+    // Arms the ticket's timer; null if the ticket has closed meanwhile (its cancel has run or will
+    // find this timer, as the ticket is marked closed before observers are told)
+    public Timer schedule(Ticket ticket, OverstayLevel level, long deadlineMillis) {
+        lock.lock();
+        try {
+            if (ticket.isClosed()) {
+                return null;
+            }
+            Timer timer = new Timer(ticket, level, (deadlineMillis + tickMillis - 1) / tickMillis);
+            place(timer, currentTick + 1);
+            size++;
+            ticket.setOverstayTimer(timer);
+            return timer;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Cancels the ticket's pending timer; false if it has none
+    public boolean cancel(Ticket ticket) {
+        lock.lock();
+        try {
+            Timer timer = ticket.getOverstayTimer();
+            ticket.setOverstayTimer(null);
+            if (timer == null || timer.next == null) {
+                return false; // already fired or cancelled
+            }
+            unlink(timer);
+            size--;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves time forward to `nowMillis` and returns the timers that came due, in deadline order
+    public List<Timer> advance(long nowMillis) {
+        List<Timer> expired = new ArrayList<>();
+        lock.lock();
+        try {
+            long targetTick = nowMillis / tickMillis;
+            while (currentTick < targetTick) {
+                currentTick++;
+                for (int level = LEVELS - 1; level >= 1; level--) {
+                    if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                        cascade(level, (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1)));
+                    }
+                }
+                Timer head = buckets[0][(int) (currentTick & (SLOTS - 1))];
+                while (head.next != head) {
+                    Timer timer = head.next;
+                    unlink(timer);
+                    if (timer.deadlineTick <= currentTick) {
+                        size--;
+                        if (timer.ticket.getOverstayTimer() == timer) {
+                            timer.ticket.setOverstayTimer(null);
+                        }
+                        expired.add(timer);
+                    } else {
+                        place(timer, currentTick + 1);
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return expired;
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void cascade(int level, int slot) {
+        Timer head = buckets[level][slot];
+        while (head.next != head) {
+            Timer timer = head.next;
+            unlink(timer);
+            place(timer, currentTick); // this tick's bucket is drained right after
+        }
+    }
+
+    // Links the timer into the bucket for its deadline, or for `earliestTick` if that is later
+    private void place(Timer timer, long earliestTick) {
+        long delta = Math.max(timer.deadlineTick, earliestTick) - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        // Beyond the top level's span: park it in the furthest top slot and let it cascade back in
+        long tick = delta >= (1L << (SLOT_BITS * LEVELS)) ? currentTick + (1L << (SLOT_BITS * LEVELS)) - 1 : currentTick + delta;
+        Timer head = buckets[level][(int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1))];
+        timer.prev = head.prev;
+        timer.next = head;
+        head.prev.next = timer;
+        head.prev = timer;
+    }
+
+    private void unlink(Timer timer) {
+        timer.prev.next = timer.next;
+        timer.next.prev = timer.prev;
+        timer.prev = null;
+        timer.next = null;
+    }
+}
+
+// OverstayMonitor: arms an overstay timer when a ticket is issued and cancels it on exit.
+// An overstay fires after the type's overstay limit; if the ticket is still open at the
+// abandoned limit a second, ABANDONED event follows.
+class OverstayMonitor implements TicketObserver {
+    private final TimingWheel wheel;
+    private final Map<VehicleType, Duration> overstayLimits = new EnumMap<>(VehicleType.class);
+    private final Map<VehicleType, Duration> abandonedLimits = new EnumMap<>(VehicleType.class);
+    private final List<OverstayObserver> observers = new CopyOnWriteArrayList<>();
+
+    public OverstayMonitor(Duration tick) {
+        this(tick, ParkingClock.system());
+    }
+
+    public OverstayMonitor(Duration tick, ParkingClock clock) {
+        this.wheel = new TimingWheel(tick, clock.millis());
+        for (VehicleType type : VehicleType.values()) {
+            overstayLimits.put(type, Duration.ofHours(24));
+            abandonedLimits.put(type, Duration.ofDays(7));
+        }
+    }
+
+    public void setLimits(VehicleType type, Duration overstay, Duration abandoned) {
+        if (abandoned.compareTo(overstay) <= 0) {
+            throw new IllegalArgumentException("Abandoned limit must be longer than the overstay limit.");
+        }
+        overstayLimits.put(type, overstay);
+        abandonedLimits.put(type, abandoned);
+    }
+
+    public void addObserver(OverstayObserver observer) {
+        observers.add(observer);
+    }
+
+    public int openTimers() {
+        return wheel.size();
+    }
+
+    @Override
+    public void ticketIssued(Ticket ticket) {
+        long deadline = entryMillis(ticket) + overstayLimits.get(ticket.getVehicle().getType()).toMillis();
+        wheel.schedule(ticket, OverstayLevel.OVERSTAY, deadline);
+    }
+
+    @Override
+    public void ticketClosed(Ticket ticket, String exitGateId, LocalDateTime exitTime, double fee, BillingMode mode) {
+        wheel.cancel(ticket);
+    }
+
+    // Drive from a scheduler (or a virtual clock in simulations). A ticket that exits while its timer
+    // is firing is neither re-armed nor reported.
+    public void advanceTo(long nowMillis) {
+        for (TimingWheel.Timer timer : wheel.advance(nowMillis)) {
+            Ticket ticket = timer.getTicket();
+            if (timer.getLevel() == OverstayLevel.OVERSTAY) {
+                long deadline = entryMillis(ticket) + abandonedLimits.get(ticket.getVehicle().getType()).toMillis();
+                wheel.schedule(ticket, OverstayLevel.ABANDONED, deadline);
+            }
+            if (ticket.isClosed()) {
+                continue;
+            }
+            for (OverstayObserver observer : observers) {
+                observer.overstay(ticket, timer.getLevel());
+            }
+        }
+    }
+
+    private static long entryMillis(Ticket ticket) {
+        return ticket.getEntryTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
+
+// ArchiveQuery: predicates for TicketArchive scans; times are epoch millis, ranges are [from, to)
+class ArchiveQuery {
+    private long entryFrom = Long.MIN_VALUE;
+    private long entryTo = Long.MAX_VALUE;
+    private long exitFrom = Long.MIN_VALUE;
+    private long exitTo = Long.MAX_VALUE;
+    private long minFeeCents = Long.MIN_VALUE;
+    private long maxFeeCents = Long.MAX_VALUE;
+    private int typeMask = -1;
+    private int modeMask = -1;
+    private String entryGate;
+    private String exitGate;
+
+    public ArchiveQuery entryBetween(long from, long to) {
+        this.entryFrom = from;
+        this.entryTo = to;
+        return this;
+    }
+
+    public ArchiveQuery exitBetween(long from, long to) {
+        this.exitFrom = from;
+        this.exitTo = to;
+        return this;
+    }
+
+    public ArchiveQuery feeAtLeast(double fee) {
+        this.minFeeCents = Math.round(fee * 100);
+        return this;
+    }
+
+    public ArchiveQuery feeAtMost(double fee) {
+        this.maxFeeCents = Math.round(fee * 100);
+        return this;
+    }
+
+    public ArchiveQuery type(VehicleType type) {
+        this.typeMask = 1 << type.ordinal();
+        return this;
+    }
+
+    public ArchiveQuery mode(BillingMode mode) {
+        this.modeMask = 1 << mode.ordinal();
+        return this;
+    }
+
+    public ArchiveQuery entryGate(String gateId) {
+        this.entryGate = gateId;
+        return this;
+    }
+
+    public ArchiveQuery exitGate(String gateId) {
+        this.exitGate = gateId;
+        return this;
+    }
+
+    long getEntryFrom() {
+        return entryFrom;
+    }
+
+    long getEntryTo() {
+        return entryTo;
+    }
+
+    long getExitFrom() {
+        return exitFrom;
+    }
+
+    long getExitTo() {
+        return exitTo;
+    }
+
+    long getMinFeeCents() {
+        return minFeeCents;
+    }
+
+    long getMaxFeeCents() {
+        return maxFeeCents;
+    }
+
+    int getTypeMask() {
+        return typeMask;
+    }
+
+    int getModeMask() {
+        return modeMask;
+    }
+
+    String getEntryGate() {
+        return entryGate;
+    }
+
+    String getExitGate() {
+        return exitGate;
+    }
+}
+
+// ArchiveRow: one archived ticket, reused between callbacks of the same scan task
+class ArchiveRow {
+    private final TicketArchive archive;
+    long ticketSerial;
+    int plateId;
+    int typeOrdinal;
+    int floorNumber;
+    int spotIndex;
+    int entryGateId;
+    int exitGateId;
+    long entryEpochMillis;
+    long exitEpochMillis;
+    long feeCents;
+    int modeOrdinal;
+
+    ArchiveRow(TicketArchive archive) {
+        this.archive = archive;
+    }
+
+    public long getTicketSerial() {
+        return ticketSerial;
+    }
+
+    public String getLicensePlate() {
+        return archive.plate(plateId);
+    }
+
+    public VehicleType getType() {
+        return VehicleType.values()[typeOrdinal];
+    }
+
+    public int getFloorNumber() {
+        return floorNumber;
+    }
+
+    public int getSpotIndex() {
+        return spotIndex;
+    }
+
+    public String getEntryGateId() {
+        return archive.gate(entryGateId);
+    }
+
+    public String getExitGateId() {
+        return archive.gate(exitGateId);
+    }
+
+    public long getEntryEpochMillis() {
+        return entryEpochMillis;
+    }
+
+    public long getExitEpochMillis() {
+        return exitEpochMillis;
+    }
+
+    public double getFee() {
+        return feeCents / 100.0;
+    }
+
+    public BillingMode getMode() {
+        return BillingMode.values()[modeOrdinal];
+    }
+}
+
+// ArchiveResult: aggregate of a scan
+class ArchiveResult {
+    private final long matches;
+    private final long feeCents;
+    private final int blocksScanned;
+    private final int blocksSkipped;
+
+    ArchiveResult(long matches, long feeCents, int blocksScanned, int blocksSkipped) {
+        this.matches = matches;
+        this.feeCents = feeCents;
+        this.blocksScanned = blocksScanned;
+        this.blocksSkipped = blocksSkipped;
+    }
+
+    public long getMatches() {
+        return matches;
+    }
+
+    public double getTotalFee() {
+        return feeCents / 100.0;
+    }
+
+    public int getBlocksScanned() {
+        return blocksScanned;
+    }
+
+    public int getBlocksSkipped() {
+        return blocksSkipped;
+    }
+
+    @Override
+    public String toString() {
+        return "matches=" + matches + " fees=$" + String.format("%.2f", getTotalFee()) + " blocks scanned=" + blocksScanned + " skipped=" + blocksSkipped;
+    }
+}
+
+// TicketArchive: append-only columnar store of closed tickets on local disk. Rows are buffered
+// into blocks of BLOCK_ROWS; each block has a fixed header holding per-block min/max zone maps
+// (entry, exit, fee), type/mode/gate bitmasks and the offset of each column, followed by the
+// columns encoded as (zig-zag delta) varints. Plates and gate ids are dictionary-encoded into
+// side files. Queries memory-map the data file, skip blocks whose zone maps cannot match, decode
+// only the predicate columns of the rest, and fan blocks out across cores.
+class TicketArchive implements TicketObserver, AutoCloseable {
+    static final int BLOCK_ROWS = 8192;
+    private static final int MAGIC = 0x544B4152; // "TKAR"
+    private static final int COLUMNS = 11;
+    private static final int SERIAL = 0, PLATE = 1, TYPE = 2, FLOOR = 3, SPOT = 4, ENTRY_GATE = 5,
+        EXIT_GATE = 6, ENTRY = 7, EXIT = 8, FEE = 9, MODE = 10;
+    private static final int HEADER_BYTES = 4 * 3 + 8 * 6 + 4 * 2 + 8 * 2 + 4 * COLUMNS;
+    private static final long MAX_SEGMENT = 1L << 30;
+
+    private final Path dataFile;
+    private final Path plateFile;
+    private final Path gateFile;
+    private final FileChannel channel;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Dictionaries are written under `lock` but read by concurrent scans
+    private final Map<String, Integer> plateIds = new ConcurrentHashMap<>();
+    private final List<String> plates = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, Integer> gateIds = new ConcurrentHashMap<>();
+    private final List<String> gates = Collections.synchronizedList(new ArrayList<>());
+    private int persistedPlates;
+    private int persistedGates;
+    private final long[][] pending = new long[COLUMNS][BLOCK_ROWS];
+    private int pendingRows;
+    private final List<Long> blockOffsets = new ArrayList<>();
+    // Mappings of the data file, kept across queries; blocks are never rewritten, so only the
+    // last segment is mapped again, once blocks have been added past its end
+    private final List<Segment> segments = new ArrayList<>();
+
+    // A read-only mapping holding `blocks` whole blocks from block index `firstBlock`
+    private static final class Segment {
+        final long start;
+        final MappedByteBuffer buffer;
+        final int firstBlock;
+        final int blocks;
+
+        Segment(long start, MappedByteBuffer buffer, int firstBlock, int blocks) {
+            this.start = start;
+            this.buffer = buffer;
+            this.firstBlock = firstBlock;
+            this.blocks = blocks;
+        }
+    }
+
+    public TicketArchive(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.dataFile = directory.resolve("tickets.col");
+        this.plateFile = directory.resolve("plates.dict");
+        this.gateFile = directory.resolve("gates.dict");
+        loadDictionary(plateFile, plateIds, plates);
+        loadDictionary(gateFile, gateIds, gates);
+        persistedPlates = plates.size();
+        persistedGates = gates.size();
+        this.channel = FileChannel.open(dataFile, StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        indexBlocks();
+    }
+
+    @Override
+    public void ticketIssued(Ticket ticket) {
+    }
+
+    @Override
+    public void ticketClosed(Ticket ticket, String exitGateId, LocalDateTime exitTime, double fee, BillingMode mode) {
+        ZoneId zone = ZoneId.systemDefault();
+        append(ticket.getSerial(), ticket.getVehicle().getLicensePlate(), ticket.getVehicle().getType(),
+            ticket.getFloorNumber(), ticket.getSpot().getProximityIndex(), ticket.getEntryGateId(), exitGateId,
+            ticket.getEntryTime().atZone(zone).toInstant().toEpochMilli(), exitTime.atZone(zone).toInstant().toEpochMilli(),
+            fee, mode);
+    }
+
+    public void append(long ticketSerial, String licensePlate, VehicleType type, int floorNumber, int spotIndex,
+                       String entryGateId, String exitGateId, long entryEpochMillis, long exitEpochMillis, double fee, BillingMode mode) {
+        lock.lock();
+        try {
+            int row = pendingRows++;
+            pending[SERIAL][row] = ticketSerial;
+            pending[PLATE][row] = intern(licensePlate, plateIds, plates);
+            pending[TYPE][row] = type.ordinal();
+            pending[FLOOR][row] = floorNumber;
+            pending[SPOT][row] = spotIndex;
+            pending[ENTRY_GATE][row] = intern(entryGateId, gateIds, gates);
+            pending[EXIT_GATE][row] = intern(exitGateId, gateIds, gates);
+            pending[ENTRY][row] = entryEpochMillis;
+            pending[EXIT][row] = exitEpochMillis;
+            pending[FEE][row] = Math.round(fee * 100);
+            pending[MODE][row] = mode.ordinal();
+            if (pendingRows == BLOCK_ROWS) {
+                writeBlock();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write ticket archive block", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes out a partial block so buffered rows become durable and visible to queries
+    public void flush() {
+        lock.lock();
+        try {
+            if (pendingRows > 0) {
+                writeBlock();
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to flush ticket archive", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    public int blockCount() {
+        lock.lock();
+        try {
+            return blockOffsets.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String plate(int id) {
+        return plates.get(id);
+    }
+
+    String gate(int id) {
+        return gates.get(id);
+    }
+
+    public ArchiveResult query(ArchiveQuery query) {
+        return scan(query, null);
+    }
+
+    // Calls `consumer` for every matching row; rows may arrive from several threads at once
+    public ArchiveResult scan(ArchiveQuery query, Consumer<ArchiveRow> consumer) {
+        int entryGate = query.getEntryGate() == null ? -1 : gateIds.getOrDefault(query.getEntryGate(), Integer.MIN_VALUE);
+        int exitGate = query.getExitGate() == null ? -1 : gateIds.getOrDefault(query.getExitGate(), Integer.MIN_VALUE);
+        List<Segment> mapped;
+        List<long[]> tasks = new ArrayList<>(); // {segment, offset within segment}
+        lock.lock();
+        try {
+            if (entryGate == Integer.MIN_VALUE || exitGate == Integer.MIN_VALUE) {
+                return new ArchiveResult(0, 0, 0, blockOffsets.size());
+            }
+            mapped = mapSegments();
+            for (int s = 0; s < mapped.size(); s++) {
+                Segment segment = mapped.get(s);
+                for (int b = segment.firstBlock; b < segment.firstBlock + segment.blocks; b++) {
+                    tasks.add(new long[]{s, blockOffsets.get(b) - segment.start});
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to map ticket archive", e);
+        } finally {
+            lock.unlock();
+        }
+        long[] totals = tasks.parallelStream().map(task -> {
+            BlockScanner scanner = SCANNERS.get();
+            return scanner.scan(this, mapped.get((int) task[0]).buffer, (int) task[1], query, entryGate, exitGate, consumer);
+        }).reduce(new long[4], (a, b) -> new long[]{a[0] + b[0], a[1] + b[1], a[2] + b[2], a[3] + b[3]});
+        return new ArchiveResult(totals[0], totals[1], (int) totals[2], (int) totals[3]);
+    }
+
+    // Under the lock: maps blocks written since the last query and returns every segment
+    private List<Segment> mapSegments() throws IOException {
+        int i = 0;
+        if (!segments.isEmpty()) {
+            Segment last = segments.get(segments.size() - 1);
+            i = last.firstBlock + last.blocks;
+            if (i < blockOffsets.size() && last.buffer.capacity() < MAX_SEGMENT) {
+                // it was mapped to the end of the data, so the new blocks may belong in it
+                segments.remove(segments.size() - 1);
+                i = last.firstBlock;
+            }
+        }
+        if (i < blockOffsets.size()) {
+            long lastBlock = blockOffsets.get(blockOffsets.size() - 1);
+            long end = lastBlock + blockLength(lastBlock);
+            while (i < blockOffsets.size()) {
+                long segmentStart = blockOffsets.get(i);
+                long segmentLength = Math.min(MAX_SEGMENT, end - segmentStart);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, segmentLength);
+                int first = i;
+                while (i < blockOffsets.size() && blockOffsets.get(i) - segmentStart + HEADER_BYTES <= segmentLength
+                    && blockOffsets.get(i) - segmentStart + HEADER_BYTES + buffer.getInt((int) (blockOffsets.get(i) - segmentStart) + 8) <= segmentLength) {
+                    i++;
+                }
+                if (i == first) {
+                    throw new IllegalStateException("Archive block larger than a mapping segment.");
+                }
+                segments.add(new Segment(segmentStart, buffer, first, i - first));
+            }
+        }
+        return new ArrayList<>(segments);
+    }
+
+    private static final ThreadLocal<BlockScanner> SCANNERS = ThreadLocal.withInitial(BlockScanner::new);
+
+    // Per-thread decode buffers for one block
+    private static final class BlockScanner {
+        private final long[][] columns = new long[COLUMNS][BLOCK_ROWS];
+        private final boolean[] decoded = new boolean[COLUMNS];
+        private final int[] selection = new int[BLOCK_ROWS];
+        private ByteBuffer buffer;
+        private int rows;
+        private int columnOffsets;
+        private int payload;
+
+        long[] scan(TicketArchive archive, ByteBuffer buffer, int offset, ArchiveQuery query, int entryGate, int exitGate,
+                    Consumer<ArchiveRow> consumer) {
+            int header = offset + 12;
+            long minEntry = buffer.getLong(header), maxEntry = buffer.getLong(header + 8);
+            long minExit = buffer.getLong(header + 16), maxExit = buffer.getLong(header + 24);
+            long minFee = buffer.getLong(header + 32), maxFee = buffer.getLong(header + 40);
+            int typeMask = buffer.getInt(header + 48), modeMask = buffer.getInt(header + 52);
+            long entryGates = buffer.getLong(header + 56), exitGates = buffer.getLong(header + 64);
+            // Zone maps: skip the whole block when no row in it can match
+            if (maxEntry < query.getEntryFrom() || minEntry >= query.getEntryTo()
+                || maxExit < query.getExitFrom() || minExit >= query.getExitTo()
+                || maxFee < query.getMinFeeCents() || minFee > query.getMaxFeeCents()
+                || (typeMask & query.getTypeMask()) == 0 || (modeMask & query.getModeMask()) == 0
+                || (entryGate >= 0 && (entryGates & (entryGate < 64 ? 1L << entryGate : -1L)) == 0)
+                || (exitGate >= 0 && (exitGates & (exitGate < 64 ? 1L << exitGate : -1L)) == 0)) {
+                return new long[]{0, 0, 0, 1};
+            }
+            this.buffer = buffer;
+            this.rows = buffer.getInt(offset + 4);
+            this.columnOffsets = header + 72;
+            this.payload = offset + HEADER_BYTES;
+            Arrays.fill(decoded, false);
+            int selected = rows;
+            for (int r = 0; r < rows; r++) {
+                selection[r] = r;
+            }
+            selected = filter(ENTRY, selected, query.getEntryFrom(), query.getEntryTo() - 1);
+            selected = filter(EXIT, selected, query.getExitFrom(), query.getExitTo() - 1);
+            selected = filter(FEE, selected, query.getMinFeeCents(), query.getMaxFeeCents());
+            if (query.getTypeMask() != -1) {
+                selected = filterMask(TYPE, selected, query.getTypeMask());
+            }
+            if (query.getModeMask() != -1) {
+                selected = filterMask(MODE, selected, query.getModeMask());
+            }
+            if (entryGate >= 0) {
+                selected = filter(ENTRY_GATE, selected, entryGate, entryGate);
+            }
+            if (exitGate >= 0) {
+                selected = filter(EXIT_GATE, selected, exitGate, exitGate);
+            }
+            long[] fee = decode(FEE);
+            long fees = 0;
+            for (int s = 0; s < selected; s++) {
+                fees += fee[selection[s]];
+            }
+            if (consumer != null && selected > 0) {
+                for (int c = 0; c < COLUMNS; c++) {
+                    decode(c);
+                }
+                ArchiveRow row = new ArchiveRow(archive);
+                for (int s = 0; s < selected; s++) {
+                    int r = selection[s];
+                    row.ticketSerial = columns[SERIAL][r];
+                    row.plateId = (int) columns[PLATE][r];
+                    row.typeOrdinal = (int) columns[TYPE][r];
+                    row.floorNumber = (int) columns[FLOOR][r];
+                    row.spotIndex = (int) columns[SPOT][r];
+                    row.entryGateId = (int) columns[ENTRY_GATE][r];
+                    row.exitGateId = (int) columns[EXIT_GATE][r];
+                    row.entryEpochMillis = columns[ENTRY][r];
+                    row.exitEpochMillis = columns[EXIT][r];
+                    row.feeCents = columns[FEE][r];
+                    row.modeOrdinal = (int) columns[MODE][r];
+                    consumer.accept(row);
+                }
+            }
+            return new long[]{selected, fees, 1, 0};
+        }
+
+        private int filter(int column, int selected, long min, long max) {
+            if (min == Long.MIN_VALUE && max >= Long.MAX_VALUE - 1) {
+                return selected;
+            }
+            long[] values = decode(column);
+            int kept = 0;
+            for (int s = 0; s < selected; s++) {
+                long v = values[selection[s]];
+                if (v >= min && v <= max) {
+                    selection[kept++] = selection[s];
+                }
+            }
+            return kept;
+        }
+
+        private int filterMask(int column, int selected, int mask) {
+            long[] values = decode(column);
+            int kept = 0;
+            for (int s = 0; s < selected; s++) {
+                if ((mask & (1 << values[selection[s]])) != 0) {
+                    selection[kept++] = selection[s];
+                }
+            }
+            return kept;
+        }
+
+        private long[] decode(int column) {
+            long[] out = columns[column];
+            if (decoded[column]) {
+                return out;
+            }
+            long[] entries = column == EXIT ? decode(ENTRY) : null;
+            int pos = payload + buffer.getInt(columnOffsets + 4 * column);
+            long previous = 0;
+            for (int r = 0; r < rows; r++) {
+                long raw = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = buffer.get(pos++);
+                    raw |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                long value = (raw >>> 1) ^ -(raw & 1); // zig-zag
+                if (column == SERIAL || column == ENTRY) {
+                    previous += value;
+                    out[r] = previous;
+                } else if (column == EXIT) {
+                    out[r] = entries[r] + value;
+                } else {
+                    out[r] = value;
+                }
+            }
+            decoded[column] = true;
+            return out;
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        persistDictionary(plateFile, plates, persistedPlates);
+        persistedPlates = plates.size();
+        persistDictionary(gateFile, gates, persistedGates);
+        persistedGates = gates.size();
+        int rows = pendingRows;
+        byte[][] encoded = new byte[COLUMNS][];
+        for (int c = 0; c < COLUMNS; c++) {
+            encoded[c] = encodeColumn(c, rows);
+        }
+        int payloadBytes = 0;
+        for (byte[] column : encoded) {
+            payloadBytes += column.length;
+        }
+        ByteBuffer block = ByteBuffer.allocate(HEADER_BYTES + payloadBytes);
+        block.putInt(MAGIC).putInt(rows).putInt(payloadBytes);
+        block.putLong(min(ENTRY, rows)).putLong(max(ENTRY, rows));
+        block.putLong(min(EXIT, rows)).putLong(max(EXIT, rows));
+        block.putLong(min(FEE, rows)).putLong(max(FEE, rows));
+        block.putInt(mask(TYPE, rows)).putInt(mask(MODE, rows));
+        block.putLong(gateMask(ENTRY_GATE, rows)).putLong(gateMask(EXIT_GATE, rows));
+        int offset = 0;
+        for (byte[] column : encoded) {
+            block.putInt(offset);
+            offset += column.length;
+        }
+        for (byte[] column : encoded) {
+            block.put(column);
+        }
+        block.flip();
+        long position = channel.size();
+        while (block.hasRemaining()) {
+            channel.write(block, position + block.position());
+        }
+        blockOffsets.add(position);
+        pendingRows = 0;
+    }
+
+    private byte[] encodeColumn(int column, int rows) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(rows * 2);
+        long previous = 0;
+        for (int r = 0; r < rows; r++) {
+            long value = pending[column][r];
+            if (column == SERIAL || column == ENTRY) {
+                long delta = value - previous;
+                previous = value;
+                value = delta;
+            } else if (column == EXIT) {
+                value = value - pending[ENTRY][r];
+            }
+            long raw = (value << 1) ^ (value >> 63); // zig-zag
+            while ((raw & ~0x7FL) != 0) {
+                out.write((int) ((raw & 0x7F) | 0x80));
+                raw >>>= 7;
+            }
+            out.write((int) raw);
+        }
+        return out.toByteArray();
+    }
+
+    private long min(int column, int rows) {
+        long min = Long.MAX_VALUE;
+        for (int r = 0; r < rows; r++) {
+            min = Math.min(min, pending[column][r]);
+        }
+        return min;
+    }
+
+    private long max(int column, int rows) {
+        long max = Long.MIN_VALUE;
+        for (int r = 0; r < rows; r++) {
+            max = Math.max(max, pending[column][r]);
+        }
+        return max;
+    }
+
+    private int mask(int column, int rows) {
+        int mask = 0;
+        for (int r = 0; r < rows; r++) {
+            mask |= 1 << pending[column][r];
+        }
+        return mask;
+    }
+
+    // Gate ids beyond 63 can't be represented, so such blocks are never skipped on gate
+    private long gateMask(int column, int rows) {
+        long mask = 0;
+        for (int r = 0; r < rows; r++) {
+            long id = pending[column][r];
+            mask |= id < 64 ? 1L << id : -1L;
+        }
+        return mask;
+    }
+
+    private void indexBlocks() throws IOException {
+        long size = channel.size();
+        long position = 0;
+        while (position + HEADER_BYTES <= size) {
+            long length = blockLength(position);
+            if (length < 0 || position + length > size) {
+                break; // torn tail from a crash mid-write; it gets overwritten by the next block
+            }
+            blockOffsets.add(position);
+            position += length;
+        }
+        channel.truncate(position);
+    }
+
+    private long blockLength(long position) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(12);
+        channel.read(head, position);
+        head.flip();
+        if (head.remaining() < 12 || head.getInt() != MAGIC) {
+            return -1;
+        }
+        head.getInt();
+        return HEADER_BYTES + head.getInt();
+    }
+
+    private static int intern(String value, Map<String, Integer> ids, List<String> values) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = values.size();
+            ids.put(value, id);
+            values.add(value);
+        }
+        return id;
+    }
+
+    private static void loadDictionary(Path file, Map<String, Integer> ids, List<String> values) throws IOException {
+        if (Files.exists(file)) {
+            for (String line : Files.readAllLines(file)) {
+                ids.put(line, values.size());
+                values.add(line);
+            }
+        }
+    }
+
+    private static void persistDictionary(Path file, List<String> values, int persisted) throws IOException {
+        if (persisted < values.size()) {
+            Files.write(file, values.subList(persisted, values.size()),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+}
+
+// FloorAvailability: one floor's counts within an AvailabilitySnapshot
+class FloorAvailability {
+    private final VehicleType type;
+    private final int floorNumber;
+    private final int capacity;
+    private final int available; // what a plain walk-in request can take
+    private final int handicap;
+    private final int reserved;
+    private final int regular;
+    private final int occupied;
+    private final boolean draining;
+
+    FloorAvailability(VehicleType type, int floorNumber, int capacity, int available, int handicap, int reserved, int regular, int occupied, boolean draining) {
+        this.type = type;
+        this.floorNumber = floorNumber;
+        this.capacity = capacity;
+        this.available = available;
+        this.handicap = handicap;
+        this.reserved = reserved;
+        this.regular = regular;
+        this.occupied = occupied;
+        this.draining = draining;
+    }
+
+    public VehicleType getType() {
+        return type;
+    }
+
+    public int getFloorNumber() {
+        return floorNumber;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getAvailable() {
+        return available;
+    }
+
+    public int getHandicap() {
+        return handicap;
+    }
+
+    public int getReserved() {
+        return reserved;
+    }
+
+    public int getRegular() {
+        return regular;
+    }
+
+    public int getOccupied() {
+        return occupied;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+}
+
+// AvailabilitySnapshot: immutable, consistent lot-wide availability as of one instant. `version`
+// counts the changes published by the floors it covers.
+class AvailabilitySnapshot {
+    private final long version;
+    private final Map<VehicleType, List<FloorAvailability>> floors;
+    final Map<VehicleType, List<ParkingFloor>> table; // floor table it was taken from
+    final long leased; // leased spots not yet handed out when it was taken
+
+    AvailabilitySnapshot(long version, Map<VehicleType, List<FloorAvailability>> floors, Map<VehicleType, List<ParkingFloor>> table, long leased) {
+        this.version = version;
+        this.floors = floors;
+        this.table = table;
+        this.leased = leased;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public Map<VehicleType, List<FloorAvailability>> getFloors() {
+        return floors;
+    }
+
+    public int getAvailable(VehicleType type) {
+        int total = 0;
+        for (FloorAvailability floor : floors.getOrDefault(type, List.of())) {
+            if (!floor.isDraining()) {
+                total += floor.getAvailable();
+            }
+        }
+        return total;
+    }
+}
+
+// DisplayBoard Class (Observer)
+class DisplayBoard implements ParkingObserver {
+    private ParkingLot parkingLot;
+
+    public DisplayBoard(ParkingLot parkingLot) {
+        this.parkingLot = parkingLot;
+        // Register as observer to all floors, including ones added later
+        parkingLot.addObserver(this);
+    }
+
+    @Override
+    public void updateAvailability(VehicleType type, int floorNumber, String spotType, int count) {
+        System.out.println("Availability update: " + type + " on Floor " + floorNumber + " - " + spotType + ": " + count);
+        showAvailability();
+    }
+
+    @Override
+    public void floorStatusChanged(VehicleType type, int floorNumber, String status, int occupied) {
+        System.out.println("Floor update: " + type + " on Floor " + floorNumber + " - " + status + " (" + occupied + " parked)");
+        showAvailability();
+    }
+
+    public void showAvailability() {
+        System.out.println("----- Parking Availability -----");
+        for (Map.Entry<VehicleType, List<FloorAvailability>> entry : parkingLot.getAvailability().getFloors().entrySet()) {
+            VehicleType type = entry.getKey();
+            List<FloorAvailability> floors = entry.getValue();
+            System.out.println("Vehicle Type: " + type);
+            for (FloorAvailability floor : floors) {
+                System.out.println("  Floor " + floor.getFloorNumber() + (floor.isDraining() ? " (draining)" : "") + ":");
+                System.out.println("    Regular Spots: " + floor.getAvailable());
+                System.out.println("    Handicap Spots: " + floor.getHandicap());
+                System.out.println("    Reserved Spots: " + floor.getReserved());
+            }
+        }
+        System.out.println("-------------------------------");
+    }
+}
+
+// Placement option: `spotsNeeded` adjacent spots on a floor built for `spotType`
+class SpotPlacement {
+    private final VehicleType spotType;
+    private final int spotsNeeded;
+
+    public SpotPlacement(VehicleType spotType, int spotsNeeded) {
+        if (spotsNeeded < 1) {
+            throw new IllegalArgumentException("A placement needs at least one spot.");
+        }
+        this.spotType = spotType;
+        this.spotsNeeded = spotsNeeded;
+    }
+
+    public VehicleType getSpotType() {
+        return spotType;
+    }
+
+    public int getSpotsNeeded() {
+        return spotsNeeded;
+    }
+}
+
+// Compatibility rules: ordered placements tried for each vehicle type, own spot type first
+class SpotCompatibility {
+    private final Map<VehicleType, List<SpotPlacement>> placements = new EnumMap<>(VehicleType.class);
+
+    public static SpotCompatibility defaults() {
+        return new SpotCompatibility()
+            .order(VehicleType.BIKE, new SpotPlacement(VehicleType.BIKE, 1), new SpotPlacement(VehicleType.CAR, 1), new SpotPlacement(VehicleType.HEAVY, 1))
+            .order(VehicleType.CAR, new SpotPlacement(VehicleType.CAR, 1), new SpotPlacement(VehicleType.HEAVY, 1))
+            .order(VehicleType.HEAVY, new SpotPlacement(VehicleType.HEAVY, 1), new SpotPlacement(VehicleType.CAR, 3));
+    }
+
+    public SpotCompatibility order(VehicleType vehicleType, SpotPlacement... order) {
+        placements.put(vehicleType, List.of(order));
+        return this;
+    }
+
+    public List<SpotPlacement> placementsFor(VehicleType vehicleType) {
+        return placements.getOrDefault(vehicleType, List.of(new SpotPlacement(vehicleType, 1)));
+    }
+}
+
+// Enum for the kind of spot a request asks for
+enum SpotCategory {
+    REGULAR, HANDICAP, RESERVED
+}
+
+// ParkingWaitlist: FIFO queues of entry requests that found the lot full, one per vehicle type and
+// spot category. A floor that frees a spot claims the longest waiter that can use it (its own
+// category first, then REGULAR, since a plain request can take any spot) and hands the spot over
+// directly, so a freed spot wakes exactly one request and never becomes visible to the others.
+class ParkingWaitlist {
+    // Queues are created when first joined; most lots never queue most type/category pairs
+    private final Map<VehicleType, Map<SpotCategory, LinkedHashSet<Waiter>>> queues = new EnumMap<>(VehicleType.class);
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public boolean hasWaiters() {
+        return waiting.get() > 0;
+    }
+
+    public int size() {
+        return waiting.get();
+    }
+
+    public int size(VehicleType type, SpotCategory category) {
+        lock.lock();
+        try {
+            LinkedHashSet<Waiter> queue = queue(type, category);
+            return queue == null ? 0 : queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Waiter join(EntryGate gate, Vehicle vehicle, SpotCategory category) {
+        Waiter waiter = new Waiter(this, gate, vehicle, category);
+        lock.lock();
+        try {
+            queues.computeIfAbsent(vehicle.getType(), t -> new EnumMap<>(SpotCategory.class))
+                .computeIfAbsent(category, c -> new LinkedHashSet<>()).add(waiter);
+            waiting.incrementAndGet();
+        } finally {
+            lock.unlock();
+        }
+        return waiter;
+    }
+
+    // Removes and claims the first waiter of `type` that can use a freed `category` spot
+    Waiter claim(VehicleType type, SpotCategory category) {
+        lock.lock();
+        try {
+            Waiter waiter = poll(queue(type, category));
+            if (waiter == null && category != SpotCategory.REGULAR) {
+                waiter = poll(queue(type, SpotCategory.REGULAR));
+            }
+            return waiter;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Under the lock; null if nobody has joined this queue yet
+    private LinkedHashSet<Waiter> queue(VehicleType type, SpotCategory category) {
+        Map<SpotCategory, LinkedHashSet<Waiter>> byCategory = queues.get(type);
+        return byCategory == null ? null : byCategory.get(category);
+    }
+
+    private Waiter poll(LinkedHashSet<Waiter> queue) {
+        if (queue == null) {
+            return null;
+        }
+        Iterator<Waiter> it = queue.iterator();
+        while (it.hasNext()) {
+            Waiter waiter = it.next();
+            it.remove();
+            waiting.decrementAndGet();
+            if (waiter.claimed.compareAndSet(false, true)) {
+                return waiter;
+            }
+        }
+        return null;
+    }
+
+    private void remove(Waiter waiter) {
+        lock.lock();
+        try {
+            LinkedHashSet<Waiter> queue = queue(waiter.vehicle.getType(), waiter.category);
+            if (queue != null && queue.remove(waiter)) {
+                waiting.decrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // A queued entry request. Whoever flips `claimed` first decides its fate: a floor handing it a
+    // spot, or the caller cancelling / timing out.
+    static class Waiter {
+        private final ParkingWaitlist waitlist;
+        private final EntryGate gate;
+        private final Vehicle vehicle;
+        private final SpotCategory category;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final WaitlistFuture future = new WaitlistFuture(this);
+        private ParkingFloor floor;
+        private ParkingSpot spot;
+
+        Waiter(ParkingWaitlist waitlist, EntryGate gate, Vehicle vehicle, SpotCategory category) {
+            this.waitlist = waitlist;
+            this.gate = gate;
+            this.vehicle = vehicle;
+            this.category = category;
+        }
+
+        public Vehicle getVehicle() {
+            return vehicle;
+        }
+
+        public CompletableFuture<Ticket> getFuture() {
+            return future;
+        }
+
+        // Leaves the queue unless a floor has already claimed this waiter
+        boolean withdraw() {
+            if (!claimed.compareAndSet(false, true)) {
+                return false;
+            }
+            waitlist.remove(this);
+            return true;
+        }
+
+        void assign(ParkingFloor floor, ParkingSpot spot) {
+            this.floor = floor;
+            this.spot = spot;
+        }
+
+        // Issues the ticket for the handed-over spot; called by the floor after it unlocks
+        void admit() {
+            future.admitted(gate.admit(vehicle, spot, floor));
+        }
+    }
+
+    // Cancelling or failing the future (e.g. through orTimeout) withdraws the request; once a floor
+    // has claimed it, it can only complete with its ticket
+    static class WaitlistFuture extends CompletableFuture<Ticket> {
+        private final Waiter waiter;
+
+        WaitlistFuture(Waiter waiter) {
+            this.waiter = waiter;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return waiter.withdraw() && super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public boolean completeExceptionally(Throwable ex) {
+            return waiter.withdraw() && super.completeExceptionally(ex);
+        }
+
+        @Override
+        public boolean complete(Ticket ticket) {
+            return waiter.withdraw() && super.complete(ticket);
+        }
+
+        private void admitted(Ticket ticket) {
+            super.complete(ticket);
+        }
+    }
+}
+
+// ParkingLot Class (Singleton)
+class ParkingLot {
+    private static ParkingLot instance;
+    // Copy-on-write floor table: writers publish a new EnumMap, readers never lock
+    private volatile Map<VehicleType, List<ParkingFloor>> floors = Collections.unmodifiableMap(new EnumMap<>(VehicleType.class));
+    private final ReentrantLock floorTableLock = new ReentrantLock();
+    private final List<ParkingObserver> observers = new CopyOnWriteArrayList<>();
+    private final List<TicketObserver> ticketObservers = new CopyOnWriteArrayList<>();
+    private volatile SpotCompatibility compatibility = SpotCompatibility.defaults();
+    private final ParkingWaitlist waitlist = new ParkingWaitlist();
+    private volatile AvailabilitySnapshot availability; // last snapshot taken, reused until something changes
+    private volatile TicketCodec ticketCodec; // set when gates accept signed tickets
+    private volatile ReplayGuard replayGuard;
+    private volatile PrepaymentLedger prepayments; // set when kiosks take payment ahead of the exit
+    private volatile PermitService permitService; // when set, gates check permits here instead of trusting callers
+    private volatile GarageGraph distanceModel; // when set, walk-ins get the nearest spot by graph distance
+    private volatile FloorSelectionPolicy floorSelection = FloorSelectionPolicy.maxAvailable();
+    private volatile ParkingClock clock = ParkingClock.coarse();
+    private volatile boolean flatCombining;
+    private static final ReentrantLock lock = new ReentrantLock();
+
+    private ParkingLot() {
+        this(true);
+    }
+
+    private ParkingLot(boolean defaultLayout) {
+        if (defaultLayout) {
+            addFloor(VehicleType.CAR, 1, 50, 5, 5);
+            addFloor(VehicleType.CAR, 2, 50, 5, 5);
+            addFloor(VehicleType.BIKE, 1, 100, 10, 10);
+            addFloor(VehicleType.HEAVY, 1, 20, 2, 2);
+        }
+    }
+
+    // Standalone lot with no floors, for simulations and benchmarks that must not touch the singleton
+    static ParkingLot newEmptyLot() {
+        return new ParkingLot(false);
+    }
+
+    public static ParkingLot getInstance() {
+        lock.lock();
+        try {
+            if (instance == null) {
+                instance = new ParkingLot();
+            }
+            return instance;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Map<VehicleType, List<ParkingFloor>> getFloors() {
+        return floors;
+    }
+
+    public SpotCompatibility getCompatibility() {
+        return compatibility;
+    }
+
+    public ParkingWaitlist getWaitlist() {
+        return waitlist;
+    }
+
+    public ParkingClock getClock() {
+        return clock;
+    }
+
+    // Every floor, gate and ticket of this lot takes its time from `clock` from now on
+    public void setClock(ParkingClock clock) {
+        floorTableLock.lock();
+        try {
+            this.clock = clock;
+            for (List<ParkingFloor> floorList : floors.values()) {
+                for (ParkingFloor floor : floorList) {
+                    floor.setClock(clock);
+                }
+            }
+        } finally {
+            floorTableLock.unlock();
+        }
+    }
+
+    // Flat-combining allocation (ParkingFloor.setFlatCombining) on every floor, present and future
+    public void setFlatCombining(boolean enabled) {
+        floorTableLock.lock();
+        try {
+            this.flatCombining = enabled;
+            for (List<ParkingFloor> floorList : floors.values()) {
+                for (ParkingFloor floor : floorList) {
+                    floor.setFlatCombining(enabled);
+                }
+            }
+        } finally {
+            floorTableLock.unlock();
+        }
+    }
+
+    // Tickets can then be signed and exit on their signed bytes (ExitGate.exit(byte[], ...))
+    public void enableSignedTickets(TicketCodec codec, ReplayGuard guard) {
+        this.replayGuard = guard;
+        this.ticketCodec = codec;
+    }
+
+    public TicketCodec getTicketCodec() {
+        return ticketCodec;
+    }
+
+    // Lets PaymentKiosks take payment before the exit; exits of prepaid tickets then skip payment.
+    // A ledger replaced by a later call stops hearing about closed tickets.
+    public void enablePrepayment(PrepaymentLedger ledger) {
+        PrepaymentLedger previous = prepayments;
+        if (previous == ledger) {
+            return;
+        }
+        if (previous != null) {
+            ticketObservers.remove(previous);
+        }
+        addTicketObserver(ledger);
+        this.prepayments = ledger;
+    }
+
+    public PrepaymentLedger getPrepayments() {
+        return prepayments;
+    }
+
+    public ReplayGuard getReplayGuard() {
+        return replayGuard;
+    }
+
+    public PermitService getPermitService() {
+        return permitService;
+    }
+
+    public void setPermitService(PermitService permitService) {
+        this.permitService = permitService;
+    }
+
+    public GarageGraph getDistanceModel() {
+        return distanceModel;
+    }
+
+    void setDistanceModel(GarageGraph distanceModel) {
+        this.distanceModel = distanceModel;
+    }
+
+    public FloorSelectionPolicy getFloorSelection() {
+        return floorSelection;
+    }
+
+    // How gates choose among a type's floors; FloorSelectionPolicy.maxAvailable() unless set
+    public void setFloorSelection(FloorSelectionPolicy floorSelection) {
+        if (floorSelection == null) {
+            throw new IllegalArgumentException("Floor selection policy cannot be null.");
+        }
+        this.floorSelection = floorSelection;
+    }
+
+    // Lock-free, consistent view of every floor's counts. Each floor publishes its counts under a
+    // seqlock; the counts are collected and accepted only if no floor's version moved meanwhile
+    // (versions only grow, so an unchanged sum means every floor is unchanged). If nothing has
+    // changed since the last snapshot, that one is returned as is.
+    public AvailabilitySnapshot getAvailability() {
+        while (true) {
+            Map<VehicleType, List<ParkingFloor>> table = floors;
+            long before = versionSum(table);
+            if (before < 0) {
+                Thread.onSpinWait(); // a floor is mid-publish
+                continue;
+            }
+            // Outside a publish, leased counts only go down (gates handing out leased spots), so an
+            // unchanged sum means no floor's count changed either
+            long leased = leasedSum(table);
+            AvailabilitySnapshot cached = availability;
+            if (cached != null && cached.table == table && cached.getVersion() == before && cached.leased == leased) {
+                return cached;
+            }
+            Map<VehicleType, List<FloorAvailability>> counts = new EnumMap<>(VehicleType.class);
+            for (Map.Entry<VehicleType, List<ParkingFloor>> entry : table.entrySet()) {
+                List<FloorAvailability> floorCounts = new ArrayList<>(entry.getValue().size());
+                for (ParkingFloor floor : entry.getValue()) {
+                    floorCounts.add(floor.readAvailability());
+                }
+                counts.put(entry.getKey(), Collections.unmodifiableList(floorCounts));
+            }
+            VarHandle.loadLoadFence();
+            if (versionSum(table) == before && floors == table) {
+                AvailabilitySnapshot snapshot = new AvailabilitySnapshot(before, Collections.unmodifiableMap(counts), table, leased);
+                availability = snapshot;
+                return snapshot;
+            }
+        }
+    }
+
+    private static long leasedSum(Map<VehicleType, List<ParkingFloor>> table) {
+        long sum = 0;
+        for (List<ParkingFloor> floorList : table.values()) {
+            for (ParkingFloor floor : floorList) {
+                sum += floor.getLeasedUnused();
+            }
+        }
+        return sum;
+    }
+
+    // Sum of the floors' published versions, or -1 if any floor is mid-publish
+    private static long versionSum(Map<VehicleType, List<ParkingFloor>> table) {
+        long sum = 0;
+        for (List<ParkingFloor> floorList : table.values()) {
+            for (ParkingFloor floor : floorList) {
+                long version = floor.getAvailabilityVersion();
+                if ((version & 1) != 0) {
+                    return -1;
+                }
+                sum += version;
+            }
+        }
+        return sum;
+    }
+
+    public void setCompatibility(SpotCompatibility compatibility) {
+        this.compatibility = compatibility;
+    }
+
+    public ParkingFloor getFloor(VehicleType type, int floorNumber) {
+        for (ParkingFloor floor : floors.getOrDefault(type, List.of())) {
+            if (floor.getFloorNumber() == floorNumber) {
+                return floor;
+            }
+        }
+        throw new IllegalArgumentException("No " + type + " floor " + floorNumber);
+    }
+
+    public void addObserver(ParkingObserver observer) {
+        floorTableLock.lock();
+        try {
+            observers.add(observer);
+            for (List<ParkingFloor> floorList : floors.values()) {
+                for (ParkingFloor floor : floorList) {
+                    floor.addObserver(observer);
+                }
+            }
+        } finally {
+            floorTableLock.unlock();
+        }
+    }
+
+    public void addTicketObserver(TicketObserver observer) {
+        ticketObservers.add(observer);
+    }
+
+    public void notifyTicketIssued(Ticket ticket) {
+        for (TicketObserver observer : ticketObservers) {
+            observer.ticketIssued(ticket);
+        }
+    }
+
+    public void notifyTicketClosed(Ticket ticket, String exitGateId, LocalDateTime exitTime, double fee, BillingMode mode) {
+        ticket.markClosed();
+        for (TicketObserver observer : ticketObservers) {
+            observer.ticketClosed(ticket, exitGateId, exitTime, fee, mode);
+        }
+    }
+
+    public void addFloor(VehicleType type, int floorNumber, int capacity, int handicapSpots, int reservedSpots) {
+        addFloor(type, floorNumber, SpotLayout.of(capacity, handicapSpots, reservedSpots));
+    }
+
+    public void addFloor(VehicleType type, int floorNumber, SpotLayout layout) {
+        // Build the floor before taking the lock; large layouts shouldn't hold up other writers
+        ParkingFloor floor = new ParkingFloor(type, floorNumber, layout);
+        floorTableLock.lock();
+        try {
+            List<ParkingFloor> current = floors.getOrDefault(type, List.of());
+            for (ParkingFloor existing : current) {
+                if (existing.getFloorNumber() == floorNumber) {
+                    throw new IllegalArgumentException(type + " floor " + floorNumber + " already exists.");
+                }
+            }
+            for (ParkingObserver observer : observers) {
+                floor.addObserver(observer);
+            }
+            floor.setWaitlist(waitlist);
+            floor.setClock(clock);
+            floor.setFlatCombining(flatCombining);
+            List<ParkingFloor> updated = new ArrayList<>(current);
+            updated.add(floor);
+            publish(type, updated);
+        } finally {
+            floorTableLock.unlock();
+        }
+    }
+
+    // A floor can only be removed once it is drained, so no gate can still be allocating on it
+    public void removeFloor(VehicleType type, int floorNumber) {
+        floorTableLock.lock();
+        try {
+            ParkingFloor floor = getFloor(type, floorNumber);
+            if (!floor.isDrained()) {
+                throw new IllegalStateException(type + " floor " + floorNumber + " must be drained and empty before removal (occupied: " + floor.getOccupiedSpots() + ").");
+            }
+            List<ParkingFloor> updated = new ArrayList<>(floors.get(type));
+            updated.remove(floor);
+            publish(type, updated);
+        } finally {
+            floorTableLock.unlock();
+        }
+    }
+
+    // Books a reserved spot of `type` that is free for the whole of [from, to)
+    public Reservation book(VehicleType type, String licensePlate, long from, long to) {
+        for (ParkingFloor floor : floors.getOrDefault(type, List.of())) {
+            if (!floor.isDraining()) {
+                Reservation reservation = floor.book(licensePlate, from, to);
+                if (reservation != null) {
+                    return reservation;
+                }
+            }
+        }
+        throw new IllegalStateException("No reserved " + type + " spot free for the requested window.");
+    }
+
+    public boolean isReservable(VehicleType type, long from, long to) {
+        for (ParkingFloor floor : floors.getOrDefault(type, List.of())) {
+            if (!floor.isDraining() && floor.findReservableSpot(from, to) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean cancelReservation(Reservation reservation) {
+        return reservation.getSpot().getFloor().cancel(reservation);
+    }
+
+    public void drainFloor(VehicleType type, int floorNumber) {
+        getFloor(type, floorNumber).drain();
+    }
+
+    public void reopenFloor(VehicleType type, int floorNumber) {
+        getFloor(type, floorNumber).reopen();
+    }
+
+    private void publish(VehicleType type, List<ParkingFloor> updated) {
+        Map<VehicleType, List<ParkingFloor>> next = new EnumMap<>(VehicleType.class);
+        next.putAll(floors);
+        if (updated.isEmpty()) {
+            next.remove(type);
+        } else {
+            next.put(type, List.copyOf(updated));
+        }
+        floors = Collections.unmodifiableMap(next);
+    }
+}
+
+// Enum for Billing Mode
+enum BillingMode {
+    HOURLY, MINUTE
+}
+
+// Strategy for Payment Processing
+interface PaymentProcessor {
+    boolean processPayment(double amount);
+}
+
+// Concrete Strategies
+class CashPayment implements PaymentProcessor {
+    @Override
+    public boolean processPayment(double amount) {
+        System.out.println("Processing cash payment of $" + String.format("%.2f", amount));
+        return true;
+    }
+}
+
+class CreditCardPayment implements PaymentProcessor {
+    @Override
+    public boolean processPayment(double amount) {
+        System.out.println("Processing credit card payment of $" + String.format("%.2f", amount));
+        return true;
+    }
+}
+
+class UPIPayment implements PaymentProcessor {
+    @Override
+    public boolean processPayment(double amount) {
+        System.out.println("Processing UPI payment of $" + String.format("%.2f", amount));
+        return true;
+    }
+}
+
+// Payment Class with Billing Strategies
+class Payment {
+    private static final Map<VehicleType, Double> HOURLY_RATES = Map.of(
+        VehicleType.CAR, 10.0,
+        VehicleType.BIKE, 5.0,
+        VehicleType.HEAVY, 20.0
+    );
+    private static final Map<VehicleType, Double> MINUTE_RATES = Map.of(
+        VehicleType.CAR, 0.20,
+        VehicleType.BIKE, 0.10,
+        VehicleType.HEAVY, 0.40
+    );
+
+    private final ParkingClock clock; // null: the clock of each ticket's lot
+
+    public Payment() {
+        this(null);
+    }
+
+    public Payment(ParkingClock clock) {
+        this.clock = clock;
+    }
+
+    // Fee if the ticket were closed now
+    public double calculateFee(Ticket ticket, BillingMode mode) {
+        return calculateFee(ticket, (clock != null ? clock : Ticket.clockOf(ticket.getSpot())).now(), mode);
+    }
+
+    public double calculateFee(Ticket ticket, LocalDateTime exitTime, BillingMode mode) {
+        return calculateFee(ticket.getVehicle().getType(), Duration.between(ticket.getEntryTime(), exitTime), mode);
+    }
+
+    public double calculateFee(VehicleType type, Duration duration, BillingMode mode) {
+        return calculateFee(type, duration.toMillis(), mode);
+    }
+
+    // Same fee from elapsed millis, with no Duration or boxed values along the way
+    public double calculateFee(VehicleType type, long elapsedMillis, BillingMode mode) {
+        Double hourly = HOURLY_RATES.get(type);
+        Double perMinute = MINUTE_RATES.get(type);
+        if (hourly == null || perMinute == null) {
+            throw new IllegalArgumentException("Billing not supported for vehicle type: " + type);
+        }
+        long minutes = elapsedMillis / 60_000;
+        if (mode == BillingMode.HOURLY) {
+            return (minutes / 60 + (minutes % 60 > 0 ? 1 : 0)) * hourly;
+        }
+        return minutes * perMinute;
+    }
+
+    // Rates as a [mode][type] table for bulk billing, read from the same maps as calculateFee
+    static double[][] rateTable() {
+        double[][] rates = new double[BillingMode.values().length][VehicleType.values().length];
+        for (VehicleType type : VehicleType.values()) {
+            rates[BillingMode.HOURLY.ordinal()][type.ordinal()] = HOURLY_RATES.getOrDefault(type, Double.NaN);
+            rates[BillingMode.MINUTE.ordinal()][type.ordinal()] = MINUTE_RATES.getOrDefault(type, Double.NaN);
+        }
+        return rates;
+    }
+}
+
+// TicketBatch: tickets to settle as parallel primitive arrays. Times are LocalDateTime values
+// flattened to nanoseconds on the UTC timeline, which is exactly what Duration.between sees.
+class TicketBatch {
+    private int[] types;
+    private int[] modes;
+    private int[] gates;
+    private long[] entryNanos;
+    private long[] exitNanos;
+    private int size;
+    private final Map<String, Integer> gateIndex = new HashMap<>();
+    private final List<String> gateIds = new ArrayList<>();
+
+    public TicketBatch(int expectedSize) {
+        int capacity = Math.max(expectedSize, 16);
+        types = new int[capacity];
+        modes = new int[capacity];
+        gates = new int[capacity];
+        entryNanos = new long[capacity];
+        exitNanos = new long[capacity];
+    }
+
+    // Closed ticket: billed at its exit time, attributed to the exit gate
+    public void addClosed(Ticket ticket, LocalDateTime exitTime, BillingMode mode, String exitGateId) {
+        add(ticket.getVehicle().getType(), toNanos(ticket.getEntryTime()), toNanos(exitTime), mode, exitGateId);
+    }
+
+    // Open ticket: provisional fee as of `asOf`, attributed to the entry gate
+    public void addOpen(Ticket ticket, LocalDateTime asOf, BillingMode mode) {
+        add(ticket.getVehicle().getType(), toNanos(ticket.getEntryTime()), toNanos(asOf), mode, ticket.getEntryGateId());
+    }
+
+    public void add(VehicleType type, long entryNanos, long exitNanos, BillingMode mode, String gateId) {
+        if (size == types.length) {
+            grow();
+        }
+        types[size] = type.ordinal();
+        modes[size] = mode.ordinal();
+        gates[size] = gateIndex.computeIfAbsent(gateId, id -> {
+            gateIds.add(id);
+            return gateIds.size() - 1;
+        });
+        this.entryNanos[size] = entryNanos;
+        this.exitNanos[size] = exitNanos;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    static long toNanos(LocalDateTime time) {
+        return time.toEpochSecond(ZoneOffset.UTC) * 1_000_000_000L + time.getNano();
+    }
+
+    int type(int i) {
+        return types[i];
+    }
+
+    int mode(int i) {
+        return modes[i];
+    }
+
+    int gate(int i) {
+        return gates[i];
+    }
+
+    long entryNanos(int i) {
+        return entryNanos[i];
+    }
+
+    long exitNanos(int i) {
+        return exitNanos[i];
+    }
+
+    List<String> gateIds() {
+        return gateIds;
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        modes = Arrays.copyOf(modes, capacity);
+        gates = Arrays.copyOf(gates, capacity);
+        entryNanos = Arrays.copyOf(entryNanos, capacity);
+        exitNanos = Arrays.copyOf(exitNanos, capacity);
+    }
+}
+
+// SettlementReport: per-ticket fees plus totals in cents, so totals don't depend on summation order
+class SettlementReport {
+    private final double[] fees;
+    private final long[] centsByGate;
+    private final long[] centsByType;
+    private final long[] centsByMode;
+    private final List<String> gateIds;
+
+    SettlementReport(double[] fees, long[] centsByGate, long[] centsByType, long[] centsByMode, List<String> gateIds) {
+        this.fees = fees;
+        this.centsByGate = centsByGate;
+        this.centsByType = centsByType;
+        this.centsByMode = centsByMode;
+        this.gateIds = gateIds;
+    }
+
+    public double getFee(int index) {
+        return fees[index];
+    }
+
+    public double getTotalByGate(String gateId) {
+        int gate = gateIds.indexOf(gateId);
+        return gate < 0 ? 0 : centsByGate[gate] / 100.0;
+    }
+
+    public double getTotalByType(VehicleType type) {
+        return centsByType[type.ordinal()] / 100.0;
+    }
+
+    public double getTotalByMode(BillingMode mode) {
+        return centsByMode[mode.ordinal()] / 100.0;
+    }
+
+    public double getGrandTotal() {
+        long cents = 0;
+        for (long c : centsByMode) {
+            cents += c;
+        }
+        return cents / 100.0;
+    }
+
+    public List<String> getGateIds() {
+        return gateIds;
+    }
+}
+
+// BulkBilling: end-of-day settlement. Splits a TicketBatch with fork/join and bills each slice
+// with the same unit arithmetic and rates as Payment.calculateFee, so fees match it exactly.
+class BulkBilling {
+    private static final int LEAF_SIZE = 16_384;
+    private final double[][] rates = Payment.rateTable();
+    private final ForkJoinPool pool;
+
+    public BulkBilling() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public BulkBilling(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public SettlementReport settle(TicketBatch batch) {
+        double[] fees = new double[batch.size()];
+        long[] totals = pool.invoke(new Slice(batch, fees, 0, batch.size()));
+        int gates = batch.gateIds().size();
+        int types = VehicleType.values().length;
+        return new SettlementReport(fees,
+            Arrays.copyOfRange(totals, 0, gates),
+            Arrays.copyOfRange(totals, gates, gates + types),
+            Arrays.copyOfRange(totals, gates + types, totals.length),
+            List.copyOf(batch.gateIds()));
+    }
+
+    // Returns totals laid out as [gates..., types..., modes...] in cents
+    private final class Slice extends RecursiveTask<long[]> {
+        private static final long serialVersionUID = 1L;
+        private final TicketBatch batch;
+        private final double[] fees;
+        private final int from;
+        private final int to;
+
+        Slice(TicketBatch batch, double[] fees, int from, int to) {
+            this.batch = batch;
+            this.fees = fees;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (to - from > LEAF_SIZE) {
+                int mid = (from + to) >>> 1;
+                Slice left = new Slice(batch, fees, from, mid);
+                left.fork();
+                long[] right = new Slice(batch, fees, mid, to).compute();
+                long[] merged = left.join();
+                for (int i = 0; i < merged.length; i++) {
+                    merged[i] += right[i];
+                }
+                return merged;
+            }
+            int gates = batch.gateIds().size();
+            int types = VehicleType.values().length;
+            long[] totals = new long[gates + types + BillingMode.values().length];
+            int hourly = BillingMode.HOURLY.ordinal();
+            for (int i = from; i < to; i++) {
+                int type = batch.type(i);
+                int mode = batch.mode(i);
+                double rate = rates[mode][type];
+                if (Double.isNaN(rate)) {
+                    throw new IllegalArgumentException("Billing not supported for vehicle type: " + VehicleType.values()[type]);
+                }
+                // Same truncation as Duration.toMinutes()/toHours()
+                long seconds = Math.floorDiv(batch.exitNanos(i) - batch.entryNanos(i), 1_000_000_000L);
+                long minutes = seconds / 60;
+                long units = mode == hourly ? seconds / 3600 + (minutes % 60 > 0 ? 1 : 0) : minutes;
+                double fee = units * rate;
+                fees[i] = fee;
+                long cents = Math.round(fee * 100);
+                totals[batch.gate(i)] += cents;
+                totals[gates + type] += cents;
+                totals[gates + types + mode] += cents;
+            }
+            return totals;
+        }
+    }
+}
+
+// TicketTable: preallocated ticket slots for the allocation-free gate path (EntryGate.enterPooled,
+// ExitGate.exitPooled). A pooled ticket is a long handle: slot index in the low 32 bits, the slot's
+// generation in the high 32. The generation moves on every close, so a handle kept from an earlier
+// use of the slot can never free the spot of whoever holds the slot now.
+class TicketTable {
+    private static final VehicleType[] VEHICLE_TYPES = VehicleType.values(); // values() clones on every call
+    private static final byte FREE = 0;
+    private static final byte OPEN = 1;
+    private static final byte CLOSING = 2; // claimed by an exit, payment in progress
+    private final ReentrantLock lock = new ReentrantLock();
+    private final byte[] states;
+    private final int[] generations;
+    private final long[] entryMillis;
+    private final byte[] vehicleTypes;
+    private final ParkingSpot[] spots;
+    private final int[] freeSlots;
+    private int freeCount;
+
+    public TicketTable(int capacity) {
+        this.states = new byte[capacity];
+        this.generations = new int[capacity];
+        this.entryMillis = new long[capacity];
+        this.vehicleTypes = new byte[capacity];
+        this.spots = new ParkingSpot[capacity];
+        this.freeSlots = new int[capacity];
+        for (int i = 0; i < capacity; i++) {
+            freeSlots[i] = capacity - 1 - i; // lowest slots handed out first
+        }
+        this.freeCount = capacity;
+    }
+
+    public int getCapacity() {
+        return states.length;
+    }
+
+    public int getOpenCount() {
+        lock.lock();
+        try {
+            return states.length - freeCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Handle of a new open ticket, or -1 if every slot is taken
+    long open(VehicleType type, ParkingSpot spot, long entryMillis) {
+        lock.lock();
+        try {
+            if (freeCount == 0) {
+                return -1;
+            }
+            int slot = freeSlots[--freeCount];
+            states[slot] = OPEN;
+            this.entryMillis[slot] = entryMillis;
+            vehicleTypes[slot] = (byte) type.ordinal();
+            spots[slot] = spot;
+            return ((long) generations[slot] << 32) | slot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Claims an open ticket for exit: its slot, or -1 if the handle is stale, closed or mid-exit
+    int claim(long handle) {
+        int slot = (int) handle;
+        lock.lock();
+        try {
+            if (handle < 0 || slot >= states.length || generations[slot] != (int) (handle >>> 32) || states[slot] != OPEN) {
+                return -1;
+            }
+            states[slot] = CLOSING;
+            return slot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Payment failed: the ticket stays open under the same handle
+    void unclaim(int slot) {
+        lock.lock();
+        try {
+            states[slot] = OPEN;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void close(int slot) {
+        lock.lock();
+        try {
+            states[slot] = FREE;
+            generations[slot]++;
+            spots[slot] = null;
+            freeSlots[freeCount++] = slot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Read by the exit holding the claim on `slot`
+    long getEntryMillis(int slot) {
+        return entryMillis[slot];
+    }
+
+    VehicleType getVehicleType(int slot) {
+        return VEHICLE_TYPES[vehicleTypes[slot]];
+    }
+
+    ParkingSpot getSpot(int slot) {
+        return spots[slot];
+    }
+}
+
+// Kinds of places in a GarageGraph; spots are destinations only, nobody drives through one
+enum GarageNodeKind {
+    GATE, RAMP, LIFT, AISLE, SPOT
+}
+
+// GarageGraph: the garage as a weighted graph of gates, ramps, lifts, aisles and spots, with every
+// gate's shortest distance (in centimetres) to every spot. compute() runs one Dijkstra per gate,
+// gates in parallel, and hands each floor its spots ranked by distance from each gate; entry gates
+// of an attached lot then allocate the nearest free spot over all floors. Closing an aisle (or a
+// ramp or lift) only re-settles the nodes whose shortest path ran through it, and only the floors
+// with spots among them are re-ranked; reopening relaxes outwards from the reopened node.
+class GarageGraph {
+    static final int UNREACHABLE = Integer.MAX_VALUE;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Integer> gateIndexes = new HashMap<>();
+    private final List<Integer> gateNodes = new ArrayList<>();
+    private final List<ParkingFloor> floors = new ArrayList<>();
+    private final Map<ParkingFloor, int[]> spotNodes = new HashMap<>(); // by floor, node of each slot or -1
+    private byte[] kinds = new byte[64];
+    private int[] spotFloors = new int[64]; // floor index of a spot node, else -1
+    private int[] spotSlots = new int[64];
+    private int nodeCount;
+    private int[] edgeFrom = new int[128];
+    private int[] edgeTo = new int[128];
+    private int[] edgeWeight = new int[128];
+    private int edgeCount;
+    private boolean[] closed = new boolean[64];
+    // Compiled adjacency (CSR) and per-gate shortest-path trees, valid after compute()
+    private int[] adjacencyStart;
+    private int[] adjacencyNode;
+    private int[] adjacencyWeight;
+    private int[][] distances;
+    private int[][] parents;
+    private volatile boolean computed;
+
+    public int addGate(String gateId) {
+        lock.lock();
+        try {
+            if (gateIndexes.containsKey(gateId)) {
+                throw new IllegalArgumentException("Gate " + gateId + " is already in the graph.");
+            }
+            int node = newNode(GarageNodeKind.GATE);
+            gateIndexes.put(gateId, gateNodes.size());
+            gateNodes.add(node);
+            return node;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int addNode(GarageNodeKind kind) {
+        if (kind == GarageNodeKind.GATE || kind == GarageNodeKind.SPOT) {
+            throw new IllegalArgumentException("Use addGate or addSpotRow for " + kind + " nodes.");
+        }
+        lock.lock();
+        try {
+            return newNode(kind);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Two-way connection of `meters`
+    public void connect(int a, int b, double meters) {
+        lock.lock();
+        try {
+            if (a < 0 || a >= nodeCount || b < 0 || b >= nodeCount || a == b) {
+                throw new IllegalArgumentException("Invalid edge " + a + " - " + b);
+            }
+            if (meters < 0) {
+                throw new IllegalArgumentException("Distance cannot be negative.");
+            }
+            addEdge(a, b, (int) Math.round(meters * 100));
+            addEdge(b, a, (int) Math.round(meters * 100));
+            computed = false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Spots `firstSpot`..`lastSpot` (proximity indexes) of `floor` along `aisle`: the first is
+    // `firstMeters` from the aisle node, each next one `spacingMeters` further
+    public void addSpotRow(ParkingFloor floor, int aisle, int firstSpot, int lastSpot, double firstMeters, double spacingMeters) {
+        lock.lock();
+        try {
+            if (firstSpot < 1 || lastSpot < firstSpot || lastSpot > floor.getCapacity()) {
+                throw new IllegalArgumentException("Spots " + firstSpot + "-" + lastSpot + " are outside floor " + floor.getFloorNumber());
+            }
+            int[] nodes = spotNodes.get(floor);
+            if (nodes == null) {
+                nodes = new int[floor.getCapacity()];
+                Arrays.fill(nodes, -1);
+                spotNodes.put(floor, nodes);
+                floors.add(floor);
+            }
+            int floorIndex = floors.indexOf(floor);
+            for (int spot = firstSpot; spot <= lastSpot; spot++) {
+                if (nodes[spot - 1] >= 0) {
+                    throw new IllegalArgumentException("Spot " + spot + " of floor " + floor.getFloorNumber() + " is already in the graph.");
+                }
+                int node = newNode(GarageNodeKind.SPOT);
+                spotFloors[node] = floorIndex;
+                spotSlots[node] = spot - 1;
+                nodes[spot - 1] = node;
+                connect(aisle, node, firstMeters + (spot - firstSpot) * spacingMeters);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Index of the gate in this graph, or -1 if it isn't part of it
+    public int gateIndex(String gateId) {
+        Integer index = gateIndexes.get(gateId);
+        return index == null || !computed ? -1 : index;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    // Distance in centimetres from the gate to the spot, or UNREACHABLE
+    public int distance(String gateId, ParkingFloor floor, int proximityIndex) {
+        Integer gate = gateIndexes.get(gateId);
+        int[] nodes = spotNodes.get(floor);
+        if (gate == null || nodes == null || !computed || nodes[proximityIndex - 1] < 0) {
+            return UNREACHABLE;
+        }
+        return distances[gate][nodes[proximityIndex - 1]];
+    }
+
+    // Full recompute: every gate's shortest paths in parallel, then every floor re-ranked
+    public void compute() {
+        lock.lock();
+        try {
+            compile();
+            int gates = gateNodes.size();
+            distances = new int[gates][];
+            parents = new int[gates][];
+            IntStream.range(0, gates).parallel().forEach(gate -> {
+                int[] dist = new int[nodeCount];
+                int[] parent = new int[nodeCount];
+                Arrays.fill(dist, UNREACHABLE);
+                Arrays.fill(parent, -1);
+                int source = gateNodes.get(gate);
+                dist[source] = 0;
+                LongHeap heap = new LongHeap();
+                heap.push(source); // distance 0
+                settle(dist, parent, heap, null);
+                distances[gate] = dist;
+                parents[gate] = parent;
+            });
+            computed = true;
+            for (int f = 0; f < floors.size(); f++) {
+                rank(f);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Makes this graph the lot's distance model; its entry gates then place walk-ins by distance
+    public void attach(ParkingLot lot) {
+        if (!computed) {
+            compute();
+        }
+        lot.setDistanceModel(this);
+    }
+
+    // Closes an aisle, ramp or lift: only paths that ran through it are recomputed
+    public void closeNode(int node) {
+        lock.lock();
+        try {
+            checkClosable(node);
+            if (closed[node]) {
+                return;
+            }
+            closed[node] = true;
+            boolean[] floorsChanged = new boolean[floors.size()];
+            for (int gate = 0; gate < gateNodes.size(); gate++) {
+                int[] dist = distances[gate];
+                int[] parent = parents[gate];
+                if (dist[node] == UNREACHABLE) {
+                    continue;
+                }
+                // Everything below `node` in this gate's shortest-path tree loses its distance
+                int[] affected = subtree(parent, node);
+                for (int v : affected) {
+                    dist[v] = UNREACHABLE;
+                    parent[v] = -1;
+                }
+                // ...and is re-settled from the best untouched neighbour, if any is left
+                LongHeap heap = new LongHeap();
+                for (int v : affected) {
+                    if (closed[v]) {
+                        continue;
+                    }
+                    for (int e = adjacencyStart[v]; e < adjacencyStart[v + 1]; e++) {
+                        int u = adjacencyNode[e];
+                        if (dist[u] != UNREACHABLE && !closed[u] && kinds[u] != GarageNodeKind.SPOT.ordinal()
+                            && dist[u] + adjacencyWeight[e] < dist[v]) {
+                            dist[v] = dist[u] + adjacencyWeight[e];
+                            parent[v] = u;
+                        }
+                    }
+                    if (dist[v] != UNREACHABLE) {
+                        heap.push(((long) dist[v] << 32) | v);
+                    }
+                }
+                settle(dist, parent, heap, null);
+                markFloors(affected, floorsChanged);
+            }
+            rerank(floorsChanged);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void reopenNode(int node) {
+        lock.lock();
+        try {
+            checkClosable(node);
+            if (!closed[node]) {
+                return;
+            }
+            closed[node] = false;
+            boolean[] floorsChanged = new boolean[floors.size()];
+            for (int gate = 0; gate < gateNodes.size(); gate++) {
+                int[] dist = distances[gate];
+                int[] parent = parents[gate];
+                for (int e = adjacencyStart[node]; e < adjacencyStart[node + 1]; e++) {
+                    int u = adjacencyNode[e];
+                    if (dist[u] != UNREACHABLE && !closed[u] && kinds[u] != GarageNodeKind.SPOT.ordinal()
+                        && dist[u] + adjacencyWeight[e] < dist[node]) {
+                        dist[node] = dist[u] + adjacencyWeight[e];
+                        parent[node] = u;
+                    }
+                }
+                if (dist[node] == UNREACHABLE) {
+                    continue;
+                }
+                // Distances only shrink: relax outwards from the reopened node, recording who moved
+                LongHeap heap = new LongHeap();
+                heap.push(((long) dist[node] << 32) | node);
+                List<Integer> improved = new ArrayList<>();
+                improved.add(node);
+                settle(dist, parent, heap, improved);
+                int[] moved = new int[improved.size()];
+                for (int i = 0; i < moved.length; i++) {
+                    moved[i] = improved.get(i);
+                }
+                markFloors(moved, floorsChanged);
+            }
+            rerank(floorsChanged);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkClosable(int node) {
+        if (!computed) {
+            throw new IllegalStateException("Compute the graph before closing or reopening nodes.");
+        }
+        if (node < 0 || node >= nodeCount || kinds[node] == GarageNodeKind.GATE.ordinal() || kinds[node] == GarageNodeKind.SPOT.ordinal()) {
+            throw new IllegalArgumentException("Only aisles, ramps and lifts can be closed.");
+        }
+    }
+
+    // Dijkstra from whatever is on the heap; entries are (distance << 32 | node), stale ones skipped
+    private void settle(int[] dist, int[] parent, LongHeap heap, List<Integer> improved) {
+        while (!heap.isEmpty()) {
+            long entry = heap.pop();
+            int v = (int) entry;
+            int d = (int) (entry >>> 32);
+            if (d > dist[v] || kinds[v] == GarageNodeKind.SPOT.ordinal()) {
+                continue;
+            }
+            for (int e = adjacencyStart[v]; e < adjacencyStart[v + 1]; e++) {
+                int u = adjacencyNode[e];
+                int candidate = d + adjacencyWeight[e];
+                if (!closed[u] && candidate < dist[u]) {
+                    dist[u] = candidate;
+                    parent[u] = v;
+                    heap.push(((long) candidate << 32) | u);
+                    if (improved != null) {
+                        improved.add(u);
+                    }
+                }
+            }
+        }
+    }
+
+    // `root` and all its descendants in a shortest-path tree
+    private int[] subtree(int[] parent, int root) {
+        int[] childStart = new int[nodeCount + 1];
+        for (int v = 0; v < nodeCount; v++) {
+            if (parent[v] >= 0) {
+                childStart[parent[v] + 1]++;
+            }
+        }
+        for (int v = 0; v < nodeCount; v++) {
+            childStart[v + 1] += childStart[v];
+        }
+        int[] children = new int[childStart[nodeCount]];
+        int[] fill = Arrays.copyOf(childStart, nodeCount);
+        for (int v = 0; v < nodeCount; v++) {
+            if (parent[v] >= 0) {
+                children[fill[parent[v]]++] = v;
+            }
+        }
+        int[] found = new int[nodeCount];
+        int count = 0;
+        found[count++] = root;
+        for (int i = 0; i < count; i++) {
+            int v = found[i];
+            for (int c = childStart[v]; c < childStart[v + 1]; c++) {
+                found[count++] = children[c];
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private void markFloors(int[] nodes, boolean[] floorsChanged) {
+        for (int v : nodes) {
+            if (spotFloors[v] >= 0) {
+                floorsChanged[spotFloors[v]] = true;
+            }
+        }
+    }
+
+    private void rerank(boolean[] floorsChanged) {
+        for (int f = 0; f < floorsChanged.length; f++) {
+            if (floorsChanged[f]) {
+                rank(f);
+            }
+        }
+    }
+
+    // Hands floor `f` its spots' distances from every gate
+    private void rank(int f) {
+        ParkingFloor floor = floors.get(f);
+        int[] nodes = spotNodes.get(floor);
+        for (int gate = 0; gate < gateNodes.size(); gate++) {
+            int[] bySlot = new int[nodes.length];
+            for (int slot = 0; slot < nodes.length; slot++) {
+                bySlot[slot] = nodes[slot] < 0 ? UNREACHABLE : distances[gate][nodes[slot]];
+            }
+            floor.setGateRanking(gate, bySlot);
+        }
+    }
+
+    private void compile() {
+        adjacencyStart = new int[nodeCount + 1];
+        for (int e = 0; e < edgeCount; e++) {
+            adjacencyStart[edgeFrom[e] + 1]++;
+        }
+        for (int v = 0; v < nodeCount; v++) {
+            adjacencyStart[v + 1] += adjacencyStart[v];
+        }
+        adjacencyNode = new int[edgeCount];
+        adjacencyWeight = new int[edgeCount];
+        int[] fill = Arrays.copyOf(adjacencyStart, nodeCount);
+        for (int e = 0; e < edgeCount; e++) {
+            int at = fill[edgeFrom[e]]++;
+            adjacencyNode[at] = edgeTo[e];
+            adjacencyWeight[at] = edgeWeight[e];
+        }
+        closed = Arrays.copyOf(closed, nodeCount);
+    }
+
+    private int newNode(GarageNodeKind kind) {
+        if (nodeCount == kinds.length) {
+            int size = kinds.length * 2;
+            kinds = Arrays.copyOf(kinds, size);
+            spotFloors = Arrays.copyOf(spotFloors, size);
+            spotSlots = Arrays.copyOf(spotSlots, size);
+            closed = Arrays.copyOf(closed, size);
+        }
+        kinds[nodeCount] = (byte) kind.ordinal();
+        spotFloors[nodeCount] = -1;
+        computed = false;
+        return nodeCount++;
+    }
+
+    private void addEdge(int from, int to, int weight) {
+        if (edgeCount == edgeFrom.length) {
+            edgeFrom = Arrays.copyOf(edgeFrom, edgeCount * 2);
+            edgeTo = Arrays.copyOf(edgeTo, edgeCount * 2);
+            edgeWeight = Arrays.copyOf(edgeWeight, edgeCount * 2);
+        }
+        edgeFrom[edgeCount] = from;
+        edgeTo[edgeCount] = to;
+        edgeWeight[edgeCount++] = weight;
+    }
+
+    // Binary min-heap of primitive longs
+    private static class LongHeap {
+        private long[] heap = new long[64];
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void push(long value) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            int i = size++;
+            while (i > 0 && heap[(i - 1) >>> 1] > value) {
+                heap[i] = heap[(i - 1) >>> 1];
+                i = (i - 1) >>> 1;
+            }
+            heap[i] = value;
+        }
+
+        long pop() {
+            long top = heap[0];
+            long last = heap[--size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (heap[child] >= last) {
+                    break;
+                }
+                heap[i] = heap[child];
+                i = child;
+            }
+            heap[i] = last;
+            return top;
+        }
+    }
+}
+
+// MpscQueue: unbounded lock-free queue for many producers and one consumer. Producers swap
+// themselves in as the tail and then link the old tail to their node; the consumer follows the
+// links from a stub head, so a node whose link is still being written is picked up on a later poll.
+class MpscQueue<T> {
+    private static class Node<T> {
+        volatile Node<T> next;
+        T value;
+
+        Node(T value) {
+            this.value = value;
+        }
+    }
+
+    private final AtomicReference<Node<T>> tail;
+    private Node<T> head; // consumer only
+
+    public MpscQueue() {
+        Node<T> stub = new Node<>(null);
+        this.head = stub;
+        this.tail = new AtomicReference<>(stub);
+    }
+
+    public void offer(T value) {
+        Node<T> node = new Node<>(value);
+        tail.getAndSet(node).next = node;
+    }
+
+    // Consumer thread only
+    public T poll() {
+        Node<T> next = head.next;
+        if (next == null) {
+            return null;
+        }
+        T value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    // Consumer thread only
+    public boolean isEmpty() {
+        return head.next == null;
+    }
+}
+
+// FloorEngine: actor execution mode. Every floor of the lot is owned by one worker of a pool sized
+// to the machine's cores; gates send allocate and release commands to the floor's MPSC inbox and
+// get the outcome through a future. Only the owning worker ever calls into its floors, so their
+// locks are never contended. Once closed, queued and later commands fail with IllegalStateException.
+class FloorEngine implements AutoCloseable {
+    private final ParkingLot lot;
+    private final Worker[] workers;
+    private final Map<ParkingFloor, FloorActor> actors = new ConcurrentHashMap<>();
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private volatile boolean running = true;
+
+    public FloorEngine(ParkingLot lot) {
+        this(lot, Runtime.getRuntime().availableProcessors());
+    }
+
+    public FloorEngine(ParkingLot lot, int workerCount) {
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("The engine needs at least one worker.");
+        }
+        this.lot = lot;
+        this.workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker("floor-worker-" + i);
+            workers[i].thread.start();
+        }
+    }
+
+    public int getWorkerCount() {
+        return workers.length;
+    }
+
+    // A free spot on the floor the lot's selection policy picks, trying the next pick while floors
+    // turn out to be full; completes with null if every floor is
+    public CompletableFuture<ParkingSpot> allocate(VehicleType type, String gateId) {
+        List<ParkingFloor> floors = lot.getFloors().getOrDefault(type, List.of());
+        return allocate(floors, new boolean[floors.size()], gateId);
+    }
+
+    private CompletableFuture<ParkingSpot> allocate(List<ParkingFloor> floors, boolean[] tried, String gateId) {
+        int best = lot.getFloorSelection().select(floors, tried, false, false, false);
+        if (best < 0) {
+            return CompletableFuture.completedFuture(null);
+        }
+        tried[best] = true;
+        FloorCommand command = new FloorCommand(gateId, null);
+        actorFor(floors.get(best)).send(command);
+        return command.result.thenCompose(spot -> spot != null ? CompletableFuture.completedFuture(spot) : allocate(floors, tried, gateId));
+    }
+
+    // Frees spots of one floor; completes once they are free (and handed to any waiter)
+    public CompletableFuture<ParkingSpot> release(List<ParkingSpot> spots) {
+        FloorCommand command = new FloorCommand(null, spots);
+        actorFor(spots.get(0).getFloor()).send(command);
+        return command.result;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (Worker worker : workers) {
+            LockSupport.unpark(worker.thread);
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Floors added to the lot later are given to a worker on their first command
+    private FloorActor actorFor(ParkingFloor floor) {
+        FloorActor actor = actors.get(floor);
+        if (actor == null) {
+            actor = actors.computeIfAbsent(floor, f -> {
+                Worker worker = workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+                FloorActor created = new FloorActor(f, worker);
+                worker.actors.add(created);
+                return created;
+            });
+        }
+        return actor;
+    }
+
+    private static class FloorCommand {
+        final String gateId;
+        final List<ParkingSpot> release; // null for an allocation
+        final CompletableFuture<ParkingSpot> result = new CompletableFuture<>();
+        final AtomicBoolean taken = new AtomicBoolean(); // by the worker running it, or by a shutdown failing it
+
+        FloorCommand(String gateId, List<ParkingSpot> release) {
+            this.gateId = gateId;
+            this.release = release;
+        }
+
+        void fail() {
+            if (taken.compareAndSet(false, true)) {
+                result.completeExceptionally(new IllegalStateException("Floor engine is closed."));
+            }
+        }
+    }
+
+    private class FloorActor {
+        final ParkingFloor floor;
+        final Worker worker;
+        final MpscQueue<FloorCommand> inbox = new MpscQueue<>();
+
+        FloorActor(ParkingFloor floor, Worker worker) {
+            this.floor = floor;
+            this.worker = worker;
+        }
+
+        // Checks `running` after queueing: either the worker's final drain sees the command, or this does
+        void send(FloorCommand command) {
+            inbox.offer(command);
+            if (!running) {
+                command.fail();
+            } else if (worker.sleeping) {
+                LockSupport.unpark(worker.thread);
+            }
+        }
+
+        // Worker thread only: runs up to `limit` commands, so one busy floor can't starve the rest
+        int runCommands(int limit) {
+            int done = 0;
+            FloorCommand command;
+            while (done < limit && (command = inbox.poll()) != null) {
+                if (!command.taken.compareAndSet(false, true)) {
+                    continue; // failed by a sender that saw the engine closed
+                }
+                try {
+                    if (command.release == null) {
+                        command.result.complete(floor.allocateSpot(false, false, false, false, command.gateId));
+                    } else if (command.release.size() == 1) {
+                        floor.releaseSpot(command.release.get(0));
+                        command.result.complete(command.release.get(0));
+                    } else {
+                        floor.releaseSpots(command.release);
+                        command.result.complete(command.release.get(0));
+                    }
+                } catch (RuntimeException e) {
+                    command.result.completeExceptionally(e);
+                }
+                done++;
+            }
+            return done;
+        }
+
+        // Worker thread only, once it has stopped
+        void failCommands() {
+            FloorCommand command;
+            while ((command = inbox.poll()) != null) {
+                command.fail();
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        final Thread thread;
+        final List<FloorActor> actors = new CopyOnWriteArrayList<>();
+        volatile boolean sleeping;
+
+        Worker(String name) {
+            this.thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                int done = 0;
+                for (FloorActor actor : actors) {
+                    done += actor.runCommands(256);
+                }
+                if (done == 0) {
+                    // Announce the nap before the last look, so a sender either sees `sleeping` and
+                    // unparks, or its command is seen here
+                    sleeping = true;
+                    if (running && allEmpty()) {
+                        LockSupport.park(this);
+                    }
+                    sleeping = false;
+                }
+            }
+            for (FloorActor actor : actors) {
+                actor.failCommands();
+            }
+        }
+
+        private boolean allEmpty() {
+            for (FloorActor actor : actors) {
+                if (!actor.inbox.isEmpty()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
+
+// FloorSelectionPolicy: which of a type's floors a gate tries next. Returns the floor's index, or -1
+// if none is worth trying; floors marked in `tried` (may be null) and draining floors are skipped.
+// Counts are lock-free peeks, so the chosen floor can still turn out full and the gate asks again.
+interface FloorSelectionPolicy {
+    int select(List<ParkingFloor> floors, boolean[] tried, boolean regularOnly, boolean needsHandicap, boolean needsReserved);
+
+    static FloorSelectionPolicy maxAvailable() {
+        return MaxAvailableFloorSelection.INSTANCE;
+    }
+
+    static FloorSelectionPolicy twoChoices() {
+        return TwoChoicesFloorSelection.INSTANCE;
+    }
+
+    static int freeCount(ParkingFloor floor, boolean regularOnly, boolean needsHandicap, boolean needsReserved) {
+        return regularOnly ? floor.peekAvailableRegularSpots() : floor.peekAvailableSpots(needsHandicap, needsReserved);
+    }
+}
+
+// MaxAvailableFloorSelection: the floor with the most free spots, so every gate agrees on it
+class MaxAvailableFloorSelection implements FloorSelectionPolicy {
+    static final MaxAvailableFloorSelection INSTANCE = new MaxAvailableFloorSelection();
+
+    @Override
+    public int select(List<ParkingFloor> floors, boolean[] tried, boolean regularOnly, boolean needsHandicap, boolean needsReserved) {
+        int best = -1;
+        int bestCount = 0;
+        for (int i = 0; i < floors.size(); i++) {
+            ParkingFloor floor = floors.get(i);
+            if ((tried != null && tried[i]) || floor.isDraining()) {
+                continue;
+            }
+            int count = FloorSelectionPolicy.freeCount(floor, regularOnly, needsHandicap, needsReserved);
+            if (count > bestCount) {
+                best = i;
+                bestCount = count;
+            }
+        }
+        return best;
+    }
+}
+
+// TwoChoicesFloorSelection: power of two choices. Two floors are drawn at random with probability
+// proportional to their free spots, and the one with more free spots per gate already waiting on it
+// wins. Gates arriving together mostly draw different floors, so no single floor lock gets all of
+// them, while emptier floors still fill faster.
+class TwoChoicesFloorSelection implements FloorSelectionPolicy {
+    static final TwoChoicesFloorSelection INSTANCE = new TwoChoicesFloorSelection();
+
+    @Override
+    public int select(List<ParkingFloor> floors, boolean[] tried, boolean regularOnly, boolean needsHandicap, boolean needsReserved) {
+        // Both draws in one pass (weighted reservoir sampling), so no floor's count is read twice
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = -1;
+        int second = -1;
+        long total = 0;
+        for (int i = 0; i < floors.size(); i++) {
+            ParkingFloor floor = floors.get(i);
+            if ((tried != null && tried[i]) || floor.isDraining()) {
+                continue;
+            }
+            int count = FloorSelectionPolicy.freeCount(floor, regularOnly, needsHandicap, needsReserved);
+            if (count <= 0) {
+                continue;
+            }
+            total += count;
+            if (random.nextLong(total) < count) {
+                first = i;
+            }
+            if (random.nextLong(total) < count) {
+                second = i;
+            }
+        }
+        if (first == second) {
+            return first;
+        }
+        return score(floors.get(second), regularOnly, needsHandicap, needsReserved) > score(floors.get(first), regularOnly, needsHandicap, needsReserved) ? second : first;
+    }
+
+    private static double score(ParkingFloor floor, boolean regularOnly, boolean needsHandicap, boolean needsReserved) {
+        return FloorSelectionPolicy.freeCount(floor, regularOnly, needsHandicap, needsReserved) / (1.0 + floor.getWaitingGates());
+    }
+}
+
+// Gate Abstract Class
+abstract class Gate {
+    protected ParkingLot parkingLot;
+    protected Payment payment;
+    protected String gateId;
+    protected boolean verbose = true;
+
+    public Gate(ParkingLot parkingLot, Payment payment, String gateId) {
+        this.parkingLot = parkingLot;
+        this.payment = payment;
+        this.gateId = gateId;
+    }
+
+    public String getGateId() {
+        return gateId;
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+}
+
+// EntryGate
+class EntryGate extends Gate {
+    // Spot leases by vehicle type. Like a thread-local allocation buffer, a lease is meant for the one
+    // thread driving this gate; the floor still stays consistent if several share it.
+    private final SpotLease[] leases = new SpotLease[VehicleType.values().length];
+    private volatile int spotsPerLease;
+    private volatile long leaseMillis;
+
+    public EntryGate(ParkingLot parkingLot, Payment payment, String gateId) {
+        super(parkingLot, payment, gateId);
+    }
+
+    // Regular walk-ins are then served from batches of `spotsPerLease` spots leased from a floor,
+    // given back after `ttl` or once the floor runs short
+    public void enableLeases(int spotsPerLease, Duration ttl) {
+        if (spotsPerLease <= 0) {
+            throw new IllegalArgumentException("A lease needs at least one spot.");
+        }
+        this.leaseMillis = ttl.toMillis();
+        this.spotsPerLease = spotsPerLease;
+    }
+
+    // Stops leasing and gives back what is left of every lease, e.g. when the gate closes
+    public void returnLeases() {
+        spotsPerLease = 0;
+        for (int t = 0; t < leases.length; t++) {
+            SpotLease lease = leases[t];
+            if (lease != null) {
+                lease.getFloor().returnLease(lease);
+                leases[t] = null;
+            }
+        }
+    }
+
+    public Ticket enter(Vehicle vehicle, boolean needsHandicap, boolean needsReserved, boolean hasHandicapPermit, boolean hasReservation) {
+        hasHandicapPermit = needsHandicap && holdsPermit(vehicle, SpotCategory.HANDICAP, hasHandicapPermit);
+        hasReservation = needsReserved && holdsPermit(vehicle, SpotCategory.RESERVED, hasReservation);
+        VehicleType type = vehicle.getType();
+        List<ParkingFloor> ownFloors = parkingLot.getFloors().get(type);
+        boolean anyFloors = ownFloors != null && !ownFloors.isEmpty();
+        for (SpotPlacement placement : parkingLot.getCompatibility().placementsFor(type)) {
+            boolean overflow = placement.getSpotType() != type || placement.getSpotsNeeded() > 1;
+            if (overflow && (needsHandicap || needsReserved)) {
+                continue; // handicap and reserved spots are never lent out to other vehicle types
+            }
+            List<ParkingFloor> floors = parkingLot.getFloors().get(placement.getSpotType());
+            if (floors == null || floors.isEmpty()) {
+                continue;
+            }
+            anyFloors = true;
+            Ticket ticket = overflow
+                ? enterOverflow(vehicle, floors, placement.getSpotsNeeded())
+                : enterOwnType(vehicle, floors, needsHandicap, needsReserved, hasHandicapPermit, hasReservation);
+            if (ticket != null) {
+                return ticket;
+            }
+        }
+        if (!anyFloors) {
+            throw new IllegalArgumentException("No parking floors for vehicle type: " + type);
+        }
+        throw new IllegalStateException("No available spots for " + type + (needsHandicap ? " (handicap)" : "") + (needsReserved ? " (reserved)" : ""));
+    }
+
+    // Like enter, but when the lot is full the request joins the lot's FIFO waitlist instead of
+    // failing, and the future is completed by the exit that frees a matching spot. Only own-type
+    // single spots are handed over. Cancel the future, or use the timeout overload, to give up.
+    public CompletableFuture<Ticket> enterAsync(Vehicle vehicle, boolean needsHandicap, boolean needsReserved, boolean hasHandicapPermit, boolean hasReservation) {
+        // Checked up front: a full floor never gets far enough to check them, and a waiter skips enter
+        hasHandicapPermit = needsHandicap && holdsPermit(vehicle, SpotCategory.HANDICAP, hasHandicapPermit);
+        hasReservation = needsReserved && holdsPermit(vehicle, SpotCategory.RESERVED, hasReservation);
+        if (needsHandicap && !hasHandicapPermit) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Handicap permit required for handicap spot."));
+        }
+        if (needsReserved && !hasReservation) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Reservation required for reserved spot."));
+        }
+        SpotCategory category = needsHandicap ? SpotCategory.HANDICAP : needsReserved ? SpotCategory.RESERVED : SpotCategory.REGULAR;
+        while (true) {
+            try {
+                return CompletableFuture.completedFuture(enter(vehicle, needsHandicap, needsReserved, hasHandicapPermit, hasReservation));
+            } catch (IllegalArgumentException invalid) {
+                return CompletableFuture.failedFuture(invalid);
+            } catch (IllegalStateException full) {
+                // join the waitlist below
+            }
+            ParkingWaitlist.Waiter waiter = parkingLot.getWaitlist().join(this, vehicle, category);
+            // A spot freed between the failed attempt and joining was not handed to anyone; go back
+            // for it, unless a floor has claimed this waiter in the meantime
+            if (!canAllocate(vehicle.getType(), needsHandicap, needsReserved) || !waiter.withdraw()) {
+                return waiter.getFuture();
+            }
+        }
+    }
+
+    public CompletableFuture<Ticket> enterAsync(Vehicle vehicle, boolean needsHandicap, boolean needsReserved, boolean hasHandicapPermit, boolean hasReservation, Duration timeout) {
+        return enterAsync(vehicle, needsHandicap, needsReserved, hasHandicapPermit, hasReservation)
+            .orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    // With a permit service on the lot, the plate is checked there and the caller's claim is ignored
+    private boolean holdsPermit(Vehicle vehicle, SpotCategory category, boolean claimed) {
+        PermitService permits = parkingLot.getPermitService();
+        if (permits == null) {
+            return claimed;
+        }
+        return permits.isPermitted(vehicle.getLicensePlate(), category, parkingLot.getClock().millis());
+    }
+
+    private boolean canAllocate(VehicleType type, boolean needsHandicap, boolean needsReserved) {
+        for (ParkingFloor floor : parkingLot.getFloors().getOrDefault(type, List.of())) {
+            if (floor.canAllocate(needsHandicap, needsReserved)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Entry through a FloorEngine: the spot comes from the owning floor worker, the ticket is issued
+    // when it arrives. Regular own-type spots only; fails with IllegalStateException when full.
+    public CompletableFuture<Ticket> enter(Vehicle vehicle, FloorEngine engine) {
+        VehicleType type = vehicle.getType();
+        return engine.allocate(type, gateId).thenApply(spot -> {
+            if (spot == null) {
+                throw new IllegalStateException("No available spots for " + type);
+            }
+            return issueTicket(vehicle, spot, null, spot.getFloor());
+        });
+    }
+
+    // Ticket for a waitlisted vehicle that a floor has already given `spot`
+    Ticket admit(Vehicle vehicle, ParkingSpot spot, ParkingFloor floor) {
+        return issueTicket(vehicle, spot, null, floor);
+    }
+
+    // Entry for a driver holding an advance booking: they get the booked spot itself
+    public Ticket enter(Vehicle vehicle, Reservation reservation) {
+        if (!reservation.getLicensePlate().equals(vehicle.getLicensePlate())) {
+            throw new IllegalArgumentException("Reservation " + reservation.getReservationId() + " belongs to a different vehicle.");
+        }
+        long now = parkingLot.getClock().millis();
+        if (now >= reservation.getEnd()) {
+            throw new IllegalArgumentException("Reservation " + reservation.getReservationId() + " has expired.");
+        }
+        ParkingFloor floor = reservation.getSpot().getFloor();
+        ParkingSpot spot = floor.allocateBookedSpot(reservation);
+        if (spot == null) {
+            throw new IllegalStateException("Booked spot " + reservation.getSpot().getId() + " is not available.");
+        }
+        return issueTicket(vehicle, spot, null, floor);
+    }
+
+    private Ticket enterOwnType(Vehicle vehicle, List<ParkingFloor> floors, boolean needsHandicap, boolean needsReserved, boolean hasHandicapPermit, boolean hasReservation) {
+        GarageGraph graph = parkingLot.getDistanceModel();
+        int gate = graph == null || needsHandicap || needsReserved ? -1 : graph.gateIndex(gateId);
+        if (gate >= 0) {
+            Ticket ticket = enterNearest(vehicle, floors, gate);
+            if (ticket != null) {
+                return ticket;
+            }
+            // nothing reachable from this gate in the graph: fall back to the floor order below
+        } else if (spotsPerLease > 0 && !needsHandicap && !needsReserved) {
+            ParkingSpot spot = takeLeased(vehicle.getType(), floors);
+            if (spot != null) {
+                return issueTicket(vehicle, spot, null, spot.getFloor());
+            }
+        }
+        // Floor picked by the lot's selection policy. A floor can be drained or filled by another gate
+        // after counting, so fall through to the next pick; `tried` is only allocated on that retry.
+        boolean[] tried = null;
+        for (int attempt = 0; attempt < floors.size(); attempt++) {
+            int best = bestFloor(floors, tried, false, needsHandicap, needsReserved);
+            if (best < 0) {
+                return null;
+            }
+            ParkingFloor floor = floors.get(best);
+            ParkingSpot spot = floor.allocateSpot(needsHandicap, needsReserved, hasHandicapPermit, hasReservation, gateId);
+            if (spot != null) {
+                return issueTicket(vehicle, spot, null, floor);
+            }
+            if (tried == null) {
+                tried = new boolean[floors.size()];
+            }
+            tried[best] = true;
+        }
+        return null;
+    }
+
+    // Next spot from this gate's lease, renewing the lease from the floor the lot's selection policy
+    // picks once it is used up or expired; null if no floor will lease, and the shared path is used
+    private ParkingSpot takeLeased(VehicleType type, List<ParkingFloor> floors) {
+        int t = type.ordinal();
+        long now = parkingLot.getClock().millis();
+        SpotLease lease = leases[t];
+        if (lease != null) {
+            if (!lease.isExpired(now)) {
+                ParkingSpot spot = lease.take();
+                if (spot != null) {
+                    return spot;
+                }
+            }
+            lease.getFloor().returnLease(lease);
+            leases[t] = null;
+        }
+        int best = bestFloor(floors, null, true, false, false);
+        if (best < 0) {
+            return null;
+        }
+        lease = floors.get(best).leaseSpots(spotsPerLease, gateId, now + leaseMillis);
+        if (lease == null) {
+            return null;
+        }
+        leases[t] = lease;
+        return lease.take();
+    }
+
+    // Nearest free spot over all floors by the gate's graph distances; a floor that fills between
+    // asking and allocating is skipped and the next nearest tried
+    private Ticket enterNearest(Vehicle vehicle, List<ParkingFloor> floors, int gate) {
+        boolean[] tried = null;
+        for (int attempt = 0; attempt < floors.size(); attempt++) {
+            int best = -1;
+            int bestDistance = GarageGraph.UNREACHABLE;
+            for (int i = 0; i < floors.size(); i++) {
+                if (tried != null && tried[i]) {
+                    continue;
+                }
+                int distance = floors.get(i).nearestFreeDistance(gate);
+                if (distance < bestDistance) {
+                    best = i;
+                    bestDistance = distance;
+                }
+            }
+            if (best < 0) {
+                return null;
+            }
+            ParkingFloor floor = floors.get(best);
+            ParkingSpot spot = floor.allocateNearest(gate);
+            if (spot != null) {
+                return issueTicket(vehicle, spot, null, floor);
+            }
+            if (tried == null) {
+                tried = new boolean[floors.size()];
+            }
+            tried[best] = true;
+        }
+        return null;
+    }
+
+    private Ticket enterOverflow(Vehicle vehicle, List<ParkingFloor> floors, int spotsNeeded) {
+        boolean[] tried = null;
+        for (int attempt = 0; attempt < floors.size(); attempt++) {
+            int best = bestFloor(floors, tried, true, false, false);
+            if (best < 0) {
+                return null;
+            }
+            ParkingFloor floor = floors.get(best);
+            List<ParkingSpot> spots = floor.allocateRegularRun(spotsNeeded);
+            if (spots != null) {
+                return issueTicket(vehicle, spots.get(0), spots.size() > 1 ? spots : null, floor);
+            }
+            if (tried == null) {
+                tried = new boolean[floors.size()];
+            }
+            tried[best] = true;
+        }
+        return null;
+    }
+
+    private int bestFloor(List<ParkingFloor> floors, boolean[] tried, boolean regularOnly, boolean needsHandicap, boolean needsReserved) {
+        return parkingLot.getFloorSelection().select(floors, tried, regularOnly, needsHandicap, needsReserved);
+    }
+
+    // Allocation-free entry for a regular own-type spot: the ticket is a slot in `table` and the
+    // result its handle, or -1 if the lot or the table is full. Nothing is logged and ticket
+    // observers are not told, as there is no Ticket object.
+    public long enterPooled(VehicleType type, TicketTable table) {
+        List<ParkingFloor> floors = parkingLot.getFloors().get(type);
+        if (floors == null || floors.isEmpty()) {
+            throw new IllegalArgumentException("No parking floors for vehicle type: " + type);
+        }
+        long tried = 0; // floors that came up empty, as bits; floors past 64 are simply retried
+        for (int attempt = 0; attempt < floors.size(); attempt++) {
+            int best = -1;
+            int bestCount = 0;
+            for (int i = 0; i < floors.size(); i++) {
+                ParkingFloor floor = floors.get(i);
+                int count = floor.peekAvailableSpots(false, false);
+                if (count > bestCount && (i >= 64 || (tried & (1L << i)) == 0) && !floor.isDraining()) {
+                    best = i;
+                    bestCount = count;
+                }
+            }
+            if (best < 0) {
+                return -1;
+            }
+            ParkingFloor floor = floors.get(best);
+            ParkingSpot spot = floor.allocateSpot(false, false, false, false, gateId);
+            if (spot != null) {
+                long handle = table.open(type, spot, parkingLot.getClock().millis());
+                if (handle < 0) {
+                    floor.releaseSpot(spot);
+                }
+                return handle;
+            }
+            tried |= best < 64 ? 1L << best : 0;
+        }
+        return -1;
+    }
+
+    private Ticket issueTicket(Vehicle vehicle, ParkingSpot spot, List<ParkingSpot> spots, ParkingFloor floor) {
+        ParkingFactory factory = ParkingFactoryProvider.getFactory(vehicle.getType());
+        Ticket ticket = spots == null
+            ? factory.createTicket(vehicle, spot, floor.getFloorNumber(), gateId, parkingLot.getClock().now())
+            : factory.createTicket(vehicle, spots, floor.getFloorNumber(), gateId, parkingLot.getClock().now());
+        spot.setHolder(ticket);
+        if (verbose) {
+            String spotIds = spots == null ? spot.getId() : spot.getId() + " (+" + (spots.size() - 1) + " adjacent)";
+            System.out.println("Vehicle " + vehicle.getLicensePlate() + " entered via Gate " + gateId + ". Spot: " + spotIds + ", Floor: " + floor.getFloorNumber() + ", Ticket: " + ticket.getTicketId());
+        }
+        parkingLot.notifyTicketIssued(ticket);
+        return ticket;
+    }
+}
+
+// ExitGate
+class ExitGate extends Gate {
+    public ExitGate(ParkingLot parkingLot, Payment payment, String gateId) {
+        super(parkingLot, payment, gateId);
+    }
+
+    // A ticket prepaid at a kiosk is settled in the mode it was paid in, whatever `mode` says
+    public double exit(Ticket ticket, PaymentProcessor processor, BillingMode mode) {
+        LocalDateTime exitTime = parkingLot.getClock().now();
+        PrepaymentLedger.Prepayment prepayment = prepayment(ticket);
+        if (prepayment != null) {
+            mode = prepayment.getMode();
+        }
+        double fee = charge(ticket, processor, mode, exitTime, prepayment);
+        ParkingFloor floor = ticket.getSpot().getFloor();
+        if (ticket.getSpotCount() == 1) {
+            floor.releaseSpot(ticket.getSpot());
+        } else {
+            floor.releaseSpots(ticket.getSpots());
+        }
+        closed(ticket, exitTime, fee, mode);
+        return fee;
+    }
+
+    // Exit through a FloorEngine: payment is taken here, the spot is freed by the floor's worker and
+    // the future completes with the fee once it is
+    public CompletableFuture<Double> exit(Ticket ticket, PaymentProcessor processor, BillingMode mode, FloorEngine engine) {
+        LocalDateTime exitTime = parkingLot.getClock().now();
+        PrepaymentLedger.Prepayment prepayment = prepayment(ticket);
+        BillingMode billed = prepayment == null ? mode : prepayment.getMode();
+        double fee = charge(ticket, processor, billed, exitTime, prepayment);
+        return engine.release(ticket.getSpots()).thenApply(spot -> {
+            closed(ticket, exitTime, fee, billed);
+            return fee;
+        });
+    }
+
+    private PrepaymentLedger.Prepayment prepayment(Ticket ticket) {
+        PrepaymentLedger ledger = parkingLot.getPrepayments();
+        return ledger == null ? null : ledger.get(ticket.getSerial());
+    }
+
+    // Fee for the stay, marked used in the replay guard and paid; the ticket is still open. A ticket
+    // prepaid within the grace period is not billed again and the processor is not called; past it,
+    // only the difference to what the kiosk took is charged.
+    private double charge(Ticket ticket, PaymentProcessor processor, BillingMode mode, LocalDateTime exitTime, PrepaymentLedger.Prepayment prepayment) {
+        if (verbose && !ticket.getEntryGateId().equals(gateId)) {
+            System.out.println("Warning: Vehicle exiting from different gate (" + gateId + ") than entry gate (" + ticket.getEntryGateId() + ")");
+        }
+        ParkingClock clock = parkingLot.getClock();
+        double fee;
+        double due;
+        if (prepayment != null && parkingLot.getPrepayments().covers(prepayment, clock.millis())) {
+            fee = prepayment.getAmount();
+            due = 0;
+        } else {
+            fee = payment.calculateFee(ticket, exitTime, mode);
+            due = prepayment == null ? fee : Math.max(0, fee - prepayment.getAmount());
+        }
+        ReplayGuard guard = parkingLot.getReplayGuard();
+        long replayKey = 0;
+        if (guard != null) {
+            replayKey = TicketCodec.replayKey(ticket.getSerial(), ticket.getEntryEpochMillis());
+            if (!guard.markUsed(replayKey, clock.millis())) {
+                throw new IllegalStateException("Ticket already used: " + ticket.getTicketId());
+            }
+        }
+        if (due > 0 || prepayment == null) {
+            boolean paymentSuccess = processor.processPayment(due);
+            if (!paymentSuccess) {
+                if (guard != null) {
+                    guard.forget(replayKey);
+                }
+                throw new IllegalStateException("Payment failed for ticket: " + ticket.getTicketId());
+            }
+        }
+        return fee;
+    }
+
+    // After the spots are free
+    private void closed(Ticket ticket, LocalDateTime exitTime, double fee, BillingMode mode) {
+        parkingLot.notifyTicketClosed(ticket, gateId, exitTime, fee, mode);
+        if (verbose) {
+            System.out.println("Vehicle " + ticket.getVehicle().getLicensePlate() + " exited via Gate " + gateId + " from spot " + ticket.getSpot().getId() + ", Floor: " + ticket.getFloorNumber() + ". Fee: $" + String.format("%.2f", fee) + " (" + mode + ")");
+        }
+    }
+
+    // Allocation-free exit for a ticket from EntryGate.enterPooled: billed from the entry millis
+    // with Payment's primitive fee path. A stale or already used handle is rejected by the table.
+    public double exitPooled(long handle, TicketTable table, PaymentProcessor processor, BillingMode mode) {
+        int slot = table.claim(handle);
+        if (slot < 0) {
+            throw new IllegalStateException("Ticket handle is not open: " + handle);
+        }
+        double fee = payment.calculateFee(table.getVehicleType(slot), Math.max(0, parkingLot.getClock().millis() - table.getEntryMillis(slot)), mode);
+        if (!processor.processPayment(fee)) {
+            table.unclaim(slot);
+            throw new IllegalStateException("Payment failed for ticket handle: " + handle);
+        }
+        ParkingSpot spot = table.getSpot(slot);
+        table.close(slot);
+        spot.getFloor().releaseSpot(spot);
+        return fee;
+    }
+
+    // Exit on a signed ticket, with no lookup by serial: verify it, then check on its floor that
+    // the spot it names is still held by the ticket it was signed for, and close that ticket through
+    // exit(Ticket, ...) so prepayment, the replay guard and ticket observers all apply. Nothing is
+    // charged unless the floor is in this lot and the holder matches.
+    public double exit(byte[] signedTicket, PaymentProcessor processor, BillingMode mode) {
+        TicketCodec codec = parkingLot.getTicketCodec();
+        if (codec == null) {
+            throw new IllegalStateException("Signed tickets are not enabled for this lot.");
+        }
+        SignedTicket signed = codec.verify(signedTicket);
+        Ticket ticket = hostedSpot(signed).getHolder();
+        if (ticket == null || ticket.getSerial() != signed.getSerial() || ticket.getEntryEpochMillis() != signed.getEntryMillis()
+                || ticket.getVehicle().getType() != signed.getVehicleType() || ticket.getSpotCount() != signed.getSpotCount()) {
+            throw new IllegalStateException("Spot of ticket " + signed.getTicketId() + " is not held by it.");
+        }
+        return exit(ticket, processor, mode);
+    }
+
+    private ParkingSpot hostedSpot(SignedTicket signed) {
+        for (ParkingFloor floor : parkingLot.getFloors().getOrDefault(signed.getFloorType(), List.of())) {
+            if (floor.getFloorNumber() == signed.getFloorNumber() && signed.getProximityIndex() >= 1
+                    && signed.getProximityIndex() <= floor.getCapacity()) {
+                return floor.getSpot(signed.getProximityIndex());
+            }
+        }
+        throw new IllegalStateException("Spot of ticket " + signed.getTicketId() + " is not in this lot.");
+    }
+}
+
+// SignedTicket: the fields of a verified signed ticket, read straight from its bytes
+class SignedTicket {
+    private final byte[] data;
+    private final VehicleType vehicleType;
+    private final VehicleType floorType;
+    private final int spotCount;
+    private final int floorNumber;
+    private final int proximityIndex;
+    private final long serial;
+    private final long entryMillis;
+
+    SignedTicket(byte[] data, VehicleType vehicleType, VehicleType floorType, int spotCount, int floorNumber, int proximityIndex, long serial, long entryMillis) {
+        this.data = data;
+        this.vehicleType = vehicleType;
+        this.floorType = floorType;
+        this.spotCount = spotCount;
+        this.floorNumber = floorNumber;
+        this.proximityIndex = proximityIndex;
+        this.serial = serial;
+        this.entryMillis = entryMillis;
+    }
+
+    public VehicleType getVehicleType() {
+        return vehicleType;
+    }
+
+    public VehicleType getFloorType() {
+        return floorType;
+    }
+
+    public int getSpotCount() {
+        return spotCount;
+    }
+
+    public int getFloorNumber() {
+        return floorNumber;
+    }
+
+    public int getProximityIndex() {
+        return proximityIndex;
+    }
+
+    public long getSerial() {
+        return serial;
+    }
+
+    public long getEntryMillis() {
+        return entryMillis;
+    }
+
+    public String getTicketId() {
+        return Ticket.formatId(serial);
+    }
+
+    public String getEntryGateId() {
+        return new String(data, TicketCodec.GATE_OFFSET + 1, data[TicketCodec.GATE_OFFSET], StandardCharsets.UTF_8);
+    }
+
+    public long replayKey() {
+        return TicketCodec.replayKey(serial, entryMillis);
+    }
+}
+
+// TicketCodec: compact signed encoding of a ticket, so an exit kiosk or another node can verify it
+// and bill it without looking anything up. Layout (big-endian):
+//   [byte version][byte vehicleType][byte floorType][byte spotCount][short floor][int proximityIndex]
+//   [int serial][long entryEpochMillis][byte gateLength][gate UTF-8][16-byte HMAC-SHA256 tag]
+// The tag is HMAC-SHA256 over everything before it, truncated to 128 bits. Thread-safe; each thread
+// gets its own Mac.
+class TicketCodec {
+    static final byte VERSION = 1;
+    static final int GATE_OFFSET = 22;
+    static final int TAG_BYTES = 16;
+    static final int MAX_GATE_BYTES = 32;
+    private static final String ALGORITHM = "HmacSHA256";
+    private final ThreadLocal<Signer> signers;
+
+    public TicketCodec(byte[] key) {
+        SecretKeySpec spec = new SecretKeySpec(key.clone(), ALGORITHM);
+        newMac(spec); // fail fast on a bad key
+        this.signers = ThreadLocal.withInitial(() -> new Signer(newMac(spec)));
+    }
+
+    private static class Signer {
+        final Mac mac;
+        final byte[] digest = new byte[32];
+
+        Signer(Mac mac) {
+            this.mac = mac;
+        }
+    }
+
+    private static Mac newMac(SecretKeySpec spec) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(spec);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Cannot use ticket signing key", e);
+        }
+    }
+
+    public byte[] sign(Ticket ticket) {
+        ParkingSpot spot = ticket.getSpot();
+        return sign(ticket.getVehicle().getType(), spot.getFloor().getType(), ticket.getSpotCount(), ticket.getFloorNumber(),
+            spot.getProximityIndex(), ticket.getSerial(), ticket.getEntryEpochMillis(), ticket.getEntryGateId());
+    }
+
+    public byte[] sign(VehicleType vehicleType, VehicleType floorType, int spotCount, int floorNumber, int proximityIndex, long serial, long entryMillis, String gateId) {
+        byte[] gate = gateId.getBytes(StandardCharsets.UTF_8);
+        if (gate.length > MAX_GATE_BYTES) {
+            throw new IllegalArgumentException("Gate id too long to sign: " + gateId);
+        }
+        int bodyLength = GATE_OFFSET + 1 + gate.length;
+        ByteBuffer buffer = ByteBuffer.allocate(bodyLength + TAG_BYTES);
+        buffer.put(VERSION);
+        buffer.put((byte) vehicleType.ordinal());
+        buffer.put((byte) floorType.ordinal());
+        buffer.put((byte) spotCount);
+        buffer.putShort((short) floorNumber);
+        buffer.putInt(proximityIndex);
+        buffer.putInt((int) serial);
+        buffer.putLong(entryMillis);
+        buffer.put((byte) gate.length);
+        buffer.put(gate);
+        byte[] data = buffer.array();
+        byte[] digest = digest(data, bodyLength);
+        System.arraycopy(digest, 0, data, bodyLength, TAG_BYTES);
+        return data;
+    }
+
+    // Checks the tag and decodes; IllegalArgumentException for anything malformed or forged
+    public SignedTicket verify(byte[] data) {
+        if (data.length < GATE_OFFSET + 1 + TAG_BYTES || data[0] != VERSION) {
+            throw new IllegalArgumentException("Not a signed ticket.");
+        }
+        int gateLength = data[GATE_OFFSET];
+        int bodyLength = GATE_OFFSET + 1 + gateLength;
+        if (gateLength < 0 || gateLength > MAX_GATE_BYTES || data.length != bodyLength + TAG_BYTES) {
+            throw new IllegalArgumentException("Not a signed ticket.");
+        }
+        byte[] digest = digest(data, bodyLength);
+        int diff = 0;
+        for (int i = 0; i < TAG_BYTES; i++) {
+            diff |= digest[i] ^ data[bodyLength + i]; // constant time
+        }
+        if (diff != 0) {
+            throw new IllegalArgumentException("Ticket signature does not match.");
+        }
+        return new SignedTicket(data, VehicleType.ofOrdinal(data[1]), VehicleType.ofOrdinal(data[2]), data[3],
+            (short) readInt(data, 4, 2), readInt(data, 6, 4), readInt(data, 10, 4) & 0xFFFFFFFFL,
+            (long) readInt(data, 14, 4) << 32 | (readInt(data, 18, 4) & 0xFFFFFFFFL));
+    }
+
+    private static int readInt(byte[] data, int offset, int bytes) {
+        int value = 0;
+        for (int i = 0; i < bytes; i++) {
+            value = value << 8 | (data[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    // Printable form for QR codes and receipts
+    public static String toText(byte[] data) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(data);
+    }
+
+    public static byte[] fromText(String text) {
+        return Base64.getUrlDecoder().decode(text);
+    }
+
+    static long replayKey(long serial, long entryMillis) {
+        long key = serial * 0x9E3779B97F4A7C15L ^ entryMillis;
+        key = (key ^ (key >>> 30)) * 0xBF58476D1CE4E5B9L;
+        key = (key ^ (key >>> 27)) * 0x94D049BB133111EBL;
+        return key ^ (key >>> 31);
+    }
+
+    private byte[] digest(byte[] data, int length) {
+        Signer signer = signers.get();
+        signer.mac.update(data, 0, length);
+        try {
+            signer.mac.doFinal(signer.digest, 0);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+        return signer.digest;
+    }
+}
+
+// ReplayGuard: remembers which tickets have been used for an exit, so a signed ticket works once.
+// A signed ticket is only honoured while its ticket is open, however long the stay, so a used key
+// only has to outlive the exit that closes it: keys are kept for `retention` after use, in two
+// generations of `retention` each, the older one dropped on rollover.
+// Striped by key, each stripe an open-addressing table of primitive longs.
+class ReplayGuard {
+    private static final int STRIPES = 64;
+    private final long retentionMillis;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    public ReplayGuard(Duration retention) {
+        this.retentionMillis = retention.toMillis();
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    public long getRetentionMillis() {
+        return retentionMillis;
+    }
+
+    // True the first time a key is seen within the retention window, false on a replay
+    public boolean markUsed(long key, long nowMillis) {
+        Stripe stripe = stripes[(int) (key >>> 58)];
+        stripe.lock.lock();
+        try {
+            stripe.rollTo(nowMillis / retentionMillis);
+            if (stripe.previous.contains(key)) {
+                return false;
+            }
+            return stripe.current.add(key);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    // Undoes markUsed when the exit it guarded did not go through (e.g. payment declined)
+    public void forget(long key) {
+        Stripe stripe = stripes[(int) (key >>> 58)];
+        stripe.lock.lock();
+        try {
+            stripe.current.remove(key);
+            stripe.previous.remove(key);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                size += stripe.current.size + stripe.previous.size;
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    private static class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        LongSet current = new LongSet();
+        LongSet previous = new LongSet();
+        long generation = Long.MIN_VALUE;
+
+        void rollTo(long generation) {
+            if (generation == this.generation) {
+                return;
+            }
+            previous = generation == this.generation + 1 ? current : new LongSet();
+            current = new LongSet();
+            this.generation = generation;
+        }
+    }
+
+    // Linear-probing set of longs; 0 marks an empty slot, so key 0 is stored as 1
+    private static class LongSet {
+        long[] keys = new long[16];
+        int size;
+
+        boolean contains(long key) {
+            key = key == 0 ? 1 : key;
+            int mask = keys.length - 1;
+            for (int i = (int) key & mask; keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean add(long key) {
+            key = key == 0 ? 1 : key;
+            if (size * 2 >= keys.length) {
+                resize();
+            }
+            int mask = keys.length - 1;
+            int i = (int) key & mask;
+            while (keys[i] != 0) {
+                if (keys[i] == key) {
+                    return false;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            size++;
+            return true;
+        }
+
+        void remove(long key) {
+            key = key == 0 ? 1 : key;
+            int mask = keys.length - 1;
+            int i = (int) key & mask;
+            while (keys[i] != 0 && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == 0) {
+                return;
+            }
+            keys[i] = 0;
+            size--;
+            // Re-insert the rest of the probe run so later lookups don't stop at the hole
+            for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                long moved = keys[j];
+                keys[j] = 0;
+                size--;
+                add(moved);
+            }
+        }
+
+        private void resize() {
+            long[] old = keys;
+            keys = new long[old.length * 2];
+            size = 0;
+            for (long key : old) {
+                if (key != 0) {
+                    add(key);
+                }
+            }
+        }
+    }
+}
+
+// Permit: a handicap permit (HANDICAP) or a monthly pass for reserved spots (RESERVED) held by a plate
+class Permit {
+    private final String licensePlate;
+    private final SpotCategory category;
+    private final long validUntil; // epoch millis, exclusive
+
+    public Permit(String licensePlate, SpotCategory category, long validUntil) {
+        if (category == SpotCategory.REGULAR) {
+            throw new IllegalArgumentException("Regular spots need no permit.");
+        }
+        this.licensePlate = licensePlate;
+        this.category = category;
+        this.validUntil = validUntil;
+    }
+
+    public String getLicensePlate() {
+        return licensePlate;
+    }
+
+    public SpotCategory getCategory() {
+        return category;
+    }
+
+    public long getValidUntil() {
+        return validUntil;
+    }
+
+    public boolean isValid(SpotCategory category, long nowMillis) {
+        return this.category == category && nowMillis < validUntil;
+    }
+}
+
+// PermitService: where entry gates check handicap permits and monthly passes
+interface PermitService {
+    // Every permit on record for the plate, expired ones included; empty if there are none
+    List<Permit> findPermits(String licensePlate);
+
+    default boolean isPermitted(String licensePlate, SpotCategory category, long nowMillis) {
+        for (Permit permit : findPermits(licensePlate)) {
+            if (permit.isValid(category, nowMillis)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
+
+// PermitListener: told when a plate's permits change, so caches in front of the store can drop it
+interface PermitListener {
+    void permitsChanged(String licensePlate);
+}
+
+// InMemoryPermitStore: the permit database, kept in memory
+class InMemoryPermitStore implements PermitService {
+    private final Map<String, List<Permit>> permits = new ConcurrentHashMap<>();
+    private final List<PermitListener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong lookups = new AtomicLong();
+
+    public void addListener(PermitListener listener) {
+        listeners.add(listener);
+    }
+
+    public void issue(Permit permit) {
+        permits.compute(permit.getLicensePlate(), (plate, held) -> {
+            List<Permit> updated = held == null ? new ArrayList<>() : new ArrayList<>(held);
+            updated.add(permit);
+            return List.copyOf(updated);
+        });
+        notifyListeners(permit.getLicensePlate());
+    }
+
+    public void revoke(String licensePlate, SpotCategory category) {
+        permits.computeIfPresent(licensePlate, (plate, held) -> {
+            List<Permit> updated = new ArrayList<>(held);
+            updated.removeIf(permit -> permit.getCategory() == category);
+            return updated.isEmpty() ? null : List.copyOf(updated);
+        });
+        notifyListeners(licensePlate);
+    }
+
+    @Override
+    public List<Permit> findPermits(String licensePlate) {
+        lookups.incrementAndGet();
+        return permits.getOrDefault(licensePlate, List.of());
+    }
+
+    public Set<String> getPlates() {
+        return Collections.unmodifiableSet(permits.keySet());
+    }
+
+    public long getLookupCount() {
+        return lookups.get();
+    }
+
+    private void notifyListeners(String licensePlate) {
+        for (PermitListener listener : listeners) {
+            listener.permitsChanged(licensePlate);
+        }
+    }
+}
+
+// PlateBloomFilter: "definitely no permit" for most plates without touching the cache or the store.
+// Bits are only ever set, so it is lock-free; a revoked plate stays in and simply falls through.
+class PlateBloomFilter {
+    private final AtomicLongArray bits;
+    private final int bitCount;
+    private final int hashes;
+
+    // Sized for about 1% false positives at `expectedPlates`
+    public PlateBloomFilter(int expectedPlates) {
+        long wanted = (long) Math.ceil(Math.max(1, expectedPlates) * 9.6);
+        this.bitCount = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, wanted));
+        this.bits = new AtomicLongArray((bitCount + 63) / 64);
+        this.hashes = 7;
+    }
+
+    public void add(String licensePlate) {
+        long hash = hash(licensePlate);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int bit = index(h1 + i * h2);
+            long mask = 1L << bit;
+            int word = bit >>> 6;
+            long current = bits.get(word);
+            while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                current = bits.get(word);
+            }
+        }
+    }
+
+    public boolean mightContain(String licensePlate) {
+        long hash = hash(licensePlate);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < hashes; i++) {
+            int bit = index(h1 + i * h2);
+            if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Maps a 32-bit hash onto [0, bitCount) with a multiply instead of a division
+    private int index(int hash) {
+        return (int) (((hash & 0xffffffffL) * bitCount) >>> 32);
+    }
+
+    // FNV-1a over the chars, then a final mix so both halves are usable
+    private static long hash(String licensePlate) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < licensePlate.length(); i++) {
+            h = (h ^ licensePlate.charAt(i)) * 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        return h ^ (h >>> 33);
+    }
+}
+
+// CachedPermitService: read-through cache in front of a permit store. A Bloom filter of every plate
+// that has ever held a permit answers most "no permit" checks outright; the rest are served from an
+// LRU cache whose entries live for `ttl`, striped like ReplayGuard. Expiry of a permit itself is
+// checked on every call, so a cached entry never outlives the permit it holds.
+class CachedPermitService implements PermitService, PermitListener {
+    private static final int STRIPES = 16;
+    private final PermitService store;
+    private final long ttlMillis;
+    private final ParkingClock clock;
+    private final PlateBloomFilter plates;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final AtomicLong filtered = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public CachedPermitService(PermitService store, Duration ttl, int maxEntries, int expectedPlates, ParkingClock clock) {
+        if (maxEntries < STRIPES) {
+            throw new IllegalArgumentException("Cache must hold at least " + STRIPES + " entries.");
+        }
+        this.store = store;
+        this.ttlMillis = ttl.toMillis();
+        this.clock = clock;
+        this.plates = new PlateBloomFilter(expectedPlates);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(maxEntries / STRIPES);
+        }
+    }
+
+    // Cache over an in-memory store, subscribed to its changes and seeded with its current plates
+    public static CachedPermitService over(InMemoryPermitStore store, Duration ttl, int maxEntries, ParkingClock clock) {
+        CachedPermitService cache = new CachedPermitService(store, ttl, maxEntries, Math.max(1024, store.getPlates().size() * 2), clock);
+        store.addListener(cache); // before seeding, so a permit issued meanwhile is not missed
+        for (String plate : store.getPlates()) {
+            cache.plates.add(plate);
+        }
+        return cache;
+    }
+
+    @Override
+    public List<Permit> findPermits(String licensePlate) {
+        if (!plates.mightContain(licensePlate)) {
+            filtered.incrementAndGet();
+            return List.of();
+        }
+        Stripe stripe = stripes[Math.floorMod(licensePlate.hashCode(), STRIPES)];
+        long now = clock.millis();
+        stripe.lock.lock();
+        try {
+            Entry entry = stripe.entries.get(licensePlate);
+            if (entry != null && now < entry.expiresAt) {
+                hits.incrementAndGet();
+                return entry.permits;
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        misses.incrementAndGet();
+        long version = stripe.version.get();
+        List<Permit> permits = store.findPermits(licensePlate);
+        stripe.lock.lock();
+        try {
+            // Skip the fill if a change was reported while the store was being read
+            if (stripe.version.get() == version) {
+                stripe.entries.put(licensePlate, new Entry(permits, now + ttlMillis));
+            }
+        } finally {
+            stripe.lock.unlock();
+        }
+        return permits;
+    }
+
+    // A plate's permits changed in the store: it may now hold one, and whatever is cached is stale
+    @Override
+    public void permitsChanged(String licensePlate) {
+        plates.add(licensePlate);
+        Stripe stripe = stripes[Math.floorMod(licensePlate.hashCode(), STRIPES)];
+        stripe.lock.lock();
+        try {
+            stripe.version.incrementAndGet();
+            stripe.entries.remove(licensePlate);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    public long getFilteredCount() {
+        return filtered.get();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                size += stripe.entries.size();
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    private static class Entry {
+        final List<Permit> permits;
+        final long expiresAt;
+
+        Entry(List<Permit> permits, long expiresAt) {
+            this.permits = permits;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final AtomicLong version = new AtomicLong();
+        final LinkedHashMap<String, Entry> entries;
+
+        Stripe(int capacity) {
+            // Access order: the eldest entry is the least recently used
+            this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+    }
+}
+
+// PrepaymentLedger: tickets paid ahead at a PaymentKiosk, by serial. An exit within the grace period
+// after the paid-until time only checks the ledger; a later one pays for the extra time. Entries go
+// when their ticket closes.
+class PrepaymentLedger implements TicketObserver {
+    private final Map<Long, Prepayment> paid = new ConcurrentHashMap<>();
+    private final long graceMillis;
+
+    // What has been paid on one ticket: `amount` covers the stay up to `paidUntil` (epoch millis)
+    static class Prepayment {
+        private final long paidUntil;
+        private final double amount;
+        private final BillingMode mode;
+
+        Prepayment(long paidUntil, double amount, BillingMode mode) {
+            this.paidUntil = paidUntil;
+            this.amount = amount;
+            this.mode = mode;
+        }
+
+        public long getPaidUntil() {
+            return paidUntil;
+        }
+
+        public double getAmount() {
+            return amount;
+        }
+
+        public BillingMode getMode() {
+            return mode;
+        }
+    }
+
+    public PrepaymentLedger(Duration grace) {
+        if (grace.isNegative()) {
+            throw new IllegalArgumentException("Grace period cannot be negative.");
+        }
+        this.graceMillis = grace.toMillis();
+    }
+
+    public Prepayment get(long serial) {
+        return paid.get(serial);
+    }
+
+    // Whether a vehicle leaving at `now` owes nothing more
+    public boolean covers(Prepayment prepayment, long now) {
+        return now - prepayment.paidUntil <= graceMillis;
+    }
+
+    public long getGraceMillis() {
+        return graceMillis;
+    }
+
+    public int size() {
+        return paid.size();
+    }
+
+    // Replaces the ticket's entry with what `payment` makes of it (null if there is none yet), atomically
+    // against other payments on the ticket and against its close: a closed ticket is rejected, and
+    // one closing meanwhile has its entry removed after this returns
+    Prepayment record(Ticket ticket, UnaryOperator<Prepayment> payment) {
+        return paid.compute(ticket.getSerial(), (serial, previous) -> {
+            if (ticket.isClosed()) {
+                throw new IllegalStateException("Ticket " + ticket.getTicketId() + " has already exited.");
+            }
+            return payment.apply(previous);
+        });
+    }
+
+    // For exits that close a ticket without a ticketClosed event
+    void remove(long serial) {
+        paid.remove(serial);
+    }
+
+    @Override
+    public void ticketIssued(Ticket ticket) {
+    }
+
+    @Override
+    public void ticketClosed(Ticket ticket, String exitGateId, LocalDateTime exitTime, double fee, BillingMode mode) {
+        paid.remove(ticket.getSerial());
+    }
+}
+
+// PaymentKiosk: pay-on-foot machine. Charges a ticket's fee up to now and marks it paid in the lot's
+// PrepaymentLedger, so the exit barrier doesn't have to take payment.
+class PaymentKiosk extends Gate {
+    public PaymentKiosk(ParkingLot parkingLot, Payment payment, String kioskId) {
+        super(parkingLot, payment, kioskId);
+    }
+
+    // Charges what is owed on the stay so far and returns it; paying again later only charges the
+    // time since. A ticket stays in the billing mode it was first paid in. Two kiosks paying the same
+    // ticket are serialized by the ledger, so the second one only charges what the first left.
+    public double prepay(Ticket ticket, PaymentProcessor processor, BillingMode mode) {
+        PrepaymentLedger ledger = parkingLot.getPrepayments();
+        if (ledger == null) {
+            throw new IllegalStateException("Prepayment is not enabled for this lot.");
+        }
+        ParkingClock clock = parkingLot.getClock();
+        double[] charged = new double[1];
+        ledger.record(ticket, previous -> {
+            if (previous != null && previous.getMode() != mode) {
+                throw new IllegalArgumentException("Ticket " + ticket.getTicketId() + " was paid with " + previous.getMode() + " billing.");
+            }
+            long now = clock.millis();
+            double total = payment.calculateFee(ticket, clock.now(), mode);
+            double due = previous == null ? total : Math.max(0, total - previous.getAmount());
+            if (due > 0 && !processor.processPayment(due)) {
+                throw new IllegalStateException("Payment failed for ticket: " + ticket.getTicketId());
+            }
+            charged[0] = due;
+            return new PrepaymentLedger.Prepayment(now, previous == null ? total : Math.max(total, previous.getAmount()), mode);
+        });
+        double due = charged[0];
+        if (verbose) {
+            System.out.println("Ticket " + ticket.getTicketId() + " paid at kiosk " + gateId + ": $" + String.format("%.2f", due) + " (" + mode + ")");
+        }
+        return due;
+    }
+}
+
+// TicketRegistry: open tickets by serial, kept current as a TicketObserver
+class TicketRegistry implements TicketObserver {
+    private final Map<Long, Ticket> open = new ConcurrentHashMap<>();
+
+    @Override
+    public void ticketIssued(Ticket ticket) {
+        open.put(ticket.getSerial(), ticket);
+    }
+
+    @Override
+    public void ticketClosed(Ticket ticket, String exitGateId, LocalDateTime exitTime, double fee, BillingMode mode) {
+        open.remove(ticket.getSerial());
+    }
+
+    public Ticket get(long serial) {
+        return open.get(serial);
+    }
+
+    // Takes the ticket out so a second exit on it can't free its spot again; see restore
+    Ticket claim(long serial) {
+        return open.remove(serial);
+    }
+
+    void restore(Ticket ticket) {
+        open.put(ticket.getSerial(), ticket);
+    }
+
+    public int size() {
+        return open.size();
+    }
+}
+
+// GateProtocol: length-prefixed binary frames between gate terminals and GateServer. A frame is
+// [int length][byte op or status][int requestId][payload], where length counts everything after
+// itself. Responses echo the requestId of their request, so terminals can pipeline requests on one
+// connection; responses come back in request order. Strings are [short length][UTF-8 bytes].
+//   ENTER         [byte type][byte flags][str gateId][str plate] -> [long ticketSerial][int floor][str spotId][bytes ticket]
+//   EXIT          [bytes ticket][byte billingMode][str gateId] -> [long feeCents]
+//   AVAILABILITY  [byte type] -> [int available][int handicap][int reserved]
+//   LOOKUP        [bytes ticket] -> [byte type][int floor][long entryEpochMillis][str plate][str spotId][str entryGateId]
+//   EXIT_SIGNED   [bytes ticket][byte billingMode][str gateId] -> [long feeCents]
+// Byte strings are [short length][bytes]. The ticket ENTER returns is signed (TicketCodec), and EXIT
+// and LOOKUP take only that: serials are sequential, so a bare serial would let anyone who can reach
+// the server read or close other drivers' tickets. EXIT_SIGNED is ExitGate.exit(byte[], ...) and
+// needs the lot's own codec.
+// A request that fails gets a non-OK status and [str message] as its payload.
+class GateProtocol {
+    static final byte ENTER = 1;
+    static final byte EXIT = 2;
+    static final byte AVAILABILITY = 3;
+    static final byte LOOKUP = 4;
+    static final byte EXIT_SIGNED = 5;
+
+    static final byte OK = 0;
+    static final byte NOT_FOUND = 1;
+    static final byte FULL = 2;
+    static final byte INVALID = 3;
+    static final byte ERROR = 4;
+
+    static final int FLAG_HANDICAP = 1;
+    static final int FLAG_RESERVED = 2;
+    static final int FLAG_HANDICAP_PERMIT = 4;
+    static final int FLAG_RESERVATION = 8;
+
+    static final int HEADER_BYTES = 9; // length, op/status, requestId
+    static final int MAX_FRAME_BYTES = 4096;
+    static final int MAX_STRING_BYTES = 1024;
+
+    static void putBytes(ByteBuffer buffer, byte[] value) {
+        if (value.length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("Byte string too long: " + value.length);
+        }
+        buffer.putShort((short) value.length);
+        buffer.put(value);
+    }
+
+    static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getShort();
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("Bad byte string length " + length);
+        }
+        byte[] value = new byte[length];
+        buffer.get(value);
+        return value;
+    }
+
+    static void putString(ByteBuffer buffer, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(bytes.length, MAX_STRING_BYTES);
+        buffer.putShort((short) length);
+        buffer.put(bytes, 0, length);
+    }
+
+    static String getString(ByteBuffer buffer) {
+        int length = buffer.getShort();
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+// GateServer: serves GateProtocol to gate controllers and exit kiosks. It listens on loopback unless
+// given another address, for a terminal network it is put on deliberately. One selector thread owns
+// every connection and runs the requests itself; enter and exit are short and never block on I/O.
+// Each connection has a direct read and write buffer: every complete frame in the read buffer is
+// answered into the write buffer before one write, and reading pauses while a slow client has
+// not taken its responses.
+class GateServer implements AutoCloseable {
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private final ParkingLot parkingLot;
+    private final Payment payment;
+    private final PaymentProcessor processor; // terminals collect payment themselves; this records it
+    private final TicketRegistry tickets = new TicketRegistry();
+    private final TicketCodec codec; // the lot's, or a key of this server's own
+    private final Map<String, EntryGate> entryGates = new HashMap<>(); // selector thread only
+    private final Map<String, ExitGate> exitGates = new HashMap<>();
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Thread loop;
+    private volatile boolean running = true;
+    private volatile long requestCount;
+
+    public GateServer(ParkingLot parkingLot, Payment payment, PaymentProcessor processor, int port) throws IOException {
+        this(parkingLot, payment, processor, new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public GateServer(ParkingLot parkingLot, Payment payment, PaymentProcessor processor, InetSocketAddress address) throws IOException {
+        this.parkingLot = parkingLot;
+        this.payment = payment;
+        this.processor = processor;
+        TicketCodec lotCodec = parkingLot.getTicketCodec();
+        if (lotCodec == null) {
+            byte[] key = new byte[32];
+            new SecureRandom().nextBytes(key);
+            lotCodec = new TicketCodec(key);
+        }
+        this.codec = lotCodec;
+        parkingLot.addTicketObserver(tickets);
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        this.loop = new Thread(this::run, "gate-server");
+        loop.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public TicketRegistry getTickets() {
+        return tickets;
+    }
+
+    public long getRequestCount() {
+        return requestCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            loop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Connection {
+        final SocketChannel channel;
+        final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_BYTES);
+        final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        disconnect(key); // broken or misbehaving terminal; others are unaffected
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Gate server selector failed", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                disconnect(key);
+            }
+            try {
+                selector.close();
+                serverChannel.close();
+            } catch (IOException ignored) {
+                // shutting down anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        if (connection.channel.read(connection.in) < 0) {
+            disconnect(key);
+            return;
+        }
+        serve(key, connection);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        flush(key, connection);
+        if (connection.out.position() == 0) {
+            serve(key, connection); // frames held back while the write buffer was full
+        }
+    }
+
+    // Answers and writes until no complete frame is left or the client stops taking responses. A
+    // client that has already sent everything sends nothing more to wake OP_READ, so frames left
+    // in the read buffer must not wait for it.
+    private void serve(SelectionKey key, Connection connection) throws IOException {
+        do {
+            process(connection);
+            flush(key, connection);
+        } while (connection.out.position() == 0 && hasFrame(connection.in));
+    }
+
+    // Read buffer in fill mode
+    private static boolean hasFrame(ByteBuffer in) {
+        return in.position() >= 4 && in.position() >= 4 + in.getInt(0);
+    }
+
+    // Answers every complete frame in the read buffer, as long as a worst-case response still fits
+    private void process(Connection connection) throws IOException {
+        ByteBuffer in = connection.in;
+        ByteBuffer out = connection.out;
+        in.flip();
+        long handled = 0;
+        while (in.remaining() >= 4 && out.remaining() >= GateProtocol.MAX_FRAME_BYTES) {
+            int length = in.getInt(in.position());
+            if (length < GateProtocol.HEADER_BYTES - 4 || length > GateProtocol.MAX_FRAME_BYTES - 4) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (in.remaining() < 4 + length) {
+                break;
+            }
+            int frameEnd = in.position() + 4 + length;
+            int limit = in.limit();
+            in.position(in.position() + 4);
+            byte op = in.get();
+            int requestId = in.getInt();
+            in.limit(frameEnd);
+            handle(op, requestId, in, out);
+            in.limit(limit);
+            in.position(frameEnd);
+            handled++;
+        }
+        in.compact();
+        requestCount += handled;
+    }
+
+    private void flush(SelectionKey key, Connection connection) throws IOException {
+        ByteBuffer out = connection.out;
+        out.flip();
+        connection.channel.write(out);
+        out.compact();
+        boolean pending = out.position() > 0;
+        // Stop reading from a client that isn't taking its responses until they drain; OP_WRITE
+        // then brings the server back to the frames still buffered
+        key.interestOps(pending ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    private void disconnect(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // already gone
+        }
+    }
+
+    private void handle(byte op, int requestId, ByteBuffer request, ByteBuffer response) {
+        int start = response.position();
+        response.position(start + GateProtocol.HEADER_BYTES);
+        byte status;
+        try {
+            switch (op) {
+                case GateProtocol.ENTER:
+                    status = enter(request, response);
+                    break;
+                case GateProtocol.EXIT:
+                    status = exit(request, response);
+                    break;
+                case GateProtocol.AVAILABILITY:
+                    status = availability(request, response);
+                    break;
+                case GateProtocol.LOOKUP:
+                    status = lookup(request, response);
+                    break;
+                case GateProtocol.EXIT_SIGNED:
+                    status = exitSigned(request, response);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation " + op);
+            }
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            status = fail(response, start, GateProtocol.INVALID, e);
+        } catch (IllegalStateException e) {
+            status = fail(response, start, op == GateProtocol.ENTER ? GateProtocol.FULL : GateProtocol.ERROR, e);
+        } catch (RuntimeException e) {
+            status = fail(response, start, GateProtocol.ERROR, e);
+        }
+        response.putInt(start, response.position() - start - 4);
+        response.put(start + 4, status);
+        response.putInt(start + 5, requestId);
+    }
+
+    private static byte fail(ByteBuffer response, int start, byte status, RuntimeException e) {
+        response.position(start + GateProtocol.HEADER_BYTES);
+        GateProtocol.putString(response, String.valueOf(e.getMessage()));
+        return status;
+    }
+
+    private byte enter(ByteBuffer request, ByteBuffer response) {
+        VehicleType type = VehicleType.ofOrdinal(request.get());
+        int flags = request.get();
+        String gateId = GateProtocol.getString(request);
+        String plate = GateProtocol.getString(request);
+        EntryGate gate = entryGates.computeIfAbsent(gateId, id -> {
+            EntryGate entryGate = new EntryGate(parkingLot, payment, id);
+            entryGate.setVerbose(false);
+            return entryGate;
+        });
+        Ticket ticket = gate.enter(newVehicle(type, plate),
+            (flags & GateProtocol.FLAG_HANDICAP) != 0, (flags & GateProtocol.FLAG_RESERVED) != 0,
+            (flags & GateProtocol.FLAG_HANDICAP_PERMIT) != 0, (flags & GateProtocol.FLAG_RESERVATION) != 0);
+        response.putLong(ticket.getSerial());
+        response.putInt(ticket.getFloorNumber());
+        GateProtocol.putString(response, ticket.getSpot().getId());
+        GateProtocol.putBytes(response, codec.sign(ticket));
+        return GateProtocol.OK;
+    }
+
+    // The open ticket a signed ticket from ENTER stands for, or null; a forged one is rejected
+    private Ticket openTicket(SignedTicket signed) {
+        Ticket ticket = tickets.get(signed.getSerial());
+        return ticket != null && ticket.getEntryEpochMillis() == signed.getEntryMillis() ? ticket : null;
+    }
+
+    private byte exit(ByteBuffer request, ByteBuffer response) {
+        SignedTicket signed = codec.verify(GateProtocol.getBytes(request));
+        int mode = request.get();
+        String gateId = GateProtocol.getString(request);
+        if (mode < 0 || mode >= BillingMode.values().length) {
+            throw new IllegalArgumentException("Unknown billing mode " + mode);
+        }
+        Ticket ticket = openTicket(signed) == null ? null : tickets.claim(signed.getSerial());
+        if (ticket == null) {
+            GateProtocol.putString(response, "Unknown or closed ticket " + signed.getTicketId());
+            return GateProtocol.NOT_FOUND;
+        }
+        ExitGate gate = exitGate(gateId);
+        double fee;
+        try {
+            fee = gate.exit(ticket, processor, BillingMode.values()[mode]);
+        } catch (RuntimeException e) {
+            tickets.restore(ticket);
+            throw e;
+        }
+        response.putLong(Math.round(fee * 100));
+        return GateProtocol.OK;
+    }
+
+    private byte exitSigned(ByteBuffer request, ByteBuffer response) {
+        byte[] signedTicket = GateProtocol.getBytes(request);
+        int mode = request.get();
+        String gateId = GateProtocol.getString(request);
+        if (mode < 0 || mode >= BillingMode.values().length) {
+            throw new IllegalArgumentException("Unknown billing mode " + mode);
+        }
+        double fee = exitGate(gateId).exit(signedTicket, processor, BillingMode.values()[mode]);
+        response.putLong(Math.round(fee * 100));
+        return GateProtocol.OK;
+    }
+
+    private ExitGate exitGate(String gateId) {
+        return exitGates.computeIfAbsent(gateId, id -> {
+            ExitGate exitGate = new ExitGate(parkingLot, payment, id);
+            exitGate.setVerbose(false);
+            return exitGate;
+        });
+    }
+
+    private byte availability(ByteBuffer request, ByteBuffer response) {
+        VehicleType type = VehicleType.ofOrdinal(request.get());
+        int available = 0;
+        int handicap = 0;
+        int reserved = 0;
+        for (FloorAvailability floor : parkingLot.getAvailability().getFloors().getOrDefault(type, List.of())) {
+            if (!floor.isDraining()) {
+                available += floor.getAvailable();
+                handicap += floor.getHandicap();
+                reserved += floor.getReserved();
+            }
+        }
+        response.putInt(available);
+        response.putInt(handicap);
+        response.putInt(reserved);
+        return GateProtocol.OK;
+    }
+
+    private byte lookup(ByteBuffer request, ByteBuffer response) {
+        SignedTicket signed = codec.verify(GateProtocol.getBytes(request));
+        Ticket ticket = openTicket(signed);
+        if (ticket == null) {
+            GateProtocol.putString(response, "Unknown or closed ticket " + signed.getTicketId());
+            return GateProtocol.NOT_FOUND;
+        }
+        response.put((byte) ticket.getVehicle().getType().ordinal());
+        response.putInt(ticket.getFloorNumber());
+        response.putLong(ticket.getEntryEpochMillis());
+        GateProtocol.putString(response, ticket.getVehicle().getLicensePlate());
+        GateProtocol.putString(response, ticket.getSpot().getId());
+        GateProtocol.putString(response, ticket.getEntryGateId());
+        return GateProtocol.OK;
+    }
+
+    private static Vehicle newVehicle(VehicleType type, String plate) {
+        switch (type) {
+            case CAR:
+                return new Car(plate);
+            case BIKE:
+                return new Bike(plate);
+            case HEAVY:
+                return new HeavyVehicle(plate);
+            default:
+                throw new IllegalArgumentException("Invalid vehicle type: " + type);
+        }
+    }
+}
+
+// GateResponse: one decoded response frame; payload fields are read in protocol order
+class GateResponse {
+    private final int requestId;
+    private final byte status;
+    private final ByteBuffer payload;
+
+    GateResponse(int requestId, byte status, ByteBuffer payload) {
+        this.requestId = requestId;
+        this.status = status;
+        this.payload = payload;
+    }
+
+    public int getRequestId() {
+        return requestId;
+    }
+
+    public byte getStatus() {
+        return status;
+    }
+
+    public boolean isOk() {
+        return status == GateProtocol.OK;
+    }
+
+    public long readLong() {
+        return payload.getLong();
+    }
+
+    public int readInt() {
+        return payload.getInt();
+    }
+
+    public byte readByte() {
+        return payload.get();
+    }
+
+    public String readString() {
+        return GateProtocol.getString(payload);
+    }
+
+    public byte[] readBytes() {
+        return GateProtocol.getBytes(payload);
+    }
+}
+
+// GateClient: blocking GateProtocol client for terminal software, tests and the load driver.
+// Requests are buffered until flush(), so any number can be in flight; read() returns responses
+// in request order.
+class GateClient implements AutoCloseable {
+    private final SocketChannel channel;
+    private final ByteBuffer out = ByteBuffer.allocateDirect(64 * 1024);
+    private final ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+    private int nextRequestId;
+    private int frameStart;
+
+    public GateClient(InetSocketAddress address) throws IOException {
+        this.channel = SocketChannel.open(address);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        in.limit(0);
+    }
+
+    public int enter(VehicleType type, String plate, String gateId, int flags) throws IOException {
+        int requestId = begin(GateProtocol.ENTER);
+        out.put((byte) type.ordinal());
+        out.put((byte) flags);
+        GateProtocol.putString(out, gateId);
+        GateProtocol.putString(out, plate);
+        return end(requestId);
+    }
+
+    // `ticket` is the signed ticket the ENTER response ended with
+    public int exit(byte[] ticket, BillingMode mode, String gateId) throws IOException {
+        int requestId = begin(GateProtocol.EXIT);
+        GateProtocol.putBytes(out, ticket);
+        out.put((byte) mode.ordinal());
+        GateProtocol.putString(out, gateId);
+        return end(requestId);
+    }
+
+    public int exitSigned(byte[] signedTicket, BillingMode mode, String gateId) throws IOException {
+        int requestId = begin(GateProtocol.EXIT_SIGNED);
+        GateProtocol.putBytes(out, signedTicket);
+        out.put((byte) mode.ordinal());
+        GateProtocol.putString(out, gateId);
+        return end(requestId);
+    }
+
+    public int availability(VehicleType type) throws IOException {
+        int requestId = begin(GateProtocol.AVAILABILITY);
+        out.put((byte) type.ordinal());
+        return end(requestId);
+    }
+
+    public int lookup(byte[] ticket) throws IOException {
+        int requestId = begin(GateProtocol.LOOKUP);
+        GateProtocol.putBytes(out, ticket);
+        return end(requestId);
+    }
+
+    public void flush() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    public GateResponse read() throws IOException {
+        fill(4);
+        int length = in.getInt();
+        fill(length);
+        byte status = in.get();
+        int requestId = in.getInt();
+        byte[] payload = new byte[length - GateProtocol.HEADER_BYTES + 4];
+        in.get(payload);
+        return new GateResponse(requestId, status, ByteBuffer.wrap(payload));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private int begin(byte op) throws IOException {
+        if (out.remaining() < GateProtocol.MAX_FRAME_BYTES) {
+            flush();
+        }
+        int requestId = nextRequestId++;
+        frameStart = out.position();
+        out.putInt(0); // length, filled in by end
+        out.put(op);
+        out.putInt(requestId);
+        return requestId;
+    }
+
+    private int end(int requestId) {
+        out.putInt(frameStart, out.position() - frameStart - 4);
+        return requestId;
+    }
+
+    private void fill(int bytes) throws IOException {
+        while (in.remaining() < bytes) {
+            in.compact();
+            if (channel.read(in) < 0) {
+                throw new IOException("Gate server closed the connection");
+            }
+            in.flip();
+        }
+    }
+}
+
+// TenantLotLoader: fills a tenant's empty lot with its floors the first time the tenant is used
+interface TenantLotLoader {
+    void load(String tenantId, ParkingLot lot) throws IOException;
+
+    // Compiled layout images (LayoutCompiler), one per tenant, named <tenantId>.lot
+    static TenantLotLoader images(Path directory) {
+        return (tenantId, lot) -> {
+            Path image = directory.resolve(tenantId + ".lot");
+            if (!Files.exists(image)) {
+                throw new IllegalArgumentException("Unknown tenant: " + tenantId);
+            }
+            LotImage.map(image).loadInto(lot);
+        };
+    }
+}
+
+// LotContainer: many tenants' lots in one process, each a separate ParkingLot. A tenant's lot is
+// loaded on its first gate call and evicted once it has been idle for `idleTimeout` with no
+// vehicle parked or waiting and nothing booked or prepaid; lots holding such state stay, since the
+// container keeps no other copy. So do lots whose permit service or prepayment ledger was swapped
+// after loading, as the loader would not bring that back.
+class LotContainer {
+    private final TenantLotLoader loader;
+    private final long idleMillis;
+    private final ParkingClock clock;
+    private final Payment payment = new Payment();
+    private final Map<String, Tenant> tenants = new ConcurrentHashMap<>();
+    private final AtomicLong loads = new AtomicLong();
+    private final ReentrantLock gateLock = new ReentrantLock(); // creating gates only
+
+    private static class Tenant {
+        final ParkingLot lot;
+        // Gates by id, created on first use; tenants usually have one or two of each
+        volatile Map<String, EntryGate> entryGates = Map.of();
+        volatile Map<String, ExitGate> exitGates = Map.of();
+        final AtomicInteger active = new AtomicInteger(); // gate calls in progress
+        final AtomicBoolean evicted = new AtomicBoolean(); // set by the one evictIdle call handling it
+        final PermitService loadedPermits;
+        final PrepaymentLedger loadedPrepayments;
+        volatile long lastUsed;
+
+        Tenant(ParkingLot lot, long now) {
+            this.lot = lot;
+            this.lastUsed = now;
+            this.loadedPermits = lot.getPermitService();
+            this.loadedPrepayments = lot.getPrepayments();
+        }
+    }
+
+    public LotContainer(TenantLotLoader loader, Duration idleTimeout, ParkingClock clock) {
+        this.loader = loader;
+        this.idleMillis = idleTimeout.toMillis();
+        this.clock = clock;
+    }
+
+    public Ticket enter(String tenantId, String gateId, Vehicle vehicle, boolean needsHandicap, boolean needsReserved, boolean hasHandicapPermit, boolean hasReservation) {
+        Tenant tenant = pin(tenantId);
+        try {
+            return entryGate(tenant, gateId).enter(vehicle, needsHandicap, needsReserved, hasHandicapPermit, hasReservation);
+        } finally {
+            unpin(tenant);
+        }
+    }
+
+    public double exit(String tenantId, String gateId, Ticket ticket, PaymentProcessor processor, BillingMode mode) {
+        Tenant tenant = pin(tenantId);
+        try {
+            ParkingFloor floor = ticket.getSpot().getFloor();
+            if (!tenant.lot.getFloors().getOrDefault(floor.getType(), List.of()).contains(floor)) {
+                throw new IllegalArgumentException("Ticket " + ticket.getTicketId() + " was not issued by tenant " + tenantId);
+            }
+            return exitGate(tenant, gateId).exit(ticket, processor, mode);
+        } finally {
+            unpin(tenant);
+        }
+    }
+
+    // Runs `action` on the tenant's lot (loading it if needed) with eviction held off meanwhile
+    public <T> T withLot(String tenantId, Function<ParkingLot, T> action) {
+        Tenant tenant = pin(tenantId);
+        try {
+            return action.apply(tenant.lot);
+        } finally {
+            unpin(tenant);
+        }
+    }
+
+    // Drops every lot idle for longer than the timeout with nothing to keep; returns how many
+    public int evictIdle() {
+        long cutoff = clock.millis() - idleMillis;
+        int evicted = 0;
+        for (Map.Entry<String, Tenant> entry : tenants.entrySet()) {
+            Tenant tenant = entry.getValue();
+            if (tenant.lastUsed > cutoff || !isEmpty(tenant)) {
+                continue;
+            }
+            // Mark first, then look for callers: a caller pins first, then looks for the mark, so
+            // one of the two always sees the other. Only the call that set the mark may clear it.
+            if (!tenant.evicted.compareAndSet(false, true)) {
+                continue;
+            }
+            if (tenant.active.get() > 0 || !isEmpty(tenant)) {
+                tenant.evicted.set(false);
+            } else if (tenants.remove(entry.getKey(), tenant)) {
+                evicted++;
+            }
+            // otherwise the tenant is gone already and stays marked, so stale holders reload it
+        }
+        return evicted;
+    }
+
+    public int getTenantCount() {
+        return tenants.size();
+    }
+
+    public boolean isLoaded(String tenantId) {
+        return tenants.containsKey(tenantId);
+    }
+
+    public long getLoadCount() {
+        return loads.get();
+    }
+
+    private Tenant pin(String tenantId) {
+        while (true) {
+            Tenant tenant = tenants.get(tenantId);
+            if (tenant == null) {
+                tenant = tenants.computeIfAbsent(tenantId, this::load);
+            }
+            tenant.active.incrementAndGet();
+            if (!tenant.evicted.get()) {
+                return tenant;
+            }
+            // Lost to an eviction in progress; it either completes and the lot is reloaded, or backs off
+            tenant.active.decrementAndGet();
+            Thread.onSpinWait();
+        }
+    }
+
+    private void unpin(Tenant tenant) {
+        tenant.lastUsed = clock.millis();
+        tenant.active.decrementAndGet();
+    }
+
+    private Tenant load(String tenantId) {
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        lot.setClock(clock);
+        try {
+            loader.load(tenantId, lot);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to load lot of tenant " + tenantId, e);
+        }
+        loads.incrementAndGet();
+        return new Tenant(lot, clock.millis());
+    }
+
+    private static boolean isEmpty(Tenant tenant) {
+        ParkingLot lot = tenant.lot;
+        PrepaymentLedger prepayments = lot.getPrepayments();
+        if (lot.getWaitlist().hasWaiters() || lot.getPermitService() != tenant.loadedPermits
+                || prepayments != tenant.loadedPrepayments || (prepayments != null && prepayments.size() > 0)) {
+            return false;
+        }
+        for (List<ParkingFloor> floorList : lot.getFloors().values()) {
+            for (ParkingFloor floor : floorList) {
+                if (floor.getOccupiedSpots() > 0 || floor.getBookingCount() > 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private EntryGate entryGate(Tenant tenant, String gateId) {
+        EntryGate gate = tenant.entryGates.get(gateId);
+        if (gate == null) {
+            gateLock.lock();
+            try {
+                gate = tenant.entryGates.get(gateId);
+                if (gate == null) {
+                    gate = new EntryGate(tenant.lot, payment, gateId);
+                    gate.setVerbose(false);
+                    Map<String, EntryGate> gates = new HashMap<>(tenant.entryGates);
+                    gates.put(gateId, gate);
+                    tenant.entryGates = gates;
+                }
+            } finally {
+                gateLock.unlock();
+            }
+        }
+        return gate;
+    }
+
+    private ExitGate exitGate(Tenant tenant, String gateId) {
+        ExitGate gate = tenant.exitGates.get(gateId);
+        if (gate == null) {
+            gateLock.lock();
+            try {
+                gate = tenant.exitGates.get(gateId);
+                if (gate == null) {
+                    gate = new ExitGate(tenant.lot, payment, gateId);
+                    gate.setVerbose(false);
+                    Map<String, ExitGate> gates = new HashMap<>(tenant.exitGates);
+                    gates.put(gateId, gate);
+                    tenant.exitGates = gates;
+                }
+            } finally {
+                gateLock.unlock();
+            }
+        }
+        return gate;
+    }
+}
+
+// Distribution: random durations or rates for simulations, in whatever unit the caller uses
+interface Distribution {
+    double sample(Random random);
+
+    static Distribution fixed(double value) {
+        return random -> value;
+    }
+
+    static Distribution uniform(double min, double max) {
+        return random -> min + (max - min) * random.nextDouble();
+    }
+
+    static Distribution exponential(double mean) {
+        return random -> -mean * Math.log(1 - random.nextDouble());
+    }
+
+    // Log-normal with the given median; sigma is the standard deviation of the underlying normal
+    static Distribution logNormal(double median, double sigma) {
+        return random -> median * Math.exp(sigma * random.nextGaussian());
+    }
+}
+
+// TrafficProfile: arrivals and stays of one vehicle type. Arrivals are a Poisson process whose rate
+// (vehicles per hour) follows the hour of day; stays are drawn from `dwellMinutes`.
+class TrafficProfile {
+    private final VehicleType type;
+    private final double[] arrivalsPerHour;
+    private final Distribution dwellMinutes;
+    private double handicapShare;
+    private double reservedShare;
+    private double hourlyBillingShare = 0.5;
+
+    public TrafficProfile(VehicleType type, double[] arrivalsPerHour, Distribution dwellMinutes) {
+        if (arrivalsPerHour.length != 24) {
+            throw new IllegalArgumentException("Arrival rates are needed for each of the 24 hours.");
+        }
+        this.type = type;
+        this.arrivalsPerHour = arrivalsPerHour.clone();
+        this.dwellMinutes = dwellMinutes;
+    }
+
+    // Same rate all day
+    public static TrafficProfile steady(VehicleType type, double arrivalsPerHour, Distribution dwellMinutes) {
+        double[] rates = new double[24];
+        Arrays.fill(rates, arrivalsPerHour);
+        return new TrafficProfile(type, rates, dwellMinutes);
+    }
+
+    // Share of arrivals that hold a handicap permit and ask for a handicap spot, or hold a
+    // reservation and ask for a reserved spot
+    public TrafficProfile withPermits(double handicapShare, double reservedShare) {
+        this.handicapShare = handicapShare;
+        this.reservedShare = reservedShare;
+        return this;
+    }
+
+    public TrafficProfile withHourlyBillingShare(double hourlyBillingShare) {
+        this.hourlyBillingShare = hourlyBillingShare;
+        return this;
+    }
+
+    public VehicleType getType() {
+        return type;
+    }
+
+    public Distribution getDwellMinutes() {
+        return dwellMinutes;
+    }
+
+    public double getHandicapShare() {
+        return handicapShare;
+    }
+
+    public double getReservedShare() {
+        return reservedShare;
+    }
+
+    public double getHourlyBillingShare() {
+        return hourlyBillingShare;
+    }
+
+    public double getArrivalsPerHour(int hourOfDay) {
+        return arrivalsPerHour[hourOfDay];
+    }
+
+    public double getPeakArrivalsPerHour() {
+        double peak = 0;
+        for (double rate : arrivalsPerHour) {
+            peak = Math.max(peak, rate);
+        }
+        return peak;
+    }
+}
+
+// GarageLayout: the floors to build for one simulated garage
+class GarageLayout {
+    private final String name;
+    private final List<int[]> floors = new ArrayList<>(); // {type ordinal, capacity, handicap, reserved}
+    private FloorSelectionPolicy floorSelection = FloorSelectionPolicy.maxAvailable();
+
+    public GarageLayout(String name) {
+        this.name = name;
+    }
+
+    public GarageLayout withFloorSelection(FloorSelectionPolicy floorSelection) {
+        this.floorSelection = floorSelection;
+        return this;
+    }
+
+    public GarageLayout addFloors(VehicleType type, int count, int capacity, int handicapSpots, int reservedSpots) {
+        for (int i = 0; i < count; i++) {
+            floors.add(new int[]{type.ordinal(), capacity, handicapSpots, reservedSpots});
+        }
+        return this;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    ParkingLot build(ParkingClock clock) {
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        lot.setClock(clock);
+        lot.setFloorSelection(floorSelection);
+        Map<VehicleType, Integer> floorNumbers = new EnumMap<>(VehicleType.class);
+        for (int[] floor : floors) {
+            VehicleType type = VehicleType.values()[floor[0]];
+            int floorNumber = floorNumbers.merge(type, 1, Integer::sum);
+            lot.addFloor(type, floorNumber, floor[1], floor[2], floor[3]);
+        }
+        return lot;
+    }
+}
+
+// SimulationResult: what one simulated run of a layout produced
+class SimulationResult {
+    private final String layoutName;
+    private final Map<VehicleType, long[]> counts = new EnumMap<>(VehicleType.class); // {arrivals, rejected, parked, proximity sum}
+    private final double[] occupancyByHour = new double[24]; // mean occupied share of all spots
+    private final int[] samplesByHour = new int[24];
+    private double peakOccupancy;
+    private double revenue;
+
+    SimulationResult(String layoutName) {
+        this.layoutName = layoutName;
+        for (VehicleType type : VehicleType.values()) {
+            counts.put(type, new long[4]);
+        }
+    }
+
+    void arrived(VehicleType type) {
+        counts.get(type)[0]++;
+    }
+
+    void rejected(VehicleType type) {
+        counts.get(type)[1]++;
+    }
+
+    void parked(VehicleType type, int proximityIndex) {
+        long[] typeCounts = counts.get(type);
+        typeCounts[2]++;
+        typeCounts[3] += proximityIndex;
+    }
+
+    void billed(double fee) {
+        revenue += fee;
+    }
+
+    void sampled(int hourOfDay, double occupancy) {
+        occupancyByHour[hourOfDay] += occupancy;
+        samplesByHour[hourOfDay]++;
+        peakOccupancy = Math.max(peakOccupancy, occupancy);
+    }
+
+    public String getLayoutName() {
+        return layoutName;
+    }
+
+    public double getRevenue() {
+        return revenue;
+    }
+
+    public double getPeakOccupancy() {
+        return peakOccupancy;
+    }
+
+    public double getRejectionRate(VehicleType type) {
+        long[] typeCounts = counts.get(type);
+        return typeCounts[0] == 0 ? 0 : (double) typeCounts[1] / typeCounts[0];
+    }
+
+    public double getRejectionRate() {
+        long arrivals = 0;
+        long rejected = 0;
+        for (long[] typeCounts : counts.values()) {
+            arrivals += typeCounts[0];
+            rejected += typeCounts[1];
+        }
+        return arrivals == 0 ? 0 : (double) rejected / arrivals;
+    }
+
+    // Mean proximityIndex of the spots handed out: a proxy for walking distance
+    public double getMeanProximity(VehicleType type) {
+        long[] typeCounts = counts.get(type);
+        return typeCounts[2] == 0 ? 0 : (double) typeCounts[3] / typeCounts[2];
+    }
+
+    // Mean share of spots occupied at each hour of the day, averaged over the simulated days
+    public double[] getOccupancyByHour() {
+        double[] curve = new double[24];
+        for (int h = 0; h < 24; h++) {
+            curve[h] = samplesByHour[h] == 0 ? 0 : occupancyByHour[h] / samplesByHour[h];
+        }
+        return curve;
+    }
+}
+
+// GarageSimulator: discrete-event simulation of traffic through a layout, using the real lot, gates
+// and billing on a virtual clock. Events (arrivals, departures, occupancy samples) come off a
+// priority queue in time order; the clock jumps straight to each one. Runs are independent, so a
+// sweep simulates layouts in parallel.
+class GarageSimulator {
+    private final List<TrafficProfile> traffic;
+    private final Duration length;
+    private final Duration sampleInterval;
+    private final int entryGates;
+    private final long seed;
+    private final LocalDateTime start = LocalDateTime.of(2025, 6, 2, 0, 0); // a Monday
+
+    public GarageSimulator(List<TrafficProfile> traffic, Duration length, Duration sampleInterval, int entryGates, long seed) {
+        this.traffic = List.copyOf(traffic);
+        this.length = length;
+        this.sampleInterval = sampleInterval;
+        this.entryGates = entryGates;
+        this.seed = seed;
+    }
+
+    private static final int ARRIVAL = 0;
+    private static final int DEPARTURE = 1;
+    private static final int SAMPLE = 2;
+
+    private static class Event {
+        final long time;
+        final long sequence; // ties are handled in the order they were scheduled
+        final int kind;
+        final TrafficProfile profile;
+        final Ticket ticket;
+        final BillingMode mode;
+
+        Event(long time, long sequence, int kind, TrafficProfile profile, Ticket ticket, BillingMode mode) {
+            this.time = time;
+            this.sequence = sequence;
+            this.kind = kind;
+            this.profile = profile;
+            this.ticket = ticket;
+            this.mode = mode;
+        }
+    }
+
+    public List<SimulationResult> sweep(List<GarageLayout> layouts) {
+        return layouts.parallelStream().map(this::run).collect(Collectors.toList());
+    }
+
+    public SimulationResult run(GarageLayout layout) {
+        VirtualParkingClock clock = new VirtualParkingClock(start);
+        ParkingLot lot = layout.build(clock);
+        Payment payment = new Payment(clock);
+        EntryGate[] gates = new EntryGate[entryGates];
+        for (int g = 0; g < entryGates; g++) {
+            gates[g] = new EntryGate(lot, payment, "GATE-" + (g + 1));
+            gates[g].setVerbose(false);
+        }
+        ExitGate exit = new ExitGate(lot, payment, "EXIT-1");
+        exit.setVerbose(false);
+        PaymentProcessor processor = amount -> true;
+        Random random = new Random(seed); // same traffic for every layout
+        SimulationResult result = new SimulationResult(layout.getName());
+        PriorityQueue<Event> events = new PriorityQueue<>((a, b) -> a.time != b.time ? Long.compare(a.time, b.time) : Long.compare(a.sequence, b.sequence));
+        long origin = clock.millis();
+        long end = origin + length.toMillis();
+        long sequence = 0;
+        for (TrafficProfile profile : traffic) {
+            long first = nextArrival(profile, origin, random);
+            if (first < end) {
+                events.add(new Event(first, sequence++, ARRIVAL, profile, null, null));
+            }
+        }
+        events.add(new Event(origin, sequence++, SAMPLE, null, null, null));
+        int capacity = 0;
+        for (List<FloorAvailability> floors : lot.getAvailability().getFloors().values()) {
+            for (FloorAvailability floor : floors) {
+                capacity += floor.getCapacity();
+            }
+        }
+        int nextGate = 0;
+        while (!events.isEmpty()) {
+            Event event = events.poll();
+            clock.advanceTo(event.time);
+            if (event.kind == DEPARTURE) {
+                result.billed(exit.exit(event.ticket, processor, event.mode));
+                continue;
+            }
+            if (event.time >= end) {
+                continue; // past the horizon: only departures are still played out, for revenue
+            }
+            if (event.kind == SAMPLE) {
+                int occupied = 0;
+                for (List<FloorAvailability> floors : lot.getAvailability().getFloors().values()) {
+                    for (FloorAvailability floor : floors) {
+                        occupied += floor.getOccupied();
+                    }
+                }
+                result.sampled(clock.now().getHour(), capacity == 0 ? 0 : (double) occupied / capacity);
+                events.add(new Event(event.time + sampleInterval.toMillis(), sequence++, SAMPLE, null, null, null));
+                continue;
+            }
+            TrafficProfile profile = event.profile;
+            VehicleType type = profile.getType();
+            result.arrived(type);
+            double kind = random.nextDouble();
+            boolean handicap = kind < profile.getHandicapShare();
+            boolean reserved = !handicap && kind < profile.getHandicapShare() + profile.getReservedShare();
+            BillingMode mode = random.nextDouble() < profile.getHourlyBillingShare() ? BillingMode.HOURLY : BillingMode.MINUTE;
+            long dwell = (long) (Math.max(1, profile.getDwellMinutes().sample(random)) * 60_000);
+            try {
+                Ticket ticket = gates[nextGate].enter(newVehicle(type, "SIM" + sequence), handicap, reserved, handicap, reserved);
+                result.parked(type, ticket.getSpot().getProximityIndex());
+                events.add(new Event(event.time + dwell, sequence++, DEPARTURE, null, ticket, mode));
+            } catch (IllegalStateException | IllegalArgumentException turnedAway) {
+                result.rejected(type);
+            }
+            nextGate = (nextGate + 1) % gates.length;
+            long next = nextArrival(profile, event.time, random);
+            if (next < end) {
+                events.add(new Event(next, sequence++, ARRIVAL, profile, null, null));
+            }
+        }
+        return result;
+    }
+
+    // Non-homogeneous Poisson arrivals by thinning: candidates at the peak rate, each kept with
+    // probability rate(hour) / peak
+    private long nextArrival(TrafficProfile profile, long after, Random random) {
+        double peak = profile.getPeakArrivalsPerHour();
+        if (peak <= 0) {
+            return Long.MAX_VALUE;
+        }
+        long time = after;
+        while (true) {
+            time += (long) (-Math.log(1 - random.nextDouble()) / peak * 3_600_000);
+            int hour = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault()).getHour();
+            if (random.nextDouble() * peak < profile.getArrivalsPerHour(hour)) {
+                return time;
+            }
+        }
+    }
+
+    private static Vehicle newVehicle(VehicleType type, String plate) {
+        switch (type) {
+            case CAR:
+                return new Car(plate);
+            case BIKE:
+                return new Bike(plate);
+            case HEAVY:
+                return new HeavyVehicle(plate);
+            default:
+                throw new IllegalArgumentException("Invalid vehicle type: " + type);
+        }
+    }
+}
+
+// Benchmarks: java ...ParkingBenchmarks [name], run without a name for all of them
+class ParkingBenchmarks {
+    static final PaymentProcessor SILENT_PAYMENT = amount -> true;
+
+    public static void main(String[] args) {
+        String name = args.length > 0 ? args[0] : "all";
+        if (name.equals("all") || name.equals("fragmentation")) {
+            fragmentation();
+        }
+        if (name.equals("all") || name.equals("reservations")) {
+            reservations();
+        }
+        if (name.equals("all") || name.equals("sensors")) {
+            sensors();
+        }
+        if (name.equals("all") || name.equals("overstay")) {
+            overstay();
+        }
+        if (name.equals("all") || name.equals("archive")) {
+            archive();
+        }
+        if (name.equals("all") || name.equals("settlement")) {
+            settlement();
+        }
+        if (name.equals("all") || name.equals("flyweight")) {
+            flyweight();
+        }
+        if (name.equals("all") || name.equals("waitlist")) {
+            waitlist();
+        }
+        if (name.equals("all") || name.equals("availability")) {
+            availability();
+        }
+        if (name.equals("all") || name.equals("gateserver")) {
+            gateServer();
+        }
+        if (name.equals("all") || name.equals("signedtickets")) {
+            signedTickets();
+        }
+        if (name.equals("all") || name.equals("simweek")) {
+            simulatedWeek();
+        }
+        if (name.equals("all") || name.equals("capacity")) {
+            capacityPlanning();
+        }
+        if (name.equals("all") || name.equals("permits")) {
+            permits();
+        }
+        if (name.equals("all") || name.equals("layoutimage")) {
+            layoutImage();
+        }
+        if (name.equals("all") || name.equals("pooled")) {
+            pooledTickets();
+        }
+        if (name.equals("all") || name.equals("distance")) {
+            garageDistances();
+        }
+        if (name.equals("all") || name.equals("leases")) {
+            spotLeases();
+        }
+        if (name.equals("all") || name.equals("actors")) {
+            floorActors();
+        }
+        if (name.equals("all") || name.equals("combining")) {
+            flatCombining();
+        }
+        if (name.equals("all") || name.equals("floorpolicy")) {
+            floorPolicies();
+        }
+        if (name.equals("all") || name.equals("tenants")) {
+            lotTenants();
+        }
+        if (name.equals("all") || name.equals("prepay")) {
+            kioskPrepayment();
+        }
+        if (name.equals("all") || name.equals("spatial")) {
+            spatialQueries();
+        }
+    }
+
+    // Enter+exit cycles per second with 2-64 gate threads on 8 floors of 5000 spots, gates locking
+    // the floors themselves against gates sending commands to floor workers
+    static void floorActors() {
+        int workers = Runtime.getRuntime().availableProcessors();
+        System.out.println("actors: enter+exit cycles per second, 8 floors of 5000 spots, " + workers + " floor workers");
+        for (int gates : new int[]{2, 4, 8, 16, 32, 64}) {
+            double locked = actorCycleRate(gates, false);
+            double actors = actorCycleRate(gates, true);
+            System.out.printf("  %2d gates: locks %,.0f/s, actors %,.0f/s%n", gates, locked, actors);
+        }
+    }
+
+    private static double actorCycleRate(int gateCount, boolean actorMode) {
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        for (int f = 1; f <= 8; f++) {
+            lot.addFloor(VehicleType.CAR, f, 5000, 0, 0);
+        }
+        FloorEngine engine = actorMode ? new FloorEngine(lot) : null;
+        try {
+            return gateCycleRate(lot, gateCount, engine);
+        } finally {
+            if (engine != null) {
+                engine.close();
+            }
+        }
+    }
+
+    // Every gate on one popular floor of 5000 spots, queueing on its lock or combining
+    static void flatCombining() {
+        System.out.println("combining: enter+exit cycles per second, all gates on 1 floor of 5000 spots");
+        for (int gates : new int[]{2, 4, 8, 16, 32, 64}) {
+            double locked = combiningCycleRate(gates, false);
+            double combined = combiningCycleRate(gates, true);
+            System.out.printf("  %2d gates: lock %,.0f/s, flat combining %,.0f/s%n", gates, locked, combined);
+        }
+    }
+
+    private static double combiningCycleRate(int gateCount, boolean combining) {
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        lot.addFloor(VehicleType.CAR, 1, 5000, 0, 0);
+        lot.setFlatCombining(combining);
+        return gateCycleRate(lot, gateCount, null);
+    }
+
+    // A floor of 50 aisles x 100 spots (2.5 m apart, aisles 16 m apart) about 70% full: 5 nearest free
+    // spots and free spots within 20 m of random points, through the grid against a scan of every
+    // spot, checked to agree; then gate cycles per second with and without a thread querying
+    static void spatialQueries() {
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        lot.addFloor(VehicleType.CAR, 1, 5000, 50, 50);
+        ParkingFloor floor = lot.getFloors().get(VehicleType.CAR).get(0);
+        FloorSpatialIndex.Builder builder = new FloorSpatialIndex.Builder(5000, 10);
+        for (int aisle = 0; aisle < 50; aisle++) {
+            builder.row(aisle, aisle * 100 + 1, aisle * 100 + 100, 0, aisle * 16, 2.5, 0);
+        }
+        FloorSpatialIndex index = builder.build();
+        floor.setSpatialIndex(index);
+        Payment payment = new Payment();
+        EntryGate entry = new EntryGate(lot, payment, "GATE-1");
+        ExitGate exit = new ExitGate(lot, payment, "EXIT-1");
+        entry.setVerbose(false);
+        exit.setVerbose(false);
+        List<Ticket> parked = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            parked.add(entry.enter(new Car("NAV" + i), false, false, false, false));
+        }
+        Random random = new Random(11);
+        Collections.shuffle(parked, random);
+        for (Ticket ticket : parked.subList(0, 1500)) {
+            exit.exit(ticket, SILENT_PAYMENT, BillingMode.MINUTE);
+        }
+        float[][] positions = new float[2][5001];
+        for (int aisle = 0; aisle < 50; aisle++) {
+            for (int i = 0; i < 100; i++) {
+                positions[0][aisle * 100 + i + 1] = i * 2.5f;
+                positions[1][aisle * 100 + i + 1] = aisle * 16;
+            }
+        }
+        int queries = 4096;
+        double[][] points = new double[queries][];
+        for (int q = 0; q < queries; q++) {
+            points[q] = new double[]{random.nextDouble() * 250, random.nextDouble() * 800};
+        }
+        boolean agreed = true;
+        for (int q = 0; q < 500; q++) {
+            double[] p = points[q];
+            agreed &= Arrays.equals(index.nearestFree(p[0], p[1], 5, null), scanNearest(floor, positions, p[0], p[1], 5, 1e18));
+            agreed &= Arrays.equals(index.freeWithin(p[0], p[1], 20, null), scanNearest(floor, positions, p[0], p[1], 5000, 400));
+        }
+        int[] next = new int[1];
+        measure("spatial: grid 5 nearest", 200_000, () -> {
+            double[] p = points[next[0]++ & (queries - 1)];
+            return index.nearestFree(p[0], p[1], 5, null).length;
+        });
+        measure("spatial: grid 5 nearest handicap", 200_000, () -> {
+            double[] p = points[next[0]++ & (queries - 1)];
+            return index.nearestFree(p[0], p[1], 5, SpotCategory.HANDICAP).length;
+        });
+        measure("spatial: grid within 20 m", 200_000, () -> {
+            double[] p = points[next[0]++ & (queries - 1)];
+            return index.freeWithin(p[0], p[1], 20, null).length;
+        });
+        measure("spatial: scan 5 nearest", 5_000, () -> {
+            double[] p = points[next[0]++ & (queries - 1)];
+            return scanNearest(floor, positions, p[0], p[1], 5, 1e18).length;
+        });
+        System.out.printf("spatial: grid and scan agree on 1000 queries: %b; aisle 0 has %d free%n", agreed, index.getFreeInAisle(0));
+        for (int round = 0; round < 4; round++) { // the last two count, after the JIT has seen both
+            boolean querying = round % 2 == 1;
+            AtomicBoolean stop = new AtomicBoolean();
+            AtomicLong answered = new AtomicLong();
+            Thread navigation = new Thread(() -> {
+                int q = 0;
+                while (!stop.get()) {
+                    double[] p = points[q++ & (queries - 1)];
+                    index.nearestFree(p[0], p[1], 5, null);
+                    answered.incrementAndGet();
+                }
+            });
+            if (querying) {
+                navigation.start();
+            }
+            Vehicle car = new Car("NAV");
+            long cycles = 0;
+            long start = System.nanoTime();
+            while (System.nanoTime() - start < 500_000_000L) {
+                exit.exit(entry.enter(car, false, false, false, false), SILENT_PAYMENT, BillingMode.MINUTE);
+                cycles++;
+            }
+            long nanos = System.nanoTime() - start;
+            stop.set(true);
+            try {
+                navigation.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (round >= 2) {
+                System.out.printf("  gate %,.0f cycles/s%s%n", cycles * 1e9 / nanos,
+                    querying ? String.format(" with %,.0f nearest-free queries/s alongside", answered.get() * 1e9 / nanos) : " alone");
+            }
+        }
+    }
+
+    // Free spots within sqrt(limit) metres, nearest first, at most k, by looking at every spot
+    private static int[] scanNearest(ParkingFloor floor, float[][] positions, double px, double py, int k, double limit) {
+        List<long[]> hits = new ArrayList<>();
+        for (int i = 1; i <= floor.getCapacity(); i++) {
+            if (!floor.getSpot(i).isOccupied()) {
+                double dx = positions[0][i] - px;
+                double dy = positions[1][i] - py;
+                double distance = dx * dx + dy * dy;
+                if (distance <= limit) {
+                    hits.add(new long[]{Double.doubleToLongBits(distance), i});
+                }
+            }
+        }
+        hits.sort((a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        int[] nearest = new int[Math.min(k, hits.size())];
+        for (int i = 0; i < nearest.length; i++) {
+            nearest[i] = (int) hits.get(i)[1];
+        }
+        return nearest;
+    }
+
+    // Exit cost with a card terminal that takes 2 ms per payment: paying at the barrier against
+    // tickets prepaid at a kiosk; then on a virtual clock, what exits just inside and past the
+    // 15-minute grace period are charged
+    static void kioskPrepayment() {
+        PaymentProcessor terminal = amount -> {
+            LockSupport.parkNanos(2_000_000);
+            return true;
+        };
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        lot.addFloor(VehicleType.CAR, 1, 5000, 0, 0);
+        lot.enablePrepayment(new PrepaymentLedger(Duration.ofMinutes(15)));
+        Payment payment = new Payment();
+        EntryGate entry = new EntryGate(lot, payment, "GATE-1");
+        ExitGate exit = new ExitGate(lot, payment, "EXIT-1");
+        PaymentKiosk kiosk = new PaymentKiosk(lot, payment, "KIOSK-1");
+        entry.setVerbose(false);
+        exit.setVerbose(false);
+        kiosk.setVerbose(false);
+        int cars = 2000;
+        for (boolean prepaid : new boolean[]{false, true}) {
+            List<Ticket> tickets = new ArrayList<>();
+            for (int i = 0; i < cars; i++) {
+                Ticket ticket = entry.enter(new Car("PAY" + i), false, false, false, false);
+                if (prepaid) {
+                    kiosk.prepay(ticket, terminal, BillingMode.MINUTE);
+                }
+                tickets.add(ticket);
+            }
+            long start = System.nanoTime();
+            for (Ticket ticket : tickets) {
+                exit.exit(ticket, terminal, BillingMode.MINUTE);
+            }
+            long nanos = System.nanoTime() - start;
+            System.out.printf("prepay: %s %,.0f ns per exit (%,d exits)%n", prepaid ? "prepaid at kiosk:  " : "paid at barrier:   ", (double) nanos / cars, cars);
+        }
+        VirtualParkingClock clock = new VirtualParkingClock(LocalDateTime.of(2024, 1, 1, 9, 0));
+        lot.setClock(clock);
+        Payment virtualPayment = new Payment(clock);
+        entry = new EntryGate(lot, virtualPayment, "GATE-1");
+        exit = new ExitGate(lot, virtualPayment, "EXIT-1");
+        kiosk = new PaymentKiosk(lot, virtualPayment, "KIOSK-1");
+        entry.setVerbose(false);
+        exit.setVerbose(false);
+        kiosk.setVerbose(false);
+        Ticket inGrace = entry.enter(new Car("GRACE"), false, false, false, false);
+        Ticket lapsed = entry.enter(new Car("LAPSED"), false, false, false, false);
+        clock.advance(Duration.ofMinutes(90));
+        double paidInGrace = kiosk.prepay(inGrace, SILENT_PAYMENT, BillingMode.MINUTE);
+        kiosk.prepay(lapsed, SILENT_PAYMENT, BillingMode.MINUTE);
+        clock.advance(Duration.ofMinutes(14));
+        double[] charged = new double[1];
+        PaymentProcessor recording = amount -> {
+            charged[0] += amount;
+            return true;
+        };
+        double feeInGrace = exit.exit(inGrace, recording, BillingMode.MINUTE);
+        double chargedInGrace = charged[0];
+        clock.advance(Duration.ofMinutes(10));
+        double feeLapsed = exit.exit(lapsed, recording, BillingMode.MINUTE);
+        System.out.printf("  kiosk at 90 min: $%.2f each; exit at 104 min: fee $%.2f, $%.2f charged at the barrier; exit at 114 min: fee $%.2f, $%.2f charged; %d left in the ledger%n",
+            paidInGrace, feeInGrace, chargedInGrace, feeLapsed, charged[0] - chargedInGrace, lot.getPrepayments().size());
+    }
+
+    // 12,000 small car parks in one container, each loaded from its own compiled layout image on
+    // first use: load cost, retained heap per tenant, routed enter+exit cost, and eviction after 30
+    // idle minutes with every 100th tenant still holding a car
+    static void lotTenants() {
+        int tenantCount = 12_000;
+        int[][] shapes = {{60, 0}, {120, 40}, {250, 0}, {400, 80}}; // {car spots, bike spots}
+        try {
+            Path directory = Files.createTempDirectory("tenants");
+            try {
+                byte[][] images = new byte[shapes.length][];
+                for (int i = 0; i < shapes.length; i++) {
+                    List<String> source = new ArrayList<>();
+                    source.add("floor CAR 1 " + shapes[i][0]);
+                    source.add("  handicap 1-4");
+                    if (shapes[i][1] > 0) {
+                        source.add("floor BIKE 1 " + shapes[i][1]);
+                    }
+                    images[i] = LayoutCompiler.compile(source);
+                }
+                long spots = 0;
+                for (int t = 0; t < tenantCount; t++) {
+                    Files.write(directory.resolve("T" + t + ".lot"), images[t % shapes.length]);
+                    spots += shapes[t % shapes.length][0] + shapes[t % shapes.length][1];
+                }
+                VirtualParkingClock clock = new VirtualParkingClock(LocalDateTime.of(2024, 1, 1, 8, 0));
+                LotContainer container = new LotContainer(TenantLotLoader.images(directory), Duration.ofMinutes(30), clock);
+                long heapBefore = usedHeap();
+                long start = System.nanoTime();
+                for (int t = 0; t < tenantCount; t++) {
+                    container.withLot("T" + t, lot -> lot);
+                }
+                long loadNanos = System.nanoTime() - start;
+                long heapLoaded = usedHeap();
+                Vehicle car = new Car("TENANT");
+                Random random = new Random(3);
+                String[] ids = new String[tenantCount];
+                for (int t = 0; t < tenantCount; t++) {
+                    ids[t] = "T" + t;
+                }
+                int cycles = 1_000_000;
+                for (int i = 0; i < cycles / 10; i++) { // warm-up
+                    String id = ids[random.nextInt(tenantCount)];
+                    container.exit(id, "EXIT-1", container.enter(id, "GATE-1", car, false, false, false, false), SILENT_PAYMENT, BillingMode.MINUTE);
+                }
+                start = System.nanoTime();
+                for (int i = 0; i < cycles; i++) {
+                    String id = ids[random.nextInt(tenantCount)];
+                    container.exit(id, "EXIT-1", container.enter(id, "GATE-1", car, false, false, false, false), SILENT_PAYMENT, BillingMode.MINUTE);
+                }
+                long cycleNanos = System.nanoTime() - start;
+                for (int t = 0; t < tenantCount; t += 100) {
+                    container.enter(ids[t], "GATE-1", new Car("STAY" + t), false, false, false, false);
+                }
+                clock.advance(Duration.ofMinutes(31));
+                start = System.nanoTime();
+                int evicted = container.evictIdle();
+                long evictNanos = System.nanoTime() - start;
+                long heapAfter = usedHeap();
+                System.out.printf("tenants: %,d lots (%,d spots) loaded from images in %d ms, %.1f us each; %,d bytes retained per tenant%n",
+                    tenantCount, spots, loadNanos / 1_000_000, loadNanos / 1e3 / tenantCount, (heapLoaded - heapBefore) / tenantCount);
+                System.out.printf("  routed enter+exit on random tenants: %.0f ns per cycle%n", (double) cycleNanos / cycles);
+                System.out.printf("  after 31 idle minutes: %,d evicted in %d ms, %,d kept (holding cars), %,d bytes retained in total%n",
+                    evicted, evictNanos / 1_000_000, container.getTenantCount(), heapAfter - heapBefore);
+            } finally {
+                try (Stream<Path> files = Files.list(directory)) {
+                    for (Path file : (Iterable<Path>) files::iterator) {
+                        Files.delete(file);
+                    }
+                }
+                Files.delete(directory);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Gate threads doing enter+exit cycles on 8 floors of 5000 spots under each floor selection
+    // policy: cycles per second and entry latency percentiles; then a simulated week of the same
+    // floors under each, for how full they let the garage get and how far cars end up parking
+    static void floorPolicies() {
+        System.out.println("floorpolicy: 8 floors of 5000 spots, entry latency in ns");
+        for (int gates : new int[]{2, 4, 8, 16, 32, 64}) {
+            for (FloorSelectionPolicy policy : new FloorSelectionPolicy[]{FloorSelectionPolicy.maxAvailable(), FloorSelectionPolicy.twoChoices()}) {
+                long[] latencies = policyEntryLatencies(gates, policy);
+                double rate = latencies[latencies.length - 1];
+                long[] sorted = Arrays.copyOf(latencies, latencies.length - 1);
+                Arrays.sort(sorted);
+                System.out.printf("  %2d gates, %-14s %,11.0f cycles/s  p50 %,6d  p99 %,8d  p99.9 %,9d%n", gates,
+                    policy == FloorSelectionPolicy.maxAvailable() ? "max available:" : "two choices:", rate,
+                    sorted[sorted.length / 2], sorted[(int) (sorted.length * 0.99)], sorted[(int) (sorted.length * 0.999)]);
+            }
+        }
+        double[] commuters = new double[24];
+        for (int h = 0; h < 24; h++) {
+            commuters[h] = h >= 7 && h < 10 ? 9000 : h >= 10 && h < 18 ? 3000 : 500;
+        }
+        List<TrafficProfile> traffic = List.of(new TrafficProfile(VehicleType.CAR, commuters, Distribution.logNormal(240, 0.8)));
+        List<GarageLayout> layouts = List.of(
+            new GarageLayout("max available").addFloors(VehicleType.CAR, 8, 5000, 0, 0),
+            new GarageLayout("two choices").addFloors(VehicleType.CAR, 8, 5000, 0, 0).withFloorSelection(FloorSelectionPolicy.twoChoices()));
+        for (SimulationResult result : new GarageSimulator(traffic, Duration.ofDays(7), Duration.ofMinutes(15), 8, 7).sweep(layouts)) {
+            System.out.printf("  simulated week, %-14s rejected %5.2f%%, peak %3.0f%%, mean car proximity %,.1f%n", result.getLayoutName() + ":",
+                result.getRejectionRate() * 100, result.getPeakOccupancy() * 100, result.getMeanProximity(VehicleType.CAR));
+        }
+    }
+
+    // Entry latencies of every 8th cycle (at most 16384 per gate) over 500 ms after 200 ms of
+    // warm-up; the last element is the cycle rate
+    private static long[] policyEntryLatencies(int gateCount, FloorSelectionPolicy policy) {
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        for (int f = 1; f <= 8; f++) {
+            lot.addFloor(VehicleType.CAR, f, 5000, 0, 0);
+        }
+        lot.setFloorSelection(policy);
+        Payment payment = new Payment();
+        AtomicLong cycles = new AtomicLong();
+        AtomicBoolean measuring = new AtomicBoolean();
+        AtomicBoolean stop = new AtomicBoolean();
+        long[][] samples = new long[gateCount][16384];
+        int[] sampleCounts = new int[gateCount];
+        List<Thread> threads = new ArrayList<>();
+        for (int g = 0; g < gateCount; g++) {
+            int gate = g;
+            EntryGate entry = new EntryGate(lot, payment, "GATE-" + (g + 1));
+            ExitGate exit = new ExitGate(lot, payment, "EXIT-" + (g + 1));
+            entry.setVerbose(false);
+            exit.setVerbose(false);
+            Vehicle car = new Car("POLICY-" + g);
+            threads.add(new Thread(() -> {
+                long done = 0;
+                int recorded = 0;
+                while (!stop.get()) {
+                    long start = System.nanoTime();
+                    Ticket ticket = entry.enter(car, false, false, false, false);
+                    long latency = System.nanoTime() - start;
+                    exit.exit(ticket, SILENT_PAYMENT, BillingMode.MINUTE);
+                    if (measuring.get()) {
+                        if ((done++ & 7) == 0 && recorded < samples[gate].length) {
+                            samples[gate][recorded++] = latency;
+                        }
+                    }
+                }
+                sampleCounts[gate] = recorded;
+                cycles.addAndGet(done);
+            }));
+        }
+        threads.forEach(Thread::start);
+        try {
+            Thread.sleep(200);
+            measuring.set(true);
+            long start = System.nanoTime();
+            Thread.sleep(500);
+            measuring.set(false);
+            long nanos = System.nanoTime() - start;
+            stop.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            int total = 0;
+            for (int count : sampleCounts) {
+                total += count;
+            }
+            long[] latencies = new long[total + 1];
+            int at = 0;
+            for (int g = 0; g < gateCount; g++) {
+                System.arraycopy(samples[g], 0, latencies, at, sampleCounts[g]);
+                at += sampleCounts[g];
+            }
+            latencies[total] = (long) (cycles.get() * 1e9 / nanos);
+            return latencies;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new long[]{0, 0};
+        }
+    }
+
+    // Enter+exit cycles per second over 500 ms (after 200 ms of warm-up) by `gateCount` gate threads,
+    // through the floor engine when one is given
+    private static double gateCycleRate(ParkingLot lot, int gateCount, FloorEngine engine) {
+        boolean actorMode = engine != null;
+        Payment payment = new Payment();
+        AtomicLong cycles = new AtomicLong();
+        AtomicBoolean measuring = new AtomicBoolean();
+        AtomicBoolean stop = new AtomicBoolean();
+        List<Thread> threads = new ArrayList<>();
+        for (int g = 0; g < gateCount; g++) {
+            EntryGate entry = new EntryGate(lot, payment, "GATE-" + (g + 1));
+            ExitGate exit = new ExitGate(lot, payment, "EXIT-" + (g + 1));
+            entry.setVerbose(false);
+            exit.setVerbose(false);
+            Vehicle car = new Car("ACTOR-" + g);
+            threads.add(new Thread(() -> {
+                long done = 0;
+                while (!stop.get()) {
+                    if (actorMode) {
+                        Ticket ticket = entry.enter(car, engine).join();
+                        exit.exit(ticket, SILENT_PAYMENT, BillingMode.MINUTE, engine).join();
+                    } else {
+                        Ticket ticket = entry.enter(car, false, false, false, false);
+                        exit.exit(ticket, SILENT_PAYMENT, BillingMode.MINUTE);
+                    }
+                    if (measuring.get()) {
+                        done++;
+                    }
+                }
+                cycles.addAndGet(done);
+            }));
+        }
+        threads.forEach(Thread::start);
+        try {
+            Thread.sleep(200);
+            measuring.set(true);
+            long start = System.nanoTime();
+            Thread.sleep(500);
+            measuring.set(false);
+            long nanos = System.nanoTime() - start;
+            stop.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            return cycles.get() * 1e9 / nanos;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+    }
+
+    // Entry throughput with 1-8 gate threads, every gate taking spots from the shared floors or from
+    // leases of 64 spots; then a lot filled to the last spot through leasing gates, and availability
+    // checked against the tickets actually out at each step
+    static void spotLeases() {
+        System.out.println("leases: entries per second, 4 floors of 50000 spots");
+        for (int gates : new int[]{1, 2, 4, 8}) {
+            double shared = leasedEntryRate(gates, 0);
+            double leased = leasedEntryRate(gates, 64);
+            System.out.printf("  %d gates: shared %,.0f/s, leased %,.0f/s%n", gates, shared, leased);
+        }
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        lot.addFloor(VehicleType.CAR, 1, 1000, 0, 0);
+        lot.addFloor(VehicleType.CAR, 2, 1000, 0, 0);
+        Payment payment = new Payment();
+        EntryGate[] gates = new EntryGate[3];
+        for (int g = 0; g < gates.length; g++) {
+            gates[g] = new EntryGate(lot, payment, "GATE-" + (g + 1));
+            gates[g].setVerbose(false);
+            gates[g].enableLeases(64, Duration.ofMinutes(5));
+        }
+        List<Ticket> parked = new ArrayList<>();
+        boolean countsHeld = true;
+        try {
+            while (true) {
+                parked.add(gates[parked.size() % gates.length].enter(new Car("L" + parked.size()), false, false, false, false));
+                countsHeld &= lot.getAvailability().getAvailable(VehicleType.CAR) == 2000 - parked.size();
+            }
+        } catch (IllegalStateException full) {
+            // every spot is taken, leased ones included
+        }
+        ExitGate exit = new ExitGate(lot, payment, "EXIT-1");
+        exit.setVerbose(false);
+        for (Ticket ticket : parked) {
+            exit.exit(ticket, SILENT_PAYMENT, BillingMode.MINUTE);
+        }
+        for (EntryGate gate : gates) {
+            gate.returnLeases();
+        }
+        System.out.printf("leases: filled to %d of 2000 spots through 3 leasing gates; availability matched tickets: %b; %d free after exits%n",
+            parked.size(), countsHeld, lot.getAvailability().getAvailable(VehicleType.CAR));
+    }
+
+    private static double leasedEntryRate(int gateCount, int spotsPerLease) {
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        for (int f = 1; f <= 4; f++) {
+            lot.addFloor(VehicleType.CAR, f, 50_000, 0, 0);
+        }
+        Payment payment = new Payment();
+        int perGate = 180_000 / gateCount;
+        Vehicle car = new Car("LEASE");
+        List<Thread> threads = new ArrayList<>();
+        AtomicLong nanos = new AtomicLong();
+        for (int g = 0; g < gateCount; g++) {
+            EntryGate gate = new EntryGate(lot, payment, "GATE-" + (g + 1));
+            gate.setVerbose(false);
+            if (spotsPerLease > 0) {
+                gate.enableLeases(spotsPerLease, Duration.ofMinutes(5));
+            }
+            threads.add(new Thread(() -> {
+                long start = System.nanoTime();
+                for (int i = 0; i < perGate; i++) {
+                    gate.enter(car, false, false, false, false);
+                }
+                nanos.accumulateAndGet(System.nanoTime() - start, Math::max);
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+        }
+        return (double) perGate * gateCount * 1e9 / nanos.get();
+    }
+
+    // A 10-floor garage of 5000 spots per floor: 50 aisles of 100 spots on each floor, a ramp at the
+    // west end and a lift at the east end, GATE-1 in the west and GATE-2 in the east. Compares the
+    // distance driven to spots placed by floor order against graph ranking, and the cost of a full
+    // recompute against closing and reopening one aisle.
+    static void garageDistances() {
+        int floorCount = 10;
+        int aisles = 50;
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        ParkingLot ranked = ParkingLot.newEmptyLot();
+        for (int f = 1; f <= floorCount; f++) {
+            lot.addFloor(VehicleType.CAR, f, aisles * 100, 0, 0);
+            ranked.addFloor(VehicleType.CAR, f, aisles * 100, 0, 0);
+        }
+        GarageGraph[] graphs = new GarageGraph[2];
+        int[][] aisleNodes = new int[floorCount][aisles];
+        for (int g = 0; g < 2; g++) {
+            ParkingLot target = g == 0 ? lot : ranked;
+            GarageGraph graph = new GarageGraph();
+            int west = graph.addGate("GATE-1");
+            int east = graph.addGate("GATE-2");
+            int[] previousRow = null;
+            for (int f = 0; f < floorCount; f++) {
+                ParkingFloor floor = target.getFloors().get(VehicleType.CAR).get(f);
+                int[] row = aisleNodes[f];
+                for (int a = 0; a < aisles; a++) {
+                    row[a] = graph.addNode(GarageNodeKind.AISLE);
+                    if (a > 0) {
+                        graph.connect(row[a - 1], row[a], 10);
+                    }
+                    graph.addSpotRow(floor, row[a], a * 100 + 1, a * 100 + 100, 3, 0.5);
+                }
+                if (previousRow == null) {
+                    graph.connect(west, row[0], 5);
+                    graph.connect(east, row[aisles - 1], 5);
+                } else {
+                    int ramp = graph.addNode(GarageNodeKind.RAMP);
+                    graph.connect(previousRow[0], ramp, 20);
+                    graph.connect(ramp, row[0], 20);
+                    int lift = graph.addNode(GarageNodeKind.LIFT);
+                    graph.connect(previousRow[aisles - 1], lift, 30);
+                    graph.connect(lift, row[aisles - 1], 30);
+                }
+                previousRow = row;
+            }
+            graphs[g] = graph;
+        }
+        long start = System.nanoTime();
+        graphs[1].compute();
+        long full = System.nanoTime() - start;
+        graphs[0].compute();
+        graphs[1].attach(ranked);
+
+        double[] meanDistance = new double[2];
+        for (int g = 0; g < 2; g++) {
+            ParkingLot target = g == 0 ? lot : ranked;
+            Payment payment = new Payment();
+            EntryGate[] gates = {new EntryGate(target, payment, "GATE-1"), new EntryGate(target, payment, "GATE-2")};
+            long total = 0;
+            int parked = 20_000;
+            for (int i = 0; i < parked; i++) {
+                EntryGate gate = gates[i % 2];
+                gate.setVerbose(false);
+                Ticket ticket = gate.enter(new Car("D" + i), false, false, false, false);
+                total += graphs[g].distance(gate.getGateId(), ticket.getSpot().getFloor(), ticket.getSpot().getProximityIndex());
+            }
+            meanDistance[g] = total / 100.0 / parked;
+        }
+
+        int closedAisle = aisleNodes[0][aisles / 2]; // the middle of the ground floor
+        start = System.nanoTime();
+        graphs[1].closeNode(closedAisle);
+        long close = System.nanoTime() - start;
+        int[] incremental = spotDistances(graphs[1], ranked);
+        graphs[1].compute();
+        int[] recomputed = spotDistances(graphs[1], ranked);
+        start = System.nanoTime();
+        graphs[1].reopenNode(closedAisle);
+        long reopen = System.nanoTime() - start;
+        int[] reopened = spotDistances(graphs[1], ranked);
+        graphs[1].compute();
+        boolean consistent = Arrays.equals(incremental, recomputed) && Arrays.equals(reopened, spotDistances(graphs[1], ranked));
+        System.out.printf("distance: %d nodes; 20000 cars drive %.1f m on average placed by floor order, %.1f m by graph rank%n",
+            graphs[1].getNodeCount(), meanDistance[0], meanDistance[1]);
+        System.out.printf("distance: full compute %.1f ms (2 gates), close aisle %.1f ms, reopen %.1f ms, incremental matches full: %b%n",
+            full / 1e6, close / 1e6, reopen / 1e6, consistent);
+    }
+
+    private static int[] spotDistances(GarageGraph graph, ParkingLot lot) {
+        List<ParkingFloor> floors = lot.getFloors().get(VehicleType.CAR);
+        int[] distances = new int[floors.size() * floors.get(0).getCapacity() * 2];
+        int i = 0;
+        for (String gateId : new String[]{"GATE-1", "GATE-2"}) {
+            for (ParkingFloor floor : floors) {
+                for (int spot = 1; spot <= floor.getCapacity(); spot++) {
+                    distances[i++] = graph.distance(gateId, floor, spot);
+                }
+            }
+        }
+        return distances;
+    }
+
+    // Bytes allocated per enter+exit, Ticket objects against pooled ticket slots, with 2000 cars
+    // parked so the floors are part full; each loop keeps a window of open tickets in flight
+    static void pooledTickets() {
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        for (int f = 1; f <= 4; f++) {
+            lot.addFloor(VehicleType.CAR, f, 2000, 50, 50);
+        }
+        Payment payment = new Payment(lot.getClock());
+        EntryGate entry = new EntryGate(lot, payment, "GATE-1");
+        ExitGate exit = new ExitGate(lot, payment, "EXIT-1");
+        entry.setVerbose(false);
+        exit.setVerbose(false);
+        for (int i = 0; i < 2000; i++) {
+            entry.enter(new Car("BASE" + i), false, false, false, false);
+        }
+        TicketTable table = new TicketTable(4096);
+        int window = 512;
+        Ticket[] tickets = new Ticket[window];
+        long[] handles = new long[window];
+        Vehicle car = new Car("HOT1");
+        int rounds = 2_000;
+        for (int warm = 0; warm < 3; warm++) {
+            for (int r = 0; r < rounds / 4; r++) {
+                ticketRound(entry, exit, car, tickets);
+                pooledRound(entry, exit, table, handles);
+            }
+        }
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            ticketRound(entry, exit, car, tickets);
+        }
+        long ticketNanos = System.nanoTime() - start;
+        long ticketBytes = allocatedBytes() - startBytes;
+        startBytes = allocatedBytes();
+        start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            pooledRound(entry, exit, table, handles);
+        }
+        long pooledNanos = System.nanoTime() - start;
+        long pooledBytes = allocatedBytes() - startBytes;
+        long ops = (long) rounds * window;
+        System.out.printf("pooled: Ticket objects %.0f ns, %.1f bytes per enter+exit; pooled slots %.0f ns, %.2f bytes per enter+exit (%d ops each)%n",
+            (double) ticketNanos / ops, (double) ticketBytes / ops, (double) pooledNanos / ops, (double) pooledBytes / ops, ops);
+    }
+
+    private static void ticketRound(EntryGate entry, ExitGate exit, Vehicle car, Ticket[] tickets) {
+        for (int i = 0; i < tickets.length; i++) {
+            tickets[i] = entry.enter(car, false, false, false, false);
+        }
+        for (int i = 0; i < tickets.length; i++) {
+            exit.exit(tickets[i], SILENT_PAYMENT, BillingMode.MINUTE);
+        }
+    }
+
+    private static void pooledRound(EntryGate entry, ExitGate exit, TicketTable table, long[] handles) {
+        for (int i = 0; i < handles.length; i++) {
+            handles[i] = entry.enterPooled(VehicleType.CAR, table);
+        }
+        for (int i = 0; i < handles.length; i++) {
+            exit.exitPooled(handles[i], table, SILENT_PAYMENT, BillingMode.MINUTE);
+        }
+    }
+
+    // Startup of a large site from its compiled layout image: 40 car floors of 5000 spots plus
+    // bike and heavy floors, each car floor with its own handicap/reserved spots and gate ranges
+    static void layoutImage() {
+        List<String> source = new ArrayList<>();
+        source.add("# generated benchmark site");
+        for (int f = 1; f <= 40; f++) {
+            source.add("floor CAR " + f + " 5000");
+            source.add("  handicap 1-" + (20 + f) + ", 2500-2520");
+            source.add("  reserved " + (21 + f) + "-" + (120 + f) + ", 4990-5000");
+            source.add("  gate GATE-1 1-2499");
+            source.add("  gate GATE-2 2521-4989");
+        }
+        for (int f = 1; f <= 4; f++) {
+            source.add("floor BIKE " + f + " 2000");
+            source.add("  handicap 1-20");
+        }
+        source.add("floor HEAVY 1 200");
+        try {
+            Path image = Files.createTempFile("lot", ".layout");
+            try {
+                long compiled = 0;
+                long loaded = 0;
+                long built = 0;
+                ParkingLot lot = null;
+                for (int round = 0; round < 5; round++) { // last round counts, after the JIT has seen both paths
+                    long start = System.nanoTime();
+                    Files.write(image, LayoutCompiler.compile(source));
+                    compiled = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    lot = ParkingLot.newEmptyLot();
+                    LotImage.map(image).loadInto(lot);
+                    loaded = System.nanoTime() - start;
+                    start = System.nanoTime();
+                    ParkingLot coded = ParkingLot.newEmptyLot();
+                    for (int f = 1; f <= 40; f++) {
+                        coded.addFloor(VehicleType.CAR, f, 5000, 20 + f, 100);
+                    }
+                    for (int f = 1; f <= 4; f++) {
+                        coded.addFloor(VehicleType.BIKE, f, 2000, 20, 0);
+                    }
+                    coded.addFloor(VehicleType.HEAVY, 1, 200, 0, 0);
+                    built = System.nanoTime() - start;
+                }
+                int spots = 0;
+                for (List<ParkingFloor> floors : lot.getFloors().values()) {
+                    for (ParkingFloor floor : floors) {
+                        spots += floor.getCapacity();
+                    }
+                }
+                EntryGate gate = new EntryGate(lot, new Payment(), "GATE-2");
+                gate.setVerbose(false);
+                Ticket ticket = gate.enter(new Car("IMG1"), false, false, false, false);
+                System.out.printf("layoutimage: %d floors, %d spots, %d-byte image; compile %.1f ms, map+load %.1f ms, built in code %.1f ms; GATE-2 first spot %s%n",
+                    lot.getAvailability().getFloors().values().stream().mapToInt(List::size).sum(), spots, Files.size(image),
+                    compiled / 1e6, loaded / 1e6, built / 1e6, ticket.getSpot().getId());
+            } finally {
+                Files.delete(image);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Cost of permit checks: 100k permit holders behind a 20k-entry cache, checked for plates with no
+    // permit, for a hot working set, and as part of handicap enter/exit cycles
+    static void permits() {
+        InMemoryPermitStore store = new InMemoryPermitStore();
+        long validUntil = System.currentTimeMillis() + Duration.ofDays(30).toMillis();
+        int holders = 100_000;
+        String[] plates = new String[holders];
+        String[] strangers = new String[holders];
+        for (int i = 0; i < holders; i++) {
+            plates[i] = String.format("P%06d", i);
+            strangers[i] = String.format("U%06d", i);
+            store.issue(new Permit(plates[i], i % 2 == 0 ? SpotCategory.HANDICAP : SpotCategory.RESERVED, validUntil));
+        }
+        // The real database is a network hop away: stand in for it with a 50 us round trip
+        PermitService remote = plate -> {
+            long until = System.nanoTime() + 50_000;
+            while (System.nanoTime() < until) {
+                Thread.onSpinWait();
+            }
+            return store.findPermits(plate);
+        };
+        CachedPermitService cache = new CachedPermitService(remote, Duration.ofMinutes(5), 20_000, holders * 2, ParkingClock.coarse());
+        store.addListener(cache);
+        for (String plate : store.getPlates()) {
+            cache.permitsChanged(plate);
+        }
+        int[] next = new int[1];
+        long now = System.currentTimeMillis();
+        measure("permit: in-memory store", 3_000_000, () -> store.isPermitted(plates[next[0]++ % holders], SpotCategory.HANDICAP, now) ? 1 : 0);
+        measure("permit: remote store (50 us)", 20_000, () -> remote.isPermitted(plates[next[0]++ % holders], SpotCategory.HANDICAP, now) ? 1 : 0);
+        measure("permit: no permit (bloom filter)", 3_000_000, () -> cache.isPermitted(strangers[next[0]++ % holders], SpotCategory.HANDICAP, now) ? 1 : 0);
+        measure("permit: hot working set (cache)", 3_000_000, () -> cache.isPermitted(plates[next[0]++ % 10_000], SpotCategory.HANDICAP, now) ? 1 : 0);
+        measure("permit: cold plates (cache misses)", 50_000, () -> cache.isPermitted(plates[next[0]++ % holders], SpotCategory.HANDICAP, now) ? 1 : 0);
+        System.out.printf("permit cache: %d entries, %d filtered, %d hits, %d misses, %d store lookups%n",
+            cache.size(), cache.getFilteredCount(), cache.getHitCount(), cache.getMissCount(), store.getLookupCount());
+
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        lot.addFloor(VehicleType.CAR, 1, 2000, 1000, 0);
+        Payment payment = new Payment();
+        EntryGate entry = new EntryGate(lot, payment, "GATE-1");
+        ExitGate exit = new ExitGate(lot, payment, "EXIT-1");
+        entry.setVerbose(false);
+        exit.setVerbose(false);
+        Vehicle[] vehicles = new Vehicle[10_000];
+        for (int i = 0; i < vehicles.length; i++) {
+            vehicles[i] = new Car(plates[2 * i]); // even plates hold handicap permits
+        }
+        IntSupplier handicapCycle = () -> {
+            Ticket ticket = entry.enter(vehicles[next[0]++ % vehicles.length], true, false, true, false);
+            exit.exit(ticket, SILENT_PAYMENT, BillingMode.MINUTE);
+            return 1;
+        };
+        for (int i = 0; i < 300_000; i++) {
+            handicapCycle.getAsInt(); // warm up the gates before either measurement
+        }
+        measure("handicap enter+exit: caller's flag", 300_000, handicapCycle);
+        lot.setPermitService(cache);
+        measure("handicap enter+exit: cached permit check", 300_000, handicapCycle);
+        try {
+            entry.enter(new Car(strangers[0]), true, false, true, false);
+            throw new IllegalStateException("Entry without a permit was let in");
+        } catch (IllegalArgumentException expected) {
+            // the caller's claim is no longer trusted
+        }
+    }
+
+    // Capacity-planning sweep: a commuter week against car-floor counts and handicap/reserved mixes
+    static void capacityPlanning() {
+        double[] commuters = new double[24];
+        for (int h = 0; h < 24; h++) {
+            commuters[h] = h >= 7 && h < 10 ? 420 : h >= 10 && h < 18 ? 160 : h >= 18 && h < 22 ? 90 : 15;
+        }
+        List<TrafficProfile> traffic = List.of(
+            new TrafficProfile(VehicleType.CAR, commuters, Distribution.logNormal(180, 0.8)).withPermits(0.04, 0.06),
+            TrafficProfile.steady(VehicleType.BIKE, 40, Distribution.exponential(90)),
+            TrafficProfile.steady(VehicleType.HEAVY, 4, Distribution.uniform(30, 240)));
+        List<GarageLayout> layouts = new ArrayList<>();
+        for (int carFloors = 2; carFloors <= 5; carFloors++) {
+            for (int[] mix : new int[][]{{10, 10}, {25, 40}}) {
+                layouts.add(new GarageLayout(carFloors + " car floors, " + mix[0] + "H/" + mix[1] + "R")
+                    .addFloors(VehicleType.CAR, carFloors, 500, mix[0], mix[1])
+                    .addFloors(VehicleType.BIKE, 1, 300, 10, 0)
+                    .addFloors(VehicleType.HEAVY, 1, 40, 2, 0));
+            }
+        }
+        GarageSimulator simulator = new GarageSimulator(traffic, Duration.ofDays(7), Duration.ofMinutes(15), 2, 99);
+        long start = System.nanoTime();
+        List<SimulationResult> results = simulator.sweep(layouts);
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("capacity: %d layouts x 7 days in %d ms on %d cores%n", layouts.size(), elapsed / 1_000_000, Runtime.getRuntime().availableProcessors());
+        System.out.printf("  %-28s %8s %8s %9s %8s %12s  %s%n", "layout", "reject", "car rej", "car prox", "peak", "revenue", "occupancy 06-21h");
+        for (SimulationResult result : results) {
+            StringBuilder curve = new StringBuilder();
+            double[] occupancy = result.getOccupancyByHour();
+            for (int h = 6; h <= 21; h += 3) {
+                curve.append(String.format("%3.0f%% ", occupancy[h] * 100));
+            }
+            System.out.printf("  %-28s %7.1f%% %7.1f%% %9.1f %7.0f%% %12.2f  %s%n", result.getLayoutName(), result.getRejectionRate() * 100,
+                result.getRejectionRate(VehicleType.CAR) * 100, result.getMeanProximity(VehicleType.CAR), result.getPeakOccupancy() * 100,
+                result.getRevenue(), curve);
+        }
+    }
+
+    // A week of traffic on a virtual clock, minute by minute; every fee is checked against the
+    // stay length it was generated with
+    private static class Stay {
+        final Ticket ticket;
+        final long departureMinute;
+        final long minutes;
+        final BillingMode mode;
+
+        Stay(Ticket ticket, long departureMinute, long minutes, BillingMode mode) {
+            this.ticket = ticket;
+            this.departureMinute = departureMinute;
+            this.minutes = minutes;
+            this.mode = mode;
+        }
+    }
+
+    static void simulatedWeek() {
+        VirtualParkingClock clock = new VirtualParkingClock(LocalDateTime.of(2025, 6, 2, 0, 0));
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        lot.setClock(clock);
+        for (int f = 1; f <= 4; f++) {
+            lot.addFloor(VehicleType.CAR, f, 500, 20, 20);
+        }
+        lot.addFloor(VehicleType.BIKE, 1, 500, 0, 0);
+        lot.addFloor(VehicleType.HEAVY, 1, 50, 0, 0);
+        Payment payment = new Payment(clock);
+        EntryGate entry = new EntryGate(lot, payment, "GATE-1");
+        ExitGate exit = new ExitGate(lot, payment, "EXIT-1");
+        entry.setVerbose(false);
+        exit.setVerbose(false);
+        Random random = new Random(11);
+        double[][] rates = Payment.rateTable();
+        PriorityQueue<Stay> parked = new PriorityQueue<>(Comparator.comparingLong(stay -> stay.departureMinute));
+        long parkedTickets = 0;
+        long turnedAway = 0;
+        long mismatches = 0;
+        double revenue = 0;
+        long start = System.nanoTime();
+        for (long minute = 0; minute < 7 * 24 * 60; minute++) {
+            while (!parked.isEmpty() && parked.peek().departureMinute <= minute) {
+                Stay stay = parked.poll();
+                double fee = exit.exit(stay.ticket, SILENT_PAYMENT, stay.mode);
+                long units = stay.mode == BillingMode.HOURLY ? (stay.minutes + 59) / 60 : stay.minutes;
+                if (fee != units * rates[stay.mode.ordinal()][stay.ticket.getVehicle().getType().ordinal()]) {
+                    mismatches++;
+                }
+                revenue += fee;
+            }
+            int hourOfDay = (int) (minute / 60 % 24);
+            int arrivals = random.nextInt(hourOfDay >= 7 && hourOfDay < 20 ? 12 : 3);
+            for (int i = 0; i < arrivals; i++) {
+                int kind = random.nextInt(10);
+                Vehicle vehicle = kind < 7 ? new Car("C" + minute) : kind < 9 ? new Bike("B" + minute) : new HeavyVehicle("H" + minute);
+                try {
+                    Ticket ticket = entry.enter(vehicle, false, false, false, false);
+                    long stayMinutes = 10 + random.nextInt(10 * 60);
+                    parked.add(new Stay(ticket, minute + stayMinutes, stayMinutes, BillingMode.values()[random.nextInt(2)]));
+                    parkedTickets++;
+                } catch (IllegalStateException full) {
+                    turnedAway++;
+                }
+            }
+            clock.advance(Duration.ofMinutes(1));
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("simweek: 7 simulated days in %d ms: %d tickets, %d turned away, revenue $%.2f, %d fee mismatches%n",
+            elapsed / 1_000_000, parkedTickets, turnedAway, revenue, mismatches);
+    }
 
-    public double calculateFee(Ticket ticket, LocalDateTime exitTime, BillingMode mode) {
-        VehicleType type = ticket.getVehicle().getType();
-        if (!HOURLY_RATES.containsKey(type) || !MINUTE_RATES.containsKey(type)) {
-            throw new IllegalArgumentException("Billing not supported for vehicle type: " + type);
+    // Exit-side validation of 2M distinct signed tickets (verify + replay guard) on one thread
+    static void signedTickets() {
+        TicketCodec codec = new TicketCodec("demo-signing-key-0123456789abcdef".getBytes(StandardCharsets.UTF_8));
+        ReplayGuard guard = new ReplayGuard(Duration.ofDays(30));
+        int count = 2_000_000;
+        byte[][] tickets = new byte[count][];
+        long now = System.currentTimeMillis();
+        Random random = new Random(3);
+        for (int i = 0; i < count; i++) {
+            tickets[i] = codec.sign(VehicleType.CAR, VehicleType.CAR, 1, 1 + random.nextInt(8), 1 + random.nextInt(5000),
+                i, now - random.nextInt(86_400_000), "GATE-" + (1 + random.nextInt(2)));
+        }
+        byte[] forged = tickets[0].clone();
+        forged[7] ^= 1; // move the spot
+        try {
+            codec.verify(forged);
+            throw new IllegalStateException("Forged ticket verified");
+        } catch (IllegalArgumentException expected) {
+            // rejected
+        }
+        for (int i = 0; i < count / 10; i++) {
+            codec.verify(tickets[i]); // warm-up
+        }
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        int accepted = 0;
+        for (byte[] ticket : tickets) {
+            SignedTicket verified = codec.verify(ticket);
+            if (guard.markUsed(verified.replayKey(), now)) {
+                accepted++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = allocatedBytes() - startBytes;
+        int replays = 0;
+        for (int i = 0; i < count; i += 100) {
+            if (!guard.markUsed(codec.verify(tickets[i]).replayKey(), now)) {
+                replays++;
+            }
         }
-        Duration duration = Duration.between(ticket.getEntryTime(), exitTime);
-        double rate = mode == BillingMode.HOURLY ? HOURLY_RATES.get(type) : MINUTE_RATES.get(type);
-        long units = mode == BillingMode.HOURLY ? duration.toHours() + (duration.toMinutes() % 60 > 0 ? 1 : 0) : duration.toMinutes();
-        return units * rate;
+        System.out.printf("signedtickets: %d-byte tickets, %d verified + guarded in %d ms -> %.2f M/s (%.0f ns, %.0f bytes each); %d/%d replays rejected%n",
+            tickets[0].length, accepted, elapsed / 1_000_000, count * 1e3 / elapsed, (double) elapsed / count, (double) bytes / count, replays, count / 100);
     }
-}
 
-// Gate Abstract Class
-abstract class Gate {
-    protected ParkingLot parkingLot;
-    protected Payment payment;
-    protected String gateId;
+    // Load driver for GateServer on loopback: each connection pipelines a window of entries, then
+    // the matching exits plus availability queries, for two seconds
+    static void gateServer() {
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        for (int f = 1; f <= 4; f++) {
+            lot.addFloor(VehicleType.CAR, f, 5000, 100, 100);
+        }
+        int connections = 4;
+        int window = 128;
+        try (GateServer server = new GateServer(lot, new Payment(), SILENT_PAYMENT, 0)) {
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort());
+            try (GateClient client = new GateClient(address)) {
+                client.enter(VehicleType.CAR, "LOOKUP1", "GATE-1", 0);
+                client.flush();
+                byte[] ticket = ticketOf(client.read());
+                client.lookup(ticket);
+                client.exit(ticket, BillingMode.MINUTE, "EXIT-1");
+                client.exit(ticket, BillingMode.MINUTE, "EXIT-1");
+                client.flush();
+                GateResponse lookup = client.read();
+                lookup.readByte();
+                lookup.readInt();
+                lookup.readLong();
+                String plate = lookup.readString();
+                GateResponse firstExit = client.read();
+                GateResponse secondExit = client.read();
+                if (!plate.equals("LOOKUP1") || !firstExit.isOk() || secondExit.getStatus() != GateProtocol.NOT_FOUND) {
+                    throw new IllegalStateException("Gate protocol round trip failed");
+                }
+            }
+            AtomicBoolean running = new AtomicBoolean(true);
+            List<Thread> drivers = new ArrayList<>();
+            for (int c = 0; c < connections; c++) {
+                String gateId = "GATE-" + (c % 2 + 1);
+                drivers.add(new Thread(() -> {
+                    byte[][] issued = new byte[window][];
+                    try (GateClient client = new GateClient(address)) {
+                        while (running.get()) {
+                            for (int i = 0; i < window; i++) {
+                                client.enter(VehicleType.CAR, "LOAD" + i, gateId, 0);
+                            }
+                            client.flush();
+                            for (int i = 0; i < window; i++) {
+                                issued[i] = ticketOf(client.read());
+                            }
+                            for (int i = 0; i < window; i++) {
+                                client.exit(issued[i], BillingMode.MINUTE, "EXIT-1");
+                                client.availability(VehicleType.CAR);
+                            }
+                            client.flush();
+                            for (int i = 0; i < 2 * window; i++) {
+                                if (!client.read().isOk()) {
+                                    throw new IllegalStateException("Request failed under load");
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
+            }
+            drivers.forEach(Thread::start);
+            Thread.sleep(500); // warm-up
+            long startCount = server.getRequestCount();
+            long start = System.nanoTime();
+            Thread.sleep(2000);
+            long requests = server.getRequestCount() - startCount;
+            long elapsed = System.nanoTime() - start;
+            running.set(false);
+            for (Thread driver : drivers) {
+                driver.join();
+            }
+            System.out.printf("gateserver: %d connections, window %d: %.0f requests/s (%d tickets still open)%n",
+                connections, window, requests * 1e9 / elapsed, server.getTickets().size());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-    public Gate(ParkingLot parkingLot, Payment payment, String gateId) {
-        this.parkingLot = parkingLot;
-        this.payment = payment;
-        this.gateId = gateId;
+    // The signed ticket at the end of an ENTER response
+    private static byte[] ticketOf(GateResponse entered) {
+        entered.readLong();
+        entered.readInt();
+        entered.readString();
+        return entered.readBytes();
     }
 
-    public String getGateId() {
-        return gateId;
+    // Gate throughput (two gates doing enter+exit) with no readers, with readers counting under
+    // every floor's lock as the display board used to, and with readers taking lock-free snapshots.
+    // Readers are paced to the same request rate so only the cost of each read differs.
+    static void availability() {
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        for (int f = 1; f <= 8; f++) {
+            lot.addFloor(VehicleType.CAR, f, 500, 20, 20);
+        }
+        IntSupplier lockedRead = () -> {
+            int total = 0;
+            for (ParkingFloor floor : lot.getFloors().get(VehicleType.CAR)) {
+                total += floor.getAvailableSpots(false, false) + floor.getAvailableSpots(true, false) + floor.getAvailableSpots(false, true);
+            }
+            return total;
+        };
+        IntSupplier snapshotRead = () -> lot.getAvailability().getAvailable(VehicleType.CAR);
+        gateThroughput(lot, null, 4, lockedRead); // warm-up
+        gateThroughput(lot, null, 4, snapshotRead);
+        System.out.println("availability: 2 gates, 8 floors, 1 s per run");
+        gateThroughput(lot, "  no readers", 0, null);
+        gateThroughput(lot, "  4 locking readers", 4, lockedRead);
+        gateThroughput(lot, "  4 snapshot readers", 4, snapshotRead);
     }
-}
 
-// EntryGate
-class EntryGate extends Gate {
-    public EntryGate(ParkingLot parkingLot, Payment payment, String gateId) {
-        super(parkingLot, payment, gateId);
+    private static void gateThroughput(ParkingLot lot, String label, int readers, IntSupplier read) {
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong cycles = new AtomicLong();
+        AtomicLong reads = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int g = 1; g <= 2; g++) {
+            EntryGate entry = new EntryGate(lot, new Payment(), "GATE-" + g);
+            ExitGate exit = new ExitGate(lot, new Payment(), "EXIT-" + g);
+            entry.setVerbose(false);
+            exit.setVerbose(false);
+            threads.add(new Thread(() -> {
+                Car car = new Car("G");
+                long done = 0;
+                while (running.get()) {
+                    done += cycle(entry, exit, car);
+                }
+                cycles.addAndGet(done);
+            }));
+        }
+        for (int r = 0; r < readers; r++) {
+            threads.add(new Thread(() -> {
+                long done = 0;
+                int sink = 0;
+                while (running.get()) {
+                    // Paced bursts, so both kinds of reader issue about the same number of reads
+                    for (int i = 0; i < 50; i++) {
+                        sink += read.getAsInt();
+                    }
+                    done += 50;
+                    LockSupport.parkNanos(1_000_000);
+                }
+                reads.addAndGet(done + (sink == 42 ? 1 : 0));
+            }));
+        }
+        threads.forEach(Thread::start);
+        try {
+            Thread.sleep(1000);
+            running.set(false);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (label != null) {
+            System.out.printf("%-40s %10d gate ops/s  %10d reads/s%n", label, cycles.get(), reads.get());
+        }
     }
 
-    public Ticket enter(Vehicle vehicle, boolean needsHandicap, boolean needsReserved, boolean hasHandicapPermit, boolean hasReservation) {
-        VehicleType type = vehicle.getType();
-        List<ParkingFloor> floors = parkingLot.getFloors().get(type);
-        if (floors == null || floors.isEmpty()) {
-            throw new IllegalArgumentException("No parking floors for vehicle type: " + type);
+    // Full lot: 50k waitlisted entries served by exits in FIFO order, against gates that retry
+    // enter() in a loop until a spot frees up
+    static void waitlist() {
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        lot.setCompatibility(new SpotCompatibility());
+        lot.addFloor(VehicleType.CAR, 1, 1000, 0, 0);
+        EntryGate entry = new EntryGate(lot, new Payment(), "GATE-1");
+        ExitGate exit = new ExitGate(lot, new Payment(), "EXIT-1");
+        entry.setVerbose(false);
+        exit.setVerbose(false);
+        ArrayDeque<Ticket> parked = new ArrayDeque<>();
+        List<Ticket> filled = new ArrayList<>();
+        fill(entry, () -> new Car("C"), filled);
+        parked.addAll(filled);
+
+        int waiters = 50_000;
+        List<CompletableFuture<Ticket>> futures = new ArrayList<>(waiters);
+        for (int i = 0; i < waiters; i++) {
+            futures.add(entry.enterAsync(new Car("W" + i), false, false, false, false));
         }
-        // Find floor with most available spots
-        ParkingFloor bestFloor = null;
-        int maxAvailable = -1;
-        for (ParkingFloor floor : floors) {
-            int available = floor.getAvailableSpots(needsHandicap, needsReserved);
-            if (available > maxAvailable) {
-                maxAvailable = available;
-                bestFloor = floor;
+        CompletableFuture<Ticket> cancelled = entry.enterAsync(new Car("GIVE-UP"), false, false, false, false);
+        cancelled.cancel(false);
+        long start = System.nanoTime();
+        for (int i = 0; i < waiters; i++) {
+            exit.exit(parked.poll(), SILENT_PAYMENT, BillingMode.MINUTE);
+            Ticket admitted = futures.get(i).getNow(null);
+            if (admitted == null || !admitted.getVehicle().getLicensePlate().equals("W" + i)) {
+                throw new IllegalStateException("Waiter " + i + " was not admitted in order");
             }
+            parked.add(admitted);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("waitlist: %d queued entries admitted in FIFO order, %.0f ns per exit+hand-off, %d left waiting%n",
+            waiters, (double) elapsed / waiters, lot.getWaitlist().size());
+
+        int gates = 4;
+        int freed = parked.size() / 2;
+        AtomicLong attempts = new AtomicLong();
+        AtomicInteger admittedCount = new AtomicInteger();
+        List<Thread> retrying = new ArrayList<>();
+        for (int g = 0; g < gates; g++) {
+            Thread thread = new Thread(() -> {
+                while (admittedCount.get() < freed) {
+                    attempts.incrementAndGet();
+                    try {
+                        entry.enter(new Car("R"), false, false, false, false);
+                        admittedCount.incrementAndGet();
+                    } catch (IllegalStateException full) {
+                        Thread.onSpinWait();
+                    }
+                }
+            });
+            thread.start();
+            retrying.add(thread);
         }
-        if (bestFloor == null || maxAvailable == 0) {
-            throw new IllegalStateException("No available spots for " + type + (needsHandicap ? " (handicap)" : "") + (needsReserved ? " (reserved)" : ""));
+        for (int i = 0; i < freed; i++) {
+            exit.exit(parked.poll(), SILENT_PAYMENT, BillingMode.MINUTE);
+            while (admittedCount.get() <= i) {
+                Thread.yield();
+            }
         }
-        ParkingSpot spot = bestFloor.findAvailableSpot(needsHandicap, needsReserved, hasHandicapPermit, hasReservation, gateId);
-        if (spot == null) {
-            throw new IllegalStateException("No suitable spot found for " + type);
+        for (Thread thread : retrying) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
-        spot.occupy();
-        ParkingFactory factory = ParkingFactoryProvider.getFactory(type);
-        Ticket ticket = factory.createTicket(vehicle, spot, bestFloor.getFloorNumber(), gateId);
-        System.out.println("Vehicle " + vehicle.getLicensePlate() + " entered via Gate " + gateId + ". Spot: " + spot.getId() + ", Floor: " + bestFloor.getFloorNumber() + ", Ticket: " + ticket.getTicketId());
-        return ticket;
+        System.out.printf("  %d retrying gates: %.1f enter attempts per freed spot (waitlist: 1 hand-off)%n",
+            gates, (double) attempts.get() / freed);
     }
-}
 
-// ExitGate
-class ExitGate extends Gate {
-    public ExitGate(ParkingLot parkingLot, Payment payment, String gateId) {
-        super(parkingLot, payment, gateId);
+    // Building large floors (shared layout, lazy spots) and the per-vehicle allocation of enter+exit
+    static void flyweight() {
+        int floors = 20;
+        int capacity = 100_000;
+        new ParkingFloor(VehicleType.CAR, 0, capacity, 500, 500); // warm-up
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        for (int f = 1; f <= floors; f++) {
+            lot.addFloor(VehicleType.CAR, f, capacity, 500, 500);
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = allocatedBytes() - startBytes;
+        System.out.printf("flyweight: %d floors x %d spots built in %d ms, %.1f bytes/spot%n",
+            floors, capacity, elapsed / 1_000_000, (double) bytes / floors / capacity);
+        EntryGate entry = new EntryGate(lot, new Payment(), "GATE-1");
+        ExitGate exit = new ExitGate(lot, new Payment(), "EXIT-1");
+        entry.setVerbose(false);
+        exit.setVerbose(false);
+        Car car = new Car("F1");
+        int cycles = 200_000;
+        for (int i = 0; i < cycles / 10; i++) {
+            cycle(entry, exit, car);
+        }
+        startBytes = allocatedBytes();
+        start = System.nanoTime();
+        for (int i = 0; i < cycles; i++) {
+            cycle(entry, exit, car);
+        }
+        elapsed = System.nanoTime() - start;
+        bytes = allocatedBytes() - startBytes;
+        System.out.printf("  enter+exit: %.1f ns/op, %.0f bytes/op%n", (double) elapsed / cycles, (double) bytes / cycles);
     }
 
-    public double exit(Ticket ticket, PaymentProcessor processor, BillingMode mode) {
-        if (!ticket.getEntryGateId().equals(gateId)) {
-            System.out.println("Warning: Vehicle exiting from different gate (" + gateId + ") than entry gate (" + ticket.getEntryGateId() + ")");
+    // Midnight settlement of 5M tickets: check against calculateFee, then time 1..N workers
+    static void settlement() {
+        int count = 5_000_000;
+        TicketBatch batch = new TicketBatch(count);
+        List<Ticket> sample = new ArrayList<>();
+        List<LocalDateTime> sampleExits = new ArrayList<>();
+        List<BillingMode> sampleModes = new ArrayList<>();
+        ParkingFloor floor = new ParkingFloor(VehicleType.CAR, 1, 1, 0, 0);
+        Random random = new Random(5);
+        LocalDateTime midnight = LocalDateTime.of(2025, 6, 1, 0, 0);
+        String[] gates = {"GATE-1", "GATE-2", "EXIT-1", "EXIT-2"};
+        for (int i = 0; i < count; i++) {
+            VehicleType type = VehicleType.values()[random.nextInt(3)];
+            BillingMode mode = random.nextBoolean() ? BillingMode.HOURLY : BillingMode.MINUTE;
+            long entry = TicketBatch.toNanos(midnight) - (long) random.nextInt(86_400) * 1_000_000_000L - random.nextInt(1_000_000_000);
+            batch.add(type, entry, TicketBatch.toNanos(midnight), mode, gates[random.nextInt(4)]);
+            if (i % 1000 == 0) {
+                Ticket ticket = new Ticket(type == VehicleType.CAR ? new Car("S") : type == VehicleType.BIKE ? new Bike("S") : new HeavyVehicle("S"), floor.getSpot(1), 1, "GATE-1");
+                sample.add(ticket);
+                sampleExits.add(ticket.getEntryTime().plusNanos(TicketBatch.toNanos(midnight) - entry));
+                sampleModes.add(mode);
+            }
         }
-        LocalDateTime exitTime = LocalDateTime.now();
-        double fee = payment.calculateFee(ticket, exitTime, mode);
-        boolean paymentSuccess = processor.processPayment(fee);
-        if (!paymentSuccess) {
-            throw new IllegalStateException("Payment failed for ticket: " + ticket.getTicketId());
+        TicketBatch check = new TicketBatch(sample.size());
+        for (int i = 0; i < sample.size(); i++) {
+            check.addClosed(sample.get(i), sampleExits.get(i), sampleModes.get(i), "EXIT-1");
         }
-        ticket.getSpot().free();
-        System.out.println("Vehicle " + ticket.getVehicle().getLicensePlate() + " exited via Gate " + gateId + " from spot " + ticket.getSpot().getId() + ", Floor: " + ticket.getFloorNumber() + ". Fee: $" + String.format("%.2f", fee) + " (" + mode + ")");
-        return fee;
+        SettlementReport checked = new BulkBilling().settle(check);
+        Payment payment = new Payment();
+        long expectedCents = 0;
+        for (int i = 0; i < sample.size(); i++) {
+            double fee = payment.calculateFee(sample.get(i), sampleExits.get(i), sampleModes.get(i));
+            if (fee != checked.getFee(i)) {
+                throw new IllegalStateException("Bulk fee " + checked.getFee(i) + " != calculateFee " + fee);
+            }
+            expectedCents += Math.round(fee * 100);
+        }
+        if (Math.round(checked.getGrandTotal() * 100) != expectedCents) {
+            throw new IllegalStateException("Bulk total differs from per-ticket total");
+        }
+        System.out.printf("settlement: %d sampled tickets match calculateFee exactly%n", sample.size());
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int workers = 1; workers <= cores; workers *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(workers);
+            BulkBilling billing = new BulkBilling(pool);
+            billing.settle(batch); // warm-up
+            long start = System.nanoTime();
+            SettlementReport report = billing.settle(batch);
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("  %2d workers: %d tickets in %d ms (%.1f M tickets/s), total $%.2f%n",
+                workers, count, elapsed / 1_000_000, count / (elapsed / 1e3), report.getGrandTotal());
+            pool.shutdown();
+        }
+    }
+
+    // 20M closed tickets over ~2 years, then audit-style queries over the mapped archive
+    static void archive() {
+        Path directory;
+        try {
+            directory = Files.createTempDirectory("ticket-archive");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int rows = 20_000_000;
+        long start = System.nanoTime();
+        long base = LocalDateTime.of(2024, 1, 1, 0, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long span = Duration.ofDays(730).toMillis();
+        String[] gates = {"GATE-1", "GATE-2", "EXIT-1", "EXIT-2"};
+        VehicleType[] types = VehicleType.values();
+        Random random = new Random(3);
+        try (TicketArchive archive = new TicketArchive(directory)) {
+            for (int i = 0; i < rows; i++) {
+                long exit = base + span * i / rows;
+                long entry = exit - Duration.ofMinutes(5 + random.nextInt(600)).toMillis();
+                VehicleType type = types[random.nextInt(types.length)];
+                archive.append(i, "PLATE-" + random.nextInt(100_000), type, 1 + random.nextInt(4), 1 + random.nextInt(500),
+                    gates[random.nextInt(2)], gates[2 + random.nextInt(2)], entry, exit, random.nextInt(20_000) / 100.0,
+                    random.nextBoolean() ? BillingMode.HOURLY : BillingMode.MINUTE);
+            }
+            archive.flush();
+            long written = System.nanoTime();
+            long bytes = Files.size(directory.resolve("tickets.col"));
+            System.out.printf("archive: wrote %d rows in %d ms, %.1f bytes/row, %d blocks%n",
+                rows, (written - start) / 1_000_000, (double) bytes / rows, archive.blockCount());
+            long march = LocalDateTime.of(2025, 3, 1, 0, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            long april = LocalDateTime.of(2025, 4, 1, 0, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            ArchiveQuery audit = new ArchiveQuery().exitBetween(march, april).type(VehicleType.HEAVY).exitGate("EXIT-2").feeAtLeast(150);
+            ArchiveQuery fullScan = new ArchiveQuery().type(VehicleType.HEAVY).exitGate("EXIT-2").feeAtLeast(150);
+            for (int round = 0; round < 3; round++) {
+                long q0 = System.nanoTime();
+                ArchiveResult monthly = archive.query(audit);
+                long q1 = System.nanoTime();
+                ArchiveResult all = archive.query(fullScan);
+                long q2 = System.nanoTime();
+                System.out.printf("  HEAVY via EXIT-2, fee>=150, March 2025: %d ms (%s)%n", (q1 - q0) / 1_000_000, monthly);
+                System.out.printf("  same predicate over all %d rows:     %d ms (%.0f M rows/s, %s)%n",
+                    rows, (q2 - q1) / 1_000_000, rows / ((q2 - q1) / 1e3), all);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        // Only once the archive is closed; its files are still open (and mapped) until then
+        try {
+            Files.deleteIfExists(directory.resolve("tickets.col"));
+            Files.deleteIfExists(directory.resolve("plates.dict"));
+            Files.deleteIfExists(directory.resolve("gates.dict"));
+            Files.deleteIfExists(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Two million open tickets in the wheel: arm, cancel half, then sweep forward two days
+    static void overstay() {
+        OverstayMonitor monitor = new OverstayMonitor(Duration.ofMinutes(1));
+        monitor.setLimits(VehicleType.CAR, Duration.ofHours(4), Duration.ofHours(36));
+        long[] fired = new long[2];
+        monitor.addObserver((ticket, level) -> fired[level.ordinal()]++);
+        ParkingFloor floor = new ParkingFloor(VehicleType.CAR, 1, 1, 0, 0);
+        Vehicle car = new Car("OVR");
+        int count = 2_000_000;
+        List<Ticket> tickets = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            tickets.add(new Ticket(car, floor.getSpot(1), 1, "GATE-1"));
+        }
+        long start = System.nanoTime();
+        for (Ticket ticket : tickets) {
+            monitor.ticketIssued(ticket);
+        }
+        long armed = System.nanoTime();
+        for (int i = 0; i < count; i += 2) {
+            monitor.ticketClosed(tickets.get(i), "EXIT-1", null, 0, BillingMode.HOURLY);
+        }
+        long cancelled = System.nanoTime();
+        long now = System.currentTimeMillis();
+        for (long t = now; t <= now + Duration.ofDays(2).toMillis(); t += Duration.ofMinutes(1).toMillis()) {
+            monitor.advanceTo(t);
+        }
+        long swept = System.nanoTime();
+        System.out.printf("overstay: %d tickets, arm %.0f ns/op, cancel %.0f ns/op, 2-day sweep %d ms, fired overstay=%d abandoned=%d%n",
+            count, (double) (armed - start) / count, (double) (cancelled - armed) / (count / 2), (swept - cancelled) / 1_000_000, fired[0], fired[1]);
+    }
+
+    // Sensor ingestion rate with duplicates and flapping, plus bytes allocated per event
+    static void sensors() {
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        for (int f = 1; f <= 10; f++) {
+            lot.addFloor(VehicleType.CAR, f, 2_000, 50, 50);
+        }
+        SpotSensorIngestor ingestor = new SpotSensorIngestor(lot, Duration.ofSeconds(2));
+        int[] mismatches = new int[1];
+        ingestor.addObserver((type, floorNumber, proximityIndex, kind) -> mismatches[0]++);
+        int sensors = ingestor.sensorCount();
+        SensorEventBatch batch = new SensorEventBatch(4_096);
+        Random random = new Random(11);
+        int[] script = new int[1 << 20];
+        for (int i = 0; i < script.length; i++) {
+            script[i] = random.nextInt(sensors);
+        }
+        long clock = 0;
+        int cursor = 0;
+        long events = 0;
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int round = 0; round < 5_000; round++) {
+            batch.clear();
+            for (int i = 0; i < 4_096; i++) {
+                int sensorId = script[cursor++ & (script.length - 1)];
+                // ~1 in 4 sensors flips, the rest repeat their state; each batch is 50ms of wall time
+                batch.add(sensorId, ((sensorId + round / 8) & 3) == 0, clock);
+            }
+            clock += 50;
+            ingestor.ingest(batch, clock);
+            events += batch.size();
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = allocatedBytes() - startBytes;
+        System.out.printf("sensors: %d events in %d ms -> %.0f events/s, %.3f bytes/event, %d mismatches%n",
+            events, elapsed / 1_000_000, events * 1e9 / elapsed, (double) bytes / events, mismatches[0]);
+        System.out.println("  " + ingestor.stats());
+    }
+
+    static long allocatedBytes() {
+        return ((ThreadMXBean) ManagementFactory.getThreadMXBean())
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Availability queries against a floor whose reserved spots carry 200k future bookings
+    static void reservations() {
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        lot.addFloor(VehicleType.CAR, 1, 500, 0, 40);
+        long hour = Duration.ofHours(1).toMillis();
+        long base = System.currentTimeMillis() + 3 * hour;
+        Random random = new Random(7);
+        int booked = 0;
+        for (int i = 0; i < 200_000; i++) {
+            long start = base + (long) random.nextInt(5_000 * 24) * hour / 4;
+            try {
+                lot.book(VehicleType.CAR, "P" + i, start, start + hour);
+                booked++;
+            } catch (IllegalStateException full) {
+                // window already taken on every reserved spot
+            }
+        }
+        System.out.printf("reservations: %d bookings across 40 reserved spots%n", booked);
+        measure("  isReservable(CAR, 2h window)", 200_000, () -> {
+            long start = base + (long) random.nextInt(5_000 * 24) * hour / 4;
+            return lot.isReservable(VehicleType.CAR, start, start + 2 * hour) ? 1 : 0;
+        });
+        EntryGate entry = new EntryGate(lot, new Payment(), "GATE-1");
+        ExitGate exit = new ExitGate(lot, new Payment(), "EXIT-1");
+        entry.setVerbose(false);
+        exit.setVerbose(false);
+        measure("  walk-in enter+exit (skips booked spots)", 200_000, () -> cycle(entry, exit, new Car("W")));
+    }
+
+    // Allocation at 95% occupancy with the free spots scattered at random, the worst case for
+    // overflow and multi-spot placement
+    static void fragmentation() {
+        ParkingLot lot = ParkingLot.newEmptyLot();
+        for (int f = 1; f <= 4; f++) {
+            lot.addFloor(VehicleType.CAR, f, 2000, 100, 100);
+        }
+        lot.addFloor(VehicleType.BIKE, 1, 500, 0, 0);
+        lot.addFloor(VehicleType.HEAVY, 1, 50, 0, 0);
+        Payment payment = new Payment();
+        EntryGate entry = new EntryGate(lot, payment, "GATE-1");
+        ExitGate exit = new ExitGate(lot, payment, "EXIT-1");
+        entry.setVerbose(false);
+        exit.setVerbose(false);
+
+        // Fill every floor with its own vehicle type first, then turn overflow back on
+        lot.setCompatibility(new SpotCompatibility());
+        List<Ticket> carTickets = new ArrayList<>();
+        fill(entry, () -> new Bike("B"), new ArrayList<>());
+        fill(entry, () -> new HeavyVehicle("H"), new ArrayList<>());
+        fill(entry, () -> new Car("C"), carTickets);
+        Collections.shuffle(carTickets, new Random(42));
+        int toFree = carTickets.size() / 20;
+        for (int i = 0; i < toFree; i++) {
+            exit.exit(carTickets.get(i), SILENT_PAYMENT, BillingMode.MINUTE);
+        }
+        lot.setCompatibility(SpotCompatibility.defaults());
+        System.out.printf("fragmentation: %d car tickets, %d freed at random (95%% occupancy)%n", carTickets.size(), toFree);
+
+        List<ParkingFloor> carFloors = lot.getFloors().get(VehicleType.CAR);
+        for (int k = 1; k <= 3; k++) {
+            int runLength = k;
+            measure("  run-length index, K=" + k, 200_000, () -> {
+                int found = 0;
+                for (ParkingFloor floor : carFloors) {
+                    if (floor.findRegularRun(runLength) >= 0) {
+                        found++;
+                    }
+                }
+                return found;
+            });
+            measure("  linear spot scan, K=" + k, 2_000, () -> {
+                int found = 0;
+                for (ParkingFloor floor : carFloors) {
+                    if (scanForRun(floor, runLength) >= 0) {
+                        found++;
+                    }
+                }
+                return found;
+            });
+        }
+        measure("  bike overflow enter+exit", 200_000, () -> cycle(entry, exit, new Bike("B2")));
+        measure("  heavy 3-spot enter+exit", 200_000, () -> cycle(entry, exit, new HeavyVehicle("H2")));
+    }
+
+    private static void fill(EntryGate entry, Supplier<Vehicle> vehicles, List<Ticket> tickets) {
+        while (true) {
+            try {
+                tickets.add(entry.enter(vehicles.get(), false, false, false, false));
+            } catch (IllegalStateException full) {
+                return;
+            }
+        }
+    }
+
+    private static int cycle(EntryGate entry, ExitGate exit, Vehicle vehicle) {
+        try {
+            Ticket ticket = entry.enter(vehicle, false, false, false, false);
+            exit.exit(ticket, SILENT_PAYMENT, BillingMode.MINUTE);
+            return 1;
+        } catch (IllegalStateException full) {
+            return 0;
+        }
+    }
+
+    private static int scanForRun(ParkingFloor floor, int length) {
+        int run = 0;
+        for (int i = 1; i <= floor.getCapacity(); i++) {
+            ParkingSpot spot = floor.getSpot(i);
+            run = !spot.isOccupied() && !spot.isHandicap() && !spot.isReserved() ? run + 1 : 0;
+            if (run == length) {
+                return i - length + 1;
+            }
+        }
+        return -1;
+    }
+
+    static void measure(String label, int iterations, IntSupplier op) {
+        long hits = 0;
+        for (int i = 0; i < iterations / 10; i++) {
+            hits += op.getAsInt(); // warm-up
+        }
+        hits = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            hits += op.getAsInt();
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-40s %10.1f ns/op  (hits/op %.2f)%n", label, (double) elapsed / iterations, (double) hits / iterations);
     }
 }
 
@@ -619,7 +9726,10 @@ public class Main {
     public static void main(String[] args) {
         // Initialize parking lot and dependencies
         ParkingLot parkingLot = ParkingLot.getInstance();
-        Payment payment = new Payment();
+        // Virtual time, so the parking durations below actually pass
+        VirtualParkingClock clock = new VirtualParkingClock(LocalDateTime.now());
+        parkingLot.setClock(clock);
+        Payment payment = new Payment(clock);
         DisplayBoard displayBoard = new DisplayBoard(parkingLot);
         EntryGate entryGate1 = new EntryGate(parkingLot, payment, "GATE-1");
         EntryGate entryGate2 = new EntryGate(parkingLot, payment, "GATE-2");
@@ -636,6 +9746,7 @@ public class Main {
 
         // Simulate 2 hours and 15 minutes parking
         System.out.println("Simulating 2 hours 15 minutes parking for car...");
+        clock.advance(Duration.ofHours(2).plusMinutes(15));
 
         // Car exits via Gate 2, hourly billing
         double carFee = exitGate2.exit(carTicket, new CreditCardPayment(), BillingMode.HOURLY);
@@ -650,6 +9761,7 @@ public class Main {
 
             // Simulate 1 hour 30 minutes parking
             System.out.println("Simulating 1 hour 30 minutes parking for bike...");
+            clock.advance(Duration.ofMinutes(90));
 
             // Bike exits via Gate 1, minute billing
             double bikeFee = exitGate1.exit(bikeTicket, new UPIPayment(), BillingMode.MINUTE);
@@ -667,6 +9779,7 @@ public class Main {
 
             // Simulate 3 hours parking
             System.out.println("Simulating 3 hours parking for heavy vehicle...");
+            clock.advance(Duration.ofHours(3));
 
             // Heavy vehicle exits via Gate 1, hourly billing
             double heavyFee = exitGate1.exit(heavyTicket, new CashPayment(), BillingMode.HOURLY);
@@ -692,15 +9805,41 @@ public class Main {
         } catch (IllegalArgumentException e) {
             System.out.println("Error: " + e.getMessage());
         }
+
+        // Scenario 6: Car floor 2 closed for maintenance while traffic keeps flowing
+        parkingLot.addFloor(VehicleType.CAR, 3, 50, 5, 5);
+        parkingLot.drainFloor(VehicleType.CAR, 2);
+        Ticket car4Ticket = entryGate1.enter(new Car("JKL012"), false, false, false, false);
+        exitGate1.exit(car4Ticket, new CashPayment(), BillingMode.MINUTE);
+        parkingLot.removeFloor(VehicleType.CAR, 2);
+        displayBoard.showAvailability();
+
+        // Scenario 7: Advance booking of a reserved car spot, then arrival on the booking
+        long now = clock.millis();
+        Vehicle car5 = new Car("MNO345");
+        Reservation booking = parkingLot.book(VehicleType.CAR, car5.getLicensePlate(), now, now + Duration.ofHours(3).toMillis());
+        System.out.println("Booked " + booking.getSpot().getId() + " as " + booking.getReservationId());
+        OverstayMonitor overstayMonitor = new OverstayMonitor(Duration.ofMinutes(1), clock);
+        overstayMonitor.addObserver((ticket, level) -> System.out.println(level + ": " + ticket.getTicketId()));
+        parkingLot.addTicketObserver(overstayMonitor);
+        Ticket car5Ticket = entryGate2.enter(car5, booking);
+        exitGate2.exit(car5Ticket, new UPIPayment(), BillingMode.HOURLY);
+
+        // Scenario 8: Exit on a signed ticket alone, then the same ticket presented again
+        parkingLot.enableSignedTickets(new TicketCodec("demo-signing-key-0123456789abcdef".getBytes(StandardCharsets.UTF_8)), new ReplayGuard(Duration.ofDays(30)));
+        Ticket car6Ticket = entryGate1.enter(new Car("PQR678"), false, false, false, false);
+        byte[] printed = parkingLot.getTicketCodec().sign(car6Ticket);
+        System.out.println("Printed ticket: " + TicketCodec.toText(printed));
+        exitGate1.exit(TicketCodec.fromText(TicketCodec.toText(printed)), new CashPayment(), BillingMode.MINUTE);
+        try {
+            exitGate1.exit(printed, new CashPayment(), BillingMode.MINUTE);
+        } catch (IllegalStateException e) {
+            System.out.println("Error: " + e.getMessage());
+        }
     }
 }
 /*
 ----- Parking Availability -----
-Vehicle Type: BIKE
-  Floor 1:
-    Regular Spots: 100
-    Handicap Spots: 10
-    Reserved Spots: 10
 Vehicle Type: CAR
   Floor 1:
     Regular Spots: 50
@@ -710,19 +9849,19 @@ Vehicle Type: CAR
     Regular Spots: 50
     Handicap Spots: 5
     Reserved Spots: 5
+Vehicle Type: BIKE
+  Floor 1:
+    Regular Spots: 100
+    Handicap Spots: 10
+    Reserved Spots: 10
 Vehicle Type: HEAVY
   Floor 1:
     Regular Spots: 20
     Handicap Spots: 2
     Reserved Spots: 2
 -------------------------------
-Vehicle ABC123 entered via Gate GATE-1. Spot: CAR-F1-1, Floor: 1, Ticket: TICKET-26169804
+Vehicle ABC123 entered via Gate GATE-1. Spot: CAR-F1-1, Floor: 1, Ticket: TICKET-6c1116fc
 ----- Parking Availability -----
-Vehicle Type: BIKE
-  Floor 1:
-    Regular Spots: 100
-    Handicap Spots: 10
-    Reserved Spots: 10
 Vehicle Type: CAR
   Floor 1:
     Regular Spots: 49
@@ -732,6 +9871,11 @@ Vehicle Type: CAR
     Regular Spots: 50
     Handicap Spots: 5
     Reserved Spots: 5
+Vehicle Type: BIKE
+  Floor 1:
+    Regular Spots: 100
+    Handicap Spots: 10
+    Reserved Spots: 10
 Vehicle Type: HEAVY
   Floor 1:
     Regular Spots: 20
@@ -740,15 +9884,10 @@ Vehicle Type: HEAVY
 -------------------------------
 Simulating 2 hours 15 minutes parking for car...
 Warning: Vehicle exiting from different gate (EXIT-2) than entry gate (GATE-1)
-Processing credit card payment of $0.00
-Vehicle ABC123 exited via Gate EXIT-2 from spot CAR-F1-1, Floor: 1. Fee: $0.00 (HOURLY)
-Car fee: $0.00
+Processing credit card payment of $30.00
+Vehicle ABC123 exited via Gate EXIT-2 from spot CAR-F1-1, Floor: 1. Fee: $30.00 (HOURLY)
+Car fee: $30.00
 ----- Parking Availability -----
-Vehicle Type: BIKE
-  Floor 1:
-    Regular Spots: 100
-    Handicap Spots: 10
-    Reserved Spots: 10
 Vehicle Type: CAR
   Floor 1:
     Regular Spots: 50
@@ -758,19 +9897,19 @@ Vehicle Type: CAR
     Regular Spots: 50
     Handicap Spots: 5
     Reserved Spots: 5
+Vehicle Type: BIKE
+  Floor 1:
+    Regular Spots: 100
+    Handicap Spots: 10
+    Reserved Spots: 10
 Vehicle Type: HEAVY
   Floor 1:
     Regular Spots: 20
     Handicap Spots: 2
     Reserved Spots: 2
 -------------------------------
-Vehicle XYZ789 entered via Gate GATE-2. Spot: BIKE-F1-1, Floor: 1, Ticket: TICKET-1ce4ced8
+Vehicle XYZ789 entered via Gate GATE-2. Spot: BIKE-F1-1, Floor: 1, Ticket: TICKET-6c1116fd
 ----- Parking Availability -----
-Vehicle Type: BIKE
-  Floor 1:
-    Regular Spots: 99
-    Handicap Spots: 9
-    Reserved Spots: 10
 Vehicle Type: CAR
   Floor 1:
     Regular Spots: 50
@@ -780,6 +9919,11 @@ Vehicle Type: CAR
     Regular Spots: 50
     Handicap Spots: 5
     Reserved Spots: 5
+Vehicle Type: BIKE
+  Floor 1:
+    Regular Spots: 99
+    Handicap Spots: 9
+    Reserved Spots: 10
 Vehicle Type: HEAVY
   Floor 1:
     Regular Spots: 20
@@ -788,15 +9932,10 @@ Vehicle Type: HEAVY
 -------------------------------
 Simulating 1 hour 30 minutes parking for bike...
 Warning: Vehicle exiting from different gate (EXIT-1) than entry gate (GATE-2)
-Processing UPI payment of $0.00
-Vehicle XYZ789 exited via Gate EXIT-1 from spot BIKE-F1-1, Floor: 1. Fee: $0.00 (MINUTE)
-Bike fee: $0.00
+Processing UPI payment of $9.00
+Vehicle XYZ789 exited via Gate EXIT-1 from spot BIKE-F1-1, Floor: 1. Fee: $9.00 (MINUTE)
+Bike fee: $9.00
 ----- Parking Availability -----
-Vehicle Type: BIKE
-  Floor 1:
-    Regular Spots: 100
-    Handicap Spots: 10
-    Reserved Spots: 10
 Vehicle Type: CAR
   Floor 1:
     Regular Spots: 50
@@ -806,19 +9945,19 @@ Vehicle Type: CAR
     Regular Spots: 50
     Handicap Spots: 5
     Reserved Spots: 5
+Vehicle Type: BIKE
+  Floor 1:
+    Regular Spots: 100
+    Handicap Spots: 10
+    Reserved Spots: 10
 Vehicle Type: HEAVY
   Floor 1:
     Regular Spots: 20
     Handicap Spots: 2
     Reserved Spots: 2
 -------------------------------
-Vehicle HEV456 entered via Gate GATE-1. Spot: HEAVY-F1-3, Floor: 1, Ticket: TICKET-742a5e0d
+Vehicle HEV456 entered via Gate GATE-1. Spot: HEAVY-F1-3, Floor: 1, Ticket: TICKET-6c1116fe
 ----- Parking Availability -----
-Vehicle Type: BIKE
-  Floor 1:
-    Regular Spots: 100
-    Handicap Spots: 10
-    Reserved Spots: 10
 Vehicle Type: CAR
   Floor 1:
     Regular Spots: 50
@@ -828,6 +9967,11 @@ Vehicle Type: CAR
     Regular Spots: 50
     Handicap Spots: 5
     Reserved Spots: 5
+Vehicle Type: BIKE
+  Floor 1:
+    Regular Spots: 100
+    Handicap Spots: 10
+    Reserved Spots: 10
 Vehicle Type: HEAVY
   Floor 1:
     Regular Spots: 19
@@ -836,33 +9980,94 @@ Vehicle Type: HEAVY
 -------------------------------
 Simulating 3 hours parking for heavy vehicle...
 Warning: Vehicle exiting from different gate (EXIT-1) than entry gate (GATE-1)
-Processing cash payment of $0.00
-Vehicle HEV456 exited via Gate EXIT-1 from spot HEAVY-F1-3, Floor: 1. Fee: $0.00 (HOURLY)
-Heavy vehicle fee: $0.00
+Processing cash payment of $60.00
+Vehicle HEV456 exited via Gate EXIT-1 from spot HEAVY-F1-3, Floor: 1. Fee: $60.00 (HOURLY)
+Heavy vehicle fee: $60.00
 ----- Parking Availability -----
+Vehicle Type: CAR
+  Floor 1:
+    Regular Spots: 50
+    Handicap Spots: 5
+    Reserved Spots: 5
+  Floor 2:
+    Regular Spots: 50
+    Handicap Spots: 5
+    Reserved Spots: 5
 Vehicle Type: BIKE
   Floor 1:
     Regular Spots: 100
     Handicap Spots: 10
     Reserved Spots: 10
+Vehicle Type: HEAVY
+  Floor 1:
+    Regular Spots: 20
+    Handicap Spots: 2
+    Reserved Spots: 2
+-------------------------------
+Error: Handicap permit required for handicap spot.
+Vehicle GHI789 entered via Gate INVALID-GATE. Spot: CAR-F1-1, Floor: 1, Ticket: TICKET-6c1116ff
+Floor update: CAR on Floor 2 - Draining (0 parked)
+----- Parking Availability -----
 Vehicle Type: CAR
   Floor 1:
+    Regular Spots: 49
+    Handicap Spots: 4
+    Reserved Spots: 5
+  Floor 2 (draining):
     Regular Spots: 50
     Handicap Spots: 5
     Reserved Spots: 5
-  Floor 2:
+  Floor 3:
     Regular Spots: 50
     Handicap Spots: 5
     Reserved Spots: 5
+Vehicle Type: BIKE
+  Floor 1:
+    Regular Spots: 100
+    Handicap Spots: 10
+    Reserved Spots: 10
 Vehicle Type: HEAVY
   Floor 1:
     Regular Spots: 20
     Handicap Spots: 2
     Reserved Spots: 2
-ERROR!
 -------------------------------
-Error: Handicap permit required for handicap spot.
-Vehicle GHI789 entered via Gate INVALID-GATE. Spot: CAR-F1-1, Floor: 1, Ticket: TICKET-19ae48d9
+Vehicle JKL012 entered via Gate GATE-1. Spot: CAR-F3-1, Floor: 3, Ticket: TICKET-6c111700
+Warning: Vehicle exiting from different gate (EXIT-1) than entry gate (GATE-1)
+Processing cash payment of $0.00
+Vehicle JKL012 exited via Gate EXIT-1 from spot CAR-F3-1, Floor: 3. Fee: $0.00 (MINUTE)
+----- Parking Availability -----
+Vehicle Type: CAR
+  Floor 1:
+    Regular Spots: 49
+    Handicap Spots: 4
+    Reserved Spots: 5
+  Floor 3:
+    Regular Spots: 50
+    Handicap Spots: 5
+    Reserved Spots: 5
+Vehicle Type: BIKE
+  Floor 1:
+    Regular Spots: 100
+    Handicap Spots: 10
+    Reserved Spots: 10
+Vehicle Type: HEAVY
+  Floor 1:
+    Regular Spots: 20
+    Handicap Spots: 2
+    Reserved Spots: 2
+-------------------------------
+Booked CAR-F1-6 as RES-1
+Vehicle MNO345 entered via Gate GATE-2. Spot: CAR-F1-6, Floor: 1, Ticket: TICKET-6c111701
+Warning: Vehicle exiting from different gate (EXIT-2) than entry gate (GATE-2)
+Processing UPI payment of $0.00
+Vehicle MNO345 exited via Gate EXIT-2 from spot CAR-F1-6, Floor: 1. Fee: $0.00 (HOURLY)
+Vehicle PQR678 entered via Gate GATE-1. Spot: CAR-F3-1, Floor: 3, Ticket: TICKET-6c111702
+Printed ticket: AQAAAQADAAAAAWwRFwIAAAGhVmPTdgZHQVRFLTHRwwBoMKzYq6kxpBl9AdO-
+Warning: Vehicle exiting from different gate (EXIT-1) than entry gate (GATE-1)
+Processing cash payment of $0.00
+Vehicle PQR678 exited via Gate EXIT-1 from spot CAR-F3-1, Floor: 3. Fee: $0.00 (MINUTE)
+Error: Spot of ticket TICKET-6c111702 is not held by it.
 
 === Code Execution Successful ===
 */
\ No newline at end of file